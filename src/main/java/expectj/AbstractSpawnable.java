@@ -1,31 +1,92 @@
 package expectj;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
  * Base class for spawnables providing an {@link #onClose()} method that should
  * be called on close.
+ * <p>
+ * Any number of close listeners can be added with
+ * {@link #addCloseListener(CloseListener)}.  They are called without holding
+ * any locks, so listeners may call back into the spawnable.
  *
  * @author johan.walles@gmail.com
  */
 public abstract class AbstractSpawnable implements Spawnable {
     /**
-     * If non-null, will be notified {@link #onClose()}.
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(AbstractSpawnable.class);
+
+    /**
+     * Will be notified {@link #onClose()}.  All accesses must be synchronized
+     * on the list.
      */
-    private CloseListener closeListener;
+    private final List closeListeners = new ArrayList();
 
+    /**
+     * Replace all close listeners with one listener.
+     *
+     * @param closeListener The listener to notify, or null for none.
+     * @see #addCloseListener(CloseListener)
+     */
     public void setCloseListener(CloseListener closeListener) {
-        synchronized (this) {
-            this.closeListener = closeListener;
+        synchronized (closeListeners) {
+            closeListeners.clear();
+            if (closeListener != null) {
+                closeListeners.add(closeListener);
+            }
+        }
+    }
+
+    /**
+     * Add a close listener.  Listeners added earlier are kept.
+     *
+     * @param closeListener The listener to add.  Adding a listener that is
+     * already registered does nothing.
+     * @see #removeCloseListener(CloseListener)
+     */
+    public void addCloseListener(CloseListener closeListener) {
+        if (closeListener == null) {
+            throw new NullPointerException("Close listener must not be null");
+        }
+        synchronized (closeListeners) {
+            if (!closeListeners.contains(closeListener)) {
+                closeListeners.add(closeListener);
+            }
         }
     }
 
     /**
-     * Call the close listener if we have one.
+     * Stop notifying a close listener.
+     *
+     * @param closeListener The listener to remove.
+     */
+    public void removeCloseListener(CloseListener closeListener) {
+        synchronized (closeListeners) {
+            closeListeners.remove(closeListener);
+        }
+    }
+
+    /**
+     * Call the close listeners.  A listener throwing doesn't keep the others
+     * from being called.
      */
     protected final void onClose() {
-        synchronized (this) {
-            if (closeListener != null) {
-                closeListener.onClose();
+        CloseListener[] listeners;
+        synchronized (closeListeners) {
+            listeners =
+                (CloseListener[])closeListeners.toArray(new CloseListener[closeListeners.size()]);
+        }
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].onClose();
+            } catch (RuntimeException e) {
+                LOG.warn("Close listener failed: " + listeners[i], e);
             }
         }
     }
@@ -0,0 +1,208 @@
+package expectj;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An {@link EchoSink} that writes spawn output from a single background
+ * thread, with every line prefixed by the session it comes from.
+ * <p>
+ * The threads reading spawn output only copy each chunk into a lock-free
+ * queue, so they never wait for each other or for the target streams.  The
+ * writer thread drains everything queued, writes it in one batch and flushes
+ * once per batch.
+ * <p>
+ * Lines are prefixed with "[session] ", or "[session!] " for stderr.
+ */
+public class AsyncEchoSink implements EchoSink {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(AsyncEchoSink.class);
+
+    /**
+     * A chunk of output waiting to be written.
+     */
+    private static class Chunk {
+        /**
+         * The session the output comes from.
+         */
+        final String session;
+
+        /**
+         * {@link Spawn#STDOUT} or {@link Spawn#STDERR}.
+         */
+        final int stream;
+
+        /**
+         * Our own copy of the output.
+         */
+        final byte[] bytes;
+
+        /**
+         * @param session The session the output comes from.
+         * @param stream The stream the output comes from.
+         * @param bytes Our own copy of the output.
+         */
+        Chunk(String session, int stream, byte[] bytes) {
+            this.session = session;
+            this.stream = stream;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Chunks waiting for the writer thread.
+     */
+    private final ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
+
+    /**
+     * Where to write stdout.
+     */
+    private final OutputStream stdoutTarget;
+
+    /**
+     * Where to write stderr.
+     */
+    private final OutputStream stderrTarget;
+
+    /**
+     * Session / stream combinations that are in the middle of a line.  Only
+     * touched by the writer thread.
+     */
+    private final Set midLine = new HashSet();
+
+    /**
+     * Writes queued chunks.
+     */
+    private final Thread writer;
+
+    /**
+     * When this turns true, the writer thread drains the queue and exits.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Echo both stdout and stderr to the same stream.
+     *
+     * @param target Where to write output, like System.out or a
+     * FileOutputStream.
+     */
+    public AsyncEchoSink(OutputStream target) {
+        this(target, target);
+    }
+
+    /**
+     * Echo stdout and stderr to different streams.
+     *
+     * @param stdoutTarget Where to write spawn stdout.
+     * @param stderrTarget Where to write spawn stderr.
+     */
+    public AsyncEchoSink(OutputStream stdoutTarget, OutputStream stderrTarget) {
+        if (stdoutTarget == null || stderrTarget == null) {
+            throw new NullPointerException("Targets must not be null");
+        }
+        if (stdoutTarget == stderrTarget) {
+            this.stdoutTarget = new BufferedOutputStream(stdoutTarget);
+            this.stderrTarget = this.stdoutTarget;
+        } else {
+            this.stdoutTarget = new BufferedOutputStream(stdoutTarget);
+            this.stderrTarget = new BufferedOutputStream(stderrTarget);
+        }
+
+        writer = new Thread("ExpectJ Echo Writer") {
+            public void run() {
+                writeChunks();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void echo(String session, int stream, byte[] bytes, int offset, int length) {
+        if (closed || length == 0) {
+            return;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        queue.offer(new Chunk(session, stream, copy));
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Write everything queued and stop the writer thread.  The targets are
+     * flushed but not closed.  Output echoed after this call is dropped.
+     *
+     * @throws InterruptedException if interrupted waiting for the writer
+     * thread.
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+
+    /**
+     * Writer thread main loop.
+     */
+    private void writeChunks() {
+        try {
+            while (true) {
+                boolean wasClosed = closed;
+                Chunk chunk = (Chunk)queue.poll();
+                if (chunk == null) {
+                    stdoutTarget.flush();
+                    stderrTarget.flush();
+                    if (wasClosed) {
+                        return;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                write(chunk);
+            }
+        } catch (IOException e) {
+            LOG.error("Echoing spawn output failed", e);
+        } finally {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Write a chunk, prefixing each new line with its session.
+     *
+     * @param chunk The chunk to write.
+     * @throws IOException on trouble writing the chunk.
+     */
+    private void write(Chunk chunk) throws IOException {
+        OutputStream target = (chunk.stream == Spawn.STDERR) ? stderrTarget : stdoutTarget;
+        String key = chunk.stream + chunk.session;
+        byte[] prefix = null;
+        int lineStart = 0;
+        for (int i = 0; i < chunk.bytes.length; i++) {
+            if (i == lineStart && !midLine.contains(key)) {
+                if (prefix == null) {
+                    String suffix = (chunk.stream == Spawn.STDERR) ? "!] " : "] ";
+                    prefix = ("[" + chunk.session + suffix).getBytes();
+                }
+                target.write(prefix);
+            }
+            if (chunk.bytes[i] == '\n') {
+                target.write(chunk.bytes, lineStart, i + 1 - lineStart);
+                lineStart = i + 1;
+                midLine.remove(key);
+            } else if (i == lineStart) {
+                midLine.add(key);
+            }
+        }
+        target.write(chunk.bytes, lineStart, chunk.bytes.length - lineStart);
+    }
+}
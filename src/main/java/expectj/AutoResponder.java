@@ -0,0 +1,123 @@
+package expectj;
+
+/**
+ * A rule for answering a recurring prompt, like a pager's "--More--", without
+ * involving the thread calling {@link Spawn#expect(String)}.
+ * <p>
+ * Auto-responders are registered with
+ * {@link Spawn#addAutoResponder(AutoResponder)}.  They are evaluated by the
+ * thread reading the spawn's output as the data arrives.  The reply is queued
+ * and sent by a helper thread, so that reading never waits for the spawn's
+ * stdin.
+ *
+ * @see Spawn#addAutoResponder(AutoResponder)
+ */
+public final class AutoResponder {
+    /**
+     * The stream to look on, {@link Spawn#STDOUT} or {@link Spawn#STDERR}.
+     */
+    private final int stream;
+
+    /**
+     * The case-insensitive substring to look for.
+     */
+    private final String pattern;
+
+    /**
+     * What to send when {@link #pattern} is found.
+     */
+    private final String reply;
+
+    /**
+     * If true, {@link #pattern} is removed from the received output.
+     */
+    private final boolean strip;
+
+    /**
+     * {@link #pattern} in upper case, encoded the same way
+     * {@link Spawn#send(String)} encodes strings.
+     */
+    private final byte[] upperCaseBytes;
+
+    /**
+     * Create a new auto-responder.
+     *
+     * @param stream The stream to look on, {@link Spawn#STDOUT} or
+     * {@link Spawn#STDERR}.
+     * @param pattern The case-insensitive substring to look for.
+     * @param reply What to send each time the pattern is found.
+     * @param strip If true, the pattern is removed from the output seen by
+     * expect() and returned by the get*Contents() methods.
+     */
+    public AutoResponder(int stream, String pattern, String reply, boolean strip) {
+        if (stream != Spawn.STDOUT && stream != Spawn.STDERR) {
+            throw new IllegalArgumentException("Stream must be Spawn.STDOUT or Spawn.STDERR, was "
+                                               + stream);
+        }
+        if (pattern == null) {
+            throw new NullPointerException("Pattern must not be null");
+        }
+        if (pattern.length() == 0) {
+            throw new IllegalArgumentException("Pattern must not be empty");
+        }
+        if (reply == null) {
+            throw new NullPointerException("Reply must not be null");
+        }
+        this.stream = stream;
+        this.pattern = pattern;
+        this.reply = reply;
+        this.strip = strip;
+        this.upperCaseBytes = pattern.toUpperCase().getBytes();
+    }
+
+    /**
+     * Create an auto-responder looking on stdout.
+     *
+     * @param pattern The case-insensitive substring to look for.
+     * @param reply What to send each time the pattern is found.
+     */
+    public AutoResponder(String pattern, String reply) {
+        this(Spawn.STDOUT, pattern, reply, false);
+    }
+
+    /**
+     * @return The stream to look on, {@link Spawn#STDOUT} or
+     * {@link Spawn#STDERR}.
+     */
+    public int getStream() {
+        return stream;
+    }
+
+    /**
+     * @return The case-insensitive substring to look for.
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return What to send each time the pattern is found.
+     */
+    public String getReply() {
+        return reply;
+    }
+
+    /**
+     * @return True if the pattern is removed from the received output.
+     */
+    public boolean isStrip() {
+        return strip;
+    }
+
+    /**
+     * @return The pattern in upper case, as bytes.
+     */
+    byte[] getUpperCaseBytes() {
+        return upperCaseBytes;
+    }
+
+    public String toString() {
+        return (stream == Spawn.STDOUT ? "stdout:\"" : "stderr:\"") + pattern
+            + "\" -> \"" + reply + "\"";
+    }
+}
@@ -0,0 +1,239 @@
+package expectj;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs {@link AutoResponder}s on the bytes read from one stream of a spawn.
+ * <p>
+ * Matching is done on bytes, ignoring the case of ASCII letters.  To find
+ * patterns split between reads, the last few bytes of each read are kept
+ * around.  If a stripping responder is registered, any trailing bytes that
+ * could be the start of its pattern are held back until more data arrives,
+ * so that the whole pattern can be removed.
+ * <p>
+ * Only the thread reading the stream may call {@link #process(byte[], int)}
+ * and {@link #flush()}.  The rules can be replaced from any thread.
+ */
+class AutoResponderMatcher {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(AutoResponderMatcher.class);
+
+    /**
+     * Maps each byte to its upper case ASCII equivalent.
+     */
+    private static final byte[] FOLD = new byte[256];
+    static {
+        for (int i = 0; i < FOLD.length; i++) {
+            FOLD[i] = (byte)((i >= 'a' && i <= 'z') ? i - 'a' + 'A' : i);
+        }
+    }
+
+    /**
+     * The rules currently in effect, never null.
+     */
+    private volatile AutoResponder[] rules = new AutoResponder[0];
+
+    /**
+     * Replies are sent through here.
+     */
+    private volatile Spawn replyTo = null;
+
+    /**
+     * Bytes kept from earlier reads followed by the bytes being processed.
+     */
+    private byte[] data = new byte[0];
+
+    /**
+     * The number of bytes at the start of {@link #data} kept from earlier
+     * reads.
+     */
+    private int carryLength = 0;
+
+    /**
+     * The number of bytes at the end of the carry that haven't been passed on
+     * yet.
+     */
+    private int heldBack = 0;
+
+    /**
+     * What to pass on after the latest call to {@link #process(byte[], int)}
+     * or {@link #flush()}, unless {@link #passThrough} is set.  Never the
+     * caller's buffer, since that may be given back to the
+     * {@link BufferPool} and handed to another thread.
+     */
+    private byte[] output = new byte[0];
+
+    /**
+     * True if the latest call to {@link #process(byte[], int)} passed the
+     * caller's bytes on unchanged.
+     */
+    private boolean passThrough = false;
+
+    /**
+     * Replace the rules.
+     *
+     * @param rules The new rules.
+     * @param replyTo Where to send replies.
+     */
+    void setRules(AutoResponder[] rules, Spawn replyTo) {
+        this.replyTo = replyTo;
+        this.rules = rules;
+    }
+
+    /**
+     * Look for patterns in newly read bytes, reply to the ones found and
+     * decide what to pass on.
+     *
+     * @param bytes Newly read bytes.
+     * @param length The number of bytes read.
+     * @return The number of bytes in {@link #getOutput(byte[])} to pass on.
+     */
+    int process(byte[] bytes, int length) {
+        AutoResponder[] current = rules;
+        if (current.length == 0 && carryLength == 0) {
+            passThrough = true;
+            return length;
+        }
+        passThrough = false;
+
+        int total = carryLength + length;
+        if (data.length < total) {
+            byte[] grown = new byte[Math.max(total, data.length * 2)];
+            System.arraycopy(data, 0, grown, 0, carryLength);
+            data = grown;
+        }
+        System.arraycopy(bytes, 0, data, carryLength, length);
+        if (output.length < total) {
+            output = new byte[Math.max(total, data.length)];
+        }
+
+        int outputLength = 0;
+        int copyFrom = carryLength - heldBack;
+        int lastMatchEnd = 0;
+        int maxLength = 0;
+        for (int r = 0; r < current.length; r++) {
+            maxLength = Math.max(maxLength, current[r].getUpperCaseBytes().length);
+        }
+        int i = 0;
+        while (i < total) {
+            AutoResponder found = null;
+            for (int r = 0; r < current.length; r++) {
+                byte[] pattern = current[r].getUpperCaseBytes();
+                // Matches ending within the carry were handled by earlier calls
+                if (i + pattern.length <= carryLength || i + pattern.length > total) {
+                    continue;
+                }
+                if (matches(pattern, i, pattern.length)) {
+                    found = current[r];
+                    break;
+                }
+            }
+            if (found == null) {
+                i++;
+                continue;
+            }
+
+            int end = i + found.getUpperCaseBytes().length;
+            reply(found);
+            if (found.isStrip()) {
+                if (i > copyFrom) {
+                    System.arraycopy(data, copyFrom, output, outputLength, i - copyFrom);
+                    outputLength += i - copyFrom;
+                }
+                copyFrom = Math.max(copyFrom, end);
+            }
+            i = end;
+            lastMatchEnd = end;
+        }
+
+        // Hold back anything that could be the start of a pattern to strip
+        int hold = 0;
+        for (int r = 0; r < current.length; r++) {
+            if (!current[r].isStrip()) {
+                continue;
+            }
+            byte[] pattern = current[r].getUpperCaseBytes();
+            int limit = Math.min(pattern.length - 1, total - Math.max(copyFrom, lastMatchEnd));
+            for (int k = limit; k > hold; k--) {
+                if (matches(pattern, total - k, k)) {
+                    hold = k;
+                    break;
+                }
+            }
+        }
+        if (total - hold > copyFrom) {
+            System.arraycopy(data, copyFrom, output, outputLength, total - hold - copyFrom);
+            outputLength += total - hold - copyFrom;
+        }
+
+        // Keep enough to find patterns split between this read and the next
+        int carryStart = Math.max(lastMatchEnd, total - Math.max(maxLength - 1, 0));
+        carryStart = Math.min(carryStart, total - hold);
+        carryLength = total - carryStart;
+        System.arraycopy(data, carryStart, data, 0, carryLength);
+        heldBack = hold;
+        return outputLength;
+    }
+
+    /**
+     * Release anything held back, for use when the stream ends.
+     *
+     * @return The number of bytes in {@link #getOutput(byte[])} to pass on.
+     */
+    int flush() {
+        passThrough = false;
+        int count = heldBack;
+        if (output.length < count) {
+            output = new byte[count];
+        }
+        System.arraycopy(data, carryLength - count, output, 0, count);
+        heldBack = 0;
+        carryLength = 0;
+        return count;
+    }
+
+    /**
+     * @param bytes The bytes given to the latest call to
+     * {@link #process(byte[], int)}.
+     * @return The bytes to pass on after the latest call to
+     * {@link #process(byte[], int)} or {@link #flush()}.
+     */
+    byte[] getOutput(byte[] bytes) {
+        return passThrough ? bytes : output;
+    }
+
+    /**
+     * Compare the start of a pattern to {@link #data}.
+     *
+     * @param pattern An upper case pattern.
+     * @param offset Where in {@link #data} to compare.
+     * @param length How many bytes to compare.
+     * @return True if the bytes match, ignoring ASCII case.
+     */
+    private boolean matches(byte[] pattern, int offset, int length) {
+        for (int j = 0; j < length; j++) {
+            if (FOLD[data[offset + j] & 0xff] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queue the reply of a rule that matched.  This doesn't wait for the
+     * reply to be written, see {@link Spawn#sendReply(String)}.
+     *
+     * @param rule The rule that matched.
+     */
+    private void reply(AutoResponder rule) {
+        LOG.debug("Auto-responding to " + rule);
+        Spawn spawn = replyTo;
+        if (spawn == null) {
+            return;
+        }
+        spawn.sendReply(rule.getReply());
+    }
+}
@@ -0,0 +1,188 @@
+package expectj;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A thread-safe pool of read buffers shared by all spawns.
+ * <p>
+ * Buffers come in power of two size classes from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE} bytes, and each class keeps up to {@link #MAX_POOLED}
+ * free buffers.  Requests outside that range are allocated and dropped as
+ * usual.
+ * <p>
+ * In debug mode, the pool remembers where each outstanding buffer was
+ * acquired, see {@link #checkLeaks()}.  Debug mode is on if the system
+ * property <code>expectj.debugBufferPool</code> is true.
+ */
+final class BufferPool {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(BufferPool.class);
+
+    /**
+     * The smallest buffer size handed out.
+     */
+    static final int MIN_SIZE = 512;
+
+    /**
+     * The largest pooled buffer size.
+     */
+    static final int MAX_SIZE = 1024 * 1024;
+
+    /**
+     * How many free buffers to keep per size class.
+     */
+    static final int MAX_POOLED = 64;
+
+    /**
+     * Free buffers, one queue per size class.  Index 0 holds
+     * {@link #MIN_SIZE} byte buffers.
+     */
+    private static final ConcurrentLinkedQueue[] FREE;
+
+    /**
+     * The number of buffers in each of {@link #FREE}.
+     */
+    private static final AtomicInteger[] FREE_COUNTS;
+
+    static {
+        int classes = 0;
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1) {
+            classes++;
+        }
+        FREE = new ConcurrentLinkedQueue[classes];
+        FREE_COUNTS = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            FREE[i] = new ConcurrentLinkedQueue();
+            FREE_COUNTS[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Outstanding buffer to where it was acquired, or null when not in debug
+     * mode.  All accesses must be synchronized on the map.
+     */
+    private static volatile Map outstanding =
+        Boolean.getBoolean("expectj.debugBufferPool") ? new IdentityHashMap() : null;
+
+    /**
+     * Static methods only.
+     */
+    private BufferPool() {
+        // This constructor intentionally left blank
+    }
+
+    /**
+     * @param size A buffer size.
+     * @return The size class for buffers of at least size bytes, or -1 if
+     * such buffers aren't pooled.
+     */
+    private static int sizeClass(int size) {
+        int sizeClass = 0;
+        for (int classSize = MIN_SIZE; classSize <= MAX_SIZE; classSize <<= 1) {
+            if (classSize >= size) {
+                return sizeClass;
+            }
+            sizeClass++;
+        }
+        return -1;
+    }
+
+    /**
+     * Get a buffer.  Give it back with {@link #release(byte[])} when done.
+     *
+     * @param size The minimum size of the buffer.
+     * @return A buffer of at least size bytes.  Its contents are undefined.
+     */
+    static byte[] acquire(int size) {
+        int sizeClass = sizeClass(size);
+        byte[] buffer = null;
+        if (sizeClass == -1) {
+            buffer = new byte[size];
+        } else {
+            buffer = (byte[])FREE[sizeClass].poll();
+            if (buffer != null) {
+                FREE_COUNTS[sizeClass].decrementAndGet();
+            } else {
+                buffer = new byte[MIN_SIZE << sizeClass];
+            }
+        }
+
+        Map debug = outstanding;
+        if (debug != null) {
+            synchronized (debug) {
+                debug.put(buffer, new Throwable("Buffer of " + buffer.length
+                                                + " bytes acquired here"));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back.  The caller must not touch the buffer afterwards.
+     *
+     * @param buffer A buffer from {@link #acquire(int)}, or null.
+     */
+    static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        Map debug = outstanding;
+        if (debug != null) {
+            synchronized (debug) {
+                if (debug.remove(buffer) == null) {
+                    LOG.warn("Releasing buffer not acquired from the pool, or released twice",
+                             new Throwable("Released here"));
+                    return;
+                }
+            }
+        }
+
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass == -1 || buffer.length != (MIN_SIZE << sizeClass)) {
+            return;
+        }
+        if (FREE_COUNTS[sizeClass].incrementAndGet() > MAX_POOLED) {
+            FREE_COUNTS[sizeClass].decrementAndGet();
+            return;
+        }
+        FREE[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Turn debug mode on or off.  Buffers acquired while debug mode was off
+     * aren't tracked.
+     *
+     * @param debug True to track outstanding buffers.
+     */
+    static void setDebug(boolean debug) {
+        outstanding = debug ? new IdentityHashMap() : null;
+    }
+
+    /**
+     * Log where each outstanding buffer was acquired.  Does nothing unless in
+     * debug mode.
+     *
+     * @return The number of outstanding buffers, 0 if not in debug mode.
+     */
+    static int checkLeaks() {
+        Map debug = outstanding;
+        if (debug == null) {
+            return 0;
+        }
+        synchronized (debug) {
+            for (Iterator i = debug.values().iterator(); i.hasNext(); ) {
+                LOG.warn("Buffer not released", (Throwable)i.next());
+            }
+            return debug.size();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package expectj;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Lets one thread abort blocking operations on any number of spawns.
+ * <p>
+ * Spawns created by an {@link ExpectJ} with a token, see
+ * {@link ExpectJ#setCancellationToken(CancellationToken)}, register their
+ * blocking operations with it.  After {@link #cancel()}, threads waiting in
+ * expect calls, expectClose() or send() are woken up and their calls fail,
+ * and so do later calls that would wait.  Spawns that are still starting
+ * are stopped.
+ * <p>
+ * Waiting threads are woken up by interrupting them, so this works for all
+ * waiting ExpectJ does itself.  Writing to a process that doesn't read its
+ * input can't be interrupted, such writes finish when the process is
+ * stopped.
+ * <p>
+ * Interrupting a thread waiting in a spawn operation works the same way for
+ * that single thread, with or without a token.
+ */
+public final class CancellationToken {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(CancellationToken.class);
+
+    /**
+     * True after {@link #cancel()}.  Guarded by this.
+     */
+    private boolean cancelled = false;
+
+    /**
+     * Threads in spawn operations, mapped to the number of operations each
+     * thread is in, as an int[1].  Guarded by this.
+     */
+    private final Map running = new HashMap();
+
+    /**
+     * Threads interrupted by {@link #cancel()} that haven't left their
+     * operations yet.  Guarded by this.
+     */
+    private final Set interrupted = new HashSet();
+
+    /**
+     * Spawnables being started.  Guarded by this.
+     */
+    private final List starting = new ArrayList();
+
+    /**
+     * Abort all operations on spawns using this token, now and from now on.
+     * Cancelling more than once does nothing.
+     */
+    public void cancel() {
+        Spawnable[] toStop;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            for (Iterator i = running.keySet().iterator(); i.hasNext(); ) {
+                Thread thread = (Thread)i.next();
+                interrupted.add(thread);
+                thread.interrupt();
+            }
+            toStop = (Spawnable[])starting.toArray(new Spawnable[starting.size()]);
+        }
+
+        // Stopping can take a while, don't hold the lock
+        for (int i = 0; i < toStop.length; i++) {
+            try {
+                toStop[i].stop();
+            } catch (RuntimeException e) {
+                // Stop the others anyway
+                LOG.warn("Stopping " + toStop[i] + " on cancel failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return True if {@link #cancel()} has been called.
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * The current thread is starting an operation that may block.  Must be
+     * followed by {@link #exit()}.
+     *
+     * @throws InterruptedIOException if the token has been cancelled.
+     */
+    synchronized void enter() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Cancelled");
+        }
+        Thread current = Thread.currentThread();
+        int[] depth = (int[])running.get(current);
+        if (depth == null) {
+            depth = new int[1];
+            running.put(current, depth);
+        }
+        depth[0]++;
+    }
+
+    /**
+     * The current thread is starting a spawnable, which should be stopped if
+     * we're cancelled.  Must be followed by {@link #exit(Spawnable)}.
+     *
+     * @param spawnable The spawnable being started.
+     * @throws InterruptedIOException if the token has been cancelled.
+     */
+    synchronized void enter(Spawnable spawnable) throws InterruptedIOException {
+        enter();
+        starting.add(spawnable);
+    }
+
+    /**
+     * The current thread is done with an operation started by
+     * {@link #enter()}.
+     */
+    synchronized void exit() {
+        Thread current = Thread.currentThread();
+        int[] depth = (int[])running.get(current);
+        if (depth == null) {
+            return;
+        }
+        depth[0]--;
+        if (depth[0] > 0) {
+            return;
+        }
+        running.remove(current);
+        if (interrupted.remove(current)) {
+            // Don't leave our interrupt behind for the caller to trip over.
+            // Interrupts from anybody else are none of our business.
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * The current thread is done starting a spawnable.
+     *
+     * @param spawnable The spawnable passed to {@link #enter(Spawnable)}.
+     */
+    synchronized void exit(Spawnable spawnable) {
+        starting.remove(spawnable);
+        exit();
+    }
+}
@@ -0,0 +1,291 @@
+package expectj;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Holds everything received on one stream of a spawn.
+ * <p>
+ * Bytes are decoded by a single writer thread straight into fixed size
+ * segments of chars, which never move once written.  The writer publishes how much has been written
+ * through a volatile length, so readers can take immutable snapshots of the
+ * contents without copying anything and without ever blocking the writer.
+ */
+class CaptureBuffer {
+    /**
+     * log2 of {@link #SEGMENT_SIZE}.
+     */
+    private static final int SEGMENT_SHIFT = 12;
+
+    /**
+     * The number of chars in each segment.
+     */
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    /**
+     * For finding the offset of a char within its segment.
+     */
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * All segments, the directory is replaced by a larger copy when it fills
+     * up.  Published to readers through {@link #length}.
+     */
+    private char[][] segments = new char[4][];
+
+    /**
+     * The number of chars written.  Writing this publishes everything
+     * appended before the write.
+     */
+    private volatile int length = 0;
+
+    /**
+     * The most recent full snapshot, handed out again as long as nothing new
+     * has been appended.
+     */
+    private volatile Snapshot latest = new Snapshot(segments, 0, 0);
+
+    /**
+     * Turns appended bytes into chars.  Only used by the writer thread.
+     */
+    private final CharsetDecoder decoder;
+
+    /**
+     * The end of the latest append that isn't a whole char yet, like the
+     * first half of a split UTF-8 sequence.  Only used by the writer thread.
+     */
+    private byte[] leftover = new byte[16];
+
+    /**
+     * The number of bytes in {@link #leftover}.
+     */
+    private int leftoverLength = 0;
+
+    /**
+     * Create a capture buffer decoding bytes using the platform's default
+     * charset.
+     */
+    CaptureBuffer() {
+        this(Charset.defaultCharset());
+    }
+
+    /**
+     * Create a capture buffer.
+     *
+     * @param charset Decodes appended bytes.  Bytes that don't decode are
+     * replaced, like <code>new String(byte[])</code> does.
+     */
+    CaptureBuffer(Charset charset) {
+        decoder = charset.newDecoder();
+        decoder.onMalformedInput(CodingErrorAction.REPLACE);
+        decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Decode and append bytes.  A char split between two appends is
+     * appended once its last byte arrives.  Must only be called by one
+     * thread.
+     *
+     * @param bytes The bytes to append.
+     * @param offset Where in bytes to start.
+     * @param count The number of bytes to append.
+     */
+    void append(byte[] bytes, int offset, int count) {
+        ByteBuffer in;
+        if (leftoverLength == 0) {
+            in = ByteBuffer.wrap(bytes, offset, count);
+        } else {
+            // Rare, only happens when a char is split between reads
+            byte[] joined = new byte[leftoverLength + count];
+            System.arraycopy(leftover, 0, joined, 0, leftoverLength);
+            System.arraycopy(bytes, offset, joined, leftoverLength, count);
+            in = ByteBuffer.wrap(joined);
+        }
+        decode(in, false);
+
+        leftoverLength = in.remaining();
+        if (leftover.length < leftoverLength) {
+            leftover = new byte[leftoverLength];
+        }
+        in.get(leftover, 0, leftoverLength);
+    }
+
+    /**
+     * Append whatever is left of a char split at the end of the stream, as a
+     * replacement char.  Must only be called by the thread appending.
+     */
+    void finish() {
+        ByteBuffer in = ByteBuffer.wrap(leftover, 0, leftoverLength);
+        leftoverLength = 0;
+        decode(in, true);
+        decoder.reset();
+    }
+
+    /**
+     * Decode bytes into our segments and publish the new length.
+     *
+     * @param in The bytes to decode.  Bytes that don't make up a whole char
+     * are left in the buffer unless this is the end of input.
+     * @param endOfInput True if no more bytes will follow.
+     */
+    private void decode(ByteBuffer in, boolean endOfInput) {
+        int position = length;
+        boolean flushing = false;
+        while (true) {
+            if (position > Integer.MAX_VALUE - SEGMENT_SIZE) {
+                throw new IllegalStateException("Capture buffer full");
+            }
+            int segmentIndex = position >>> SEGMENT_SHIFT;
+            if (segmentIndex >= segments.length) {
+                char[][] grown = new char[segments.length * 2][];
+                System.arraycopy(segments, 0, grown, 0, segments.length);
+                segments = grown;
+            }
+            if (segments[segmentIndex] == null) {
+                segments[segmentIndex] = new char[SEGMENT_SIZE];
+            }
+            int segmentOffset = position & SEGMENT_MASK;
+            CharBuffer out = CharBuffer.wrap(segments[segmentIndex], segmentOffset,
+                                             SEGMENT_SIZE - segmentOffset);
+            CoderResult result;
+            if (flushing) {
+                result = decoder.flush(out);
+            } else {
+                result = decoder.decode(in, out, endOfInput);
+            }
+            position = (segmentIndex << SEGMENT_SHIFT) + out.position();
+            if (result.isOverflow()) {
+                // This segment is full, go on with the next one
+                continue;
+            }
+            if (!endOfInput || flushing) {
+                break;
+            }
+            flushing = true;
+        }
+        length = position;
+    }
+
+    /**
+     * @return The number of chars appended so far.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Get an immutable view of everything appended so far.
+     *
+     * @return A snapshot of the contents.
+     */
+    CharSequence snapshot() {
+        // Reading length first makes the segments written before it visible
+        int end = length;
+        Snapshot snapshot = latest;
+        if (snapshot.length() != end) {
+            snapshot = new Snapshot(segments, 0, end);
+            latest = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Get an immutable view of what has been appended since a given offset.
+     *
+     * @param offset The number of chars to skip, typically the length of a
+     * previous snapshot.
+     * @return A snapshot of the contents starting at offset.
+     */
+    CharSequence since(int offset) {
+        // Reading length first makes the segments written before it visible
+        int end = length;
+        if (offset < 0 || offset > end) {
+            throw new IndexOutOfBoundsException("Offset must be 0-" + end + ", was " + offset);
+        }
+        return new Snapshot(segments, offset, end);
+    }
+
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * An immutable view of a part of a capture buffer.
+     */
+    private static class Snapshot implements CharSequence {
+        /**
+         * The segment directory as it looked when this snapshot was taken.
+         */
+        private final char[][] segments;
+
+        /**
+         * Where in the capture buffer this snapshot starts.
+         */
+        private final int start;
+
+        /**
+         * Where in the capture buffer this snapshot ends.
+         */
+        private final int end;
+
+        /**
+         * Cached result of {@link #toString()}.
+         */
+        private String string;
+
+        /**
+         * @param segments The segment directory.
+         * @param start Where in the capture buffer to start.
+         * @param end Where in the capture buffer to end.
+         */
+        Snapshot(char[][] segments, int start, int end) {
+            this.segments = segments;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int length() {
+            return end - start;
+        }
+
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("Index must be 0-" + (end - start - 1)
+                                                    + ", was " + index);
+            }
+            int position = start + index;
+            return segments[position >>> SEGMENT_SHIFT][position & SEGMENT_MASK];
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > end - start || from > to) {
+                throw new IndexOutOfBoundsException("Bad range " + from + "-" + to
+                                                    + " for length " + (end - start));
+            }
+            return new Snapshot(segments, start + from, start + to);
+        }
+
+        public String toString() {
+            // Racy caching is fine, all threads compute the same string
+            String result = string;
+            if (result == null) {
+                char[] chars = new char[end - start];
+                int position = start;
+                while (position < end) {
+                    int offset = position & SEGMENT_MASK;
+                    int count = Math.min(end - position, SEGMENT_SIZE - offset);
+                    System.arraycopy(segments[position >>> SEGMENT_SHIFT], offset,
+                                     chars, position - start, count);
+                    position += count;
+                }
+                result = new String(chars);
+                string = result;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package expectj;
+
+/**
+ * Finds a fixed string in text, ignoring case.
+ * <p>
+ * This is a Boyer-Moore-Horspool search, comparing chars after folding them
+ * to upper case.  Spawn output is decoded as ISO-8859-1, so folding and skip
+ * lookups are done with tables for chars below 256.  On long text without
+ * matches, most chars are never looked at.
+ * <p>
+ * The text is searched in place, so long lines don't need to be copied or
+ * upper cased before searching.
+ */
+final class CaseInsensitiveSearch {
+    /**
+     * Upper case versions of chars 0-255.
+     */
+    private static final char[] FOLD = new char[256];
+
+    static {
+        for (int i = 0; i < FOLD.length; i++) {
+            FOLD[i] = Character.toUpperCase((char)i);
+        }
+    }
+
+    /**
+     * What we look for, folded to upper case.
+     */
+    private final char[] pattern;
+
+    /**
+     * How far to move the search window when the last char of the window is
+     * c, indexed by c.
+     */
+    private final int[] skip = new int[256];
+
+    /**
+     * Prepare a search.
+     *
+     * @param pattern The string to look for.
+     */
+    CaseInsensitiveSearch(String pattern) {
+        this.pattern = new char[pattern.length()];
+        for (int i = 0; i < this.pattern.length; i++) {
+            this.pattern[i] = fold(pattern.charAt(i));
+        }
+
+        int length = this.pattern.length;
+        for (int c = 0; c < skip.length; c++) {
+            skip[c] = Math.max(length, 1);
+        }
+        for (int c = 0; c < skip.length; c++) {
+            for (int i = 0; i < length - 1; i++) {
+                if (FOLD[c] == this.pattern[i]) {
+                    skip[c] = length - 1 - i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fold a char to upper case.
+     *
+     * @param c The char to fold.
+     * @return c in upper case.
+     */
+    private static char fold(char c) {
+        if (c < 256) {
+            return FOLD[c];
+        }
+        return Character.toUpperCase(c);
+    }
+
+    /**
+     * @return The length of the string we look for.
+     */
+    int length() {
+        return pattern.length;
+    }
+
+    /**
+     * Look for the pattern.
+     *
+     * @param text The text to search.
+     * @param from Where in the text the match may start at the earliest.
+     * @param to Where in the text the match must end at the latest.
+     * @return Where the first match starts, or -1 if there is no match.
+     */
+    int indexOf(CharSequence text, int from, int to) {
+        int length = pattern.length;
+        if (length == 0) {
+            return (from <= to) ? from : -1;
+        }
+
+        int last = length - 1;
+        char lastChar = pattern[last];
+        for (int start = from; start + length <= to; ) {
+            char c = text.charAt(start + last);
+            if (fold(c) == lastChar) {
+                int i = last - 1;
+                while (i >= 0 && fold(text.charAt(start + i)) == pattern[i]) {
+                    i--;
+                }
+                if (i < 0) {
+                    return start;
+                }
+            }
+            start += (c < 256) ? skip[c] : 1;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,284 @@
+package expectj;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A compiled expect script, created by {@link DialogDefinition#compile()}.
+ * <p>
+ * A dialog is an automaton.  In each state it waits for any of a number of
+ * patterns, sends something depending on which pattern was found, and moves
+ * on to the next state.  It stops when it reaches a state without any
+ * patterns to wait for.
+ * <p>
+ * Dialogs are immutable.  One dialog can be run against any number of spawns,
+ * from any number of threads at the same time.
+ *
+ * @see DialogDefinition
+ */
+public final class Dialog {
+    /**
+     * Timeout value meaning "use the default timeout of the spawn".
+     */
+    static final long SPAWN_DEFAULT_TIMEOUT = -2;
+
+    /**
+     * The state names, indexed by state number.
+     */
+    private final String[] names;
+
+    /**
+     * The patterns to wait for in each state.
+     */
+    private final ExpectPattern[][] patterns;
+
+    /**
+     * What to send on each pattern in each state, null entries mean send
+     * nothing.
+     */
+    private final Template[][] sends;
+
+    /**
+     * The state to move to on each pattern in each state.
+     */
+    private final int[][] next;
+
+    /**
+     * The timeout in seconds for each state.
+     */
+    private final long[] timeouts;
+
+    /**
+     * What to send on timeout in each state.
+     */
+    private final Template[] timeoutSends;
+
+    /**
+     * The state to move to on timeout in each state, -1 to fail with a
+     * {@link TimeoutException}.
+     */
+    private final int[] timeoutNext;
+
+    /**
+     * The state we start in.
+     */
+    private final int initial;
+
+    /**
+     * Created by {@link DialogDefinition#compile()}.
+     *
+     * @param names The state names, indexed by state number.
+     * @param patterns The patterns to wait for in each state.
+     * @param sends What to send on each pattern in each state.
+     * @param next The state to move to on each pattern in each state.
+     * @param timeouts The timeout in seconds for each state.
+     * @param timeoutSends What to send on timeout in each state.
+     * @param timeoutNext The state to move to on timeout in each state, -1 to
+     * fail.
+     * @param initial The state to start in.
+     */
+    Dialog(String[] names,
+           ExpectPattern[][] patterns,
+           String[][] sends,
+           int[][] next,
+           long[] timeouts,
+           String[] timeoutSends,
+           int[] timeoutNext,
+           int initial)
+    {
+        this.names = names;
+        this.patterns = patterns;
+        this.sends = new Template[sends.length][];
+        for (int state = 0; state < sends.length; state++) {
+            this.sends[state] = new Template[sends[state].length];
+            for (int i = 0; i < sends[state].length; i++) {
+                this.sends[state][i] = Template.compile(sends[state][i]);
+            }
+        }
+        this.next = next;
+        this.timeouts = timeouts;
+        this.timeoutSends = new Template[timeoutSends.length];
+        for (int state = 0; state < timeoutSends.length; state++) {
+            this.timeoutSends[state] = Template.compile(timeoutSends[state]);
+        }
+        this.timeoutNext = timeoutNext;
+        this.initial = initial;
+    }
+
+    /**
+     * Run this dialog against a spawn.
+     *
+     * @param spawn The spawn to talk to.
+     * @return The name of the final state.
+     * @throws IOException on trouble talking to the spawn.
+     * @throws TimeoutException if a state without a timeout transition times
+     * out.
+     * @see #run(Spawn, Map)
+     */
+    public String run(Spawn spawn) throws IOException, TimeoutException {
+        return run(spawn, null);
+    }
+
+    /**
+     * Run this dialog against a spawn.
+     *
+     * @param spawn The spawn to talk to.
+     * @param variables Values for the ${name} references in the sends of the
+     * dialog, keyed by name.  May be null if there are no references.
+     * @return The name of the final state.
+     * @throws IOException on trouble talking to the spawn.
+     * @throws TimeoutException if a state without a timeout transition times
+     * out.
+     * @throws IllegalArgumentException if a referenced variable is missing.
+     */
+    public String run(Spawn spawn, Map variables) throws IOException, TimeoutException {
+        int state = initial;
+        while (patterns[state].length > 0) {
+            ExpectMatch match;
+            try {
+                if (timeouts[state] == SPAWN_DEFAULT_TIMEOUT) {
+                    match = spawn.expect(patterns[state]);
+                } else {
+                    match = spawn.expect(patterns[state], timeouts[state]);
+                }
+            } catch (TimeoutException e) {
+                if (timeoutNext[state] == -1) {
+                    throw e;
+                }
+                send(spawn, timeoutSends[state], variables);
+                state = timeoutNext[state];
+                continue;
+            }
+            send(spawn, sends[state][match.getIndex()], variables);
+            state = next[state][match.getIndex()];
+        }
+        return names[state];
+    }
+
+    /**
+     * Run this dialog against a spawn on another thread.
+     *
+     * @param spawn The spawn to talk to.
+     * @param variables Values for the ${name} references in the sends of the
+     * dialog, keyed by name.  May be null if there are no references.
+     * @param executor Runs the dialog.  Sharing one thread pool between many
+     * spawns is fine.
+     * @return The name of the final state, or the exception thrown by
+     * {@link #run(Spawn, Map)}, when the run is done.
+     */
+    public Future runAsync(final Spawn spawn, final Map variables, Executor executor) {
+        FutureTask task = new FutureTask(new Callable() {
+            public Object call() throws Exception {
+                return run(spawn, variables);
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Send a template to a spawn.
+     *
+     * @param spawn The spawn to send to.
+     * @param template What to send, null to send nothing.
+     * @param variables Values for the template's references.
+     * @throws IOException on trouble sending.
+     */
+    private static void send(Spawn spawn, Template template, Map variables) throws IOException {
+        if (template != null) {
+            spawn.send(template.expand(variables));
+        }
+    }
+
+    /**
+     * @return The names of all states in this dialog.
+     */
+    public String[] getStateNames() {
+        return (String[])names.clone();
+    }
+
+    public String toString() {
+        return "Dialog starting in " + names[initial] + " with " + names.length + " states";
+    }
+
+    /**
+     * A string to send with ${name} references resolved at run time.
+     */
+    private static final class Template {
+        /**
+         * Literal text, one more part than there are references.
+         */
+        private final String[] literals;
+
+        /**
+         * Variable names, referenced between the literals.
+         */
+        private final String[] references;
+
+        /**
+         * @param literals Literal text.
+         * @param references Variable names.
+         */
+        private Template(String[] literals, String[] references) {
+            this.literals = literals;
+            this.references = references;
+        }
+
+        /**
+         * Parse a string with ${name} references.
+         *
+         * @param text The string to parse, may be null.
+         * @return The parsed template, or null if text was null.
+         */
+        static Template compile(String text) {
+            if (text == null) {
+                return null;
+            }
+            List literals = new ArrayList();
+            List references = new ArrayList();
+            int position = 0;
+            while (true) {
+                int start = text.indexOf("${", position);
+                int end = (start == -1) ? -1 : text.indexOf('}', start + 2);
+                if (end == -1) {
+                    literals.add(text.substring(position));
+                    break;
+                }
+                literals.add(text.substring(position, start));
+                references.add(text.substring(start + 2, end));
+                position = end + 1;
+            }
+            return new Template((String[])literals.toArray(new String[literals.size()]),
+                                (String[])references.toArray(new String[references.size()]));
+        }
+
+        /**
+         * Resolve all references.
+         *
+         * @param variables Values keyed by name.
+         * @return The string to send.
+         * @throws IllegalArgumentException if a referenced variable is missing.
+         */
+        String expand(Map variables) {
+            if (references.length == 0) {
+                return literals[0];
+            }
+            StringBuilder result = new StringBuilder(literals[0]);
+            for (int i = 0; i < references.length; i++) {
+                Object value = (variables == null) ? null : variables.get(references[i]);
+                if (value == null) {
+                    throw new IllegalArgumentException("No value for ${" + references[i] + "}");
+                }
+                result.append(value);
+                result.append(literals[i + 1]);
+            }
+            return result.toString();
+        }
+    }
+}
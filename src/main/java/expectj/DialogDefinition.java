@@ -0,0 +1,209 @@
+package expectj;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes an expect script as states and transitions, for compiling into a
+ * {@link Dialog}.
+ * <p>
+ * Example, logging in and running one command:
+ * <pre>
+ * DialogDefinition login = new DialogDefinition("login");
+ * login.addTransition("login", "login:", "${user}\n", "password");
+ * login.addTransition("password", "password:", "${password}\n", "prompt");
+ * login.addTransition("password", "incorrect", null, "failed");
+ * login.addTransition("prompt", "$", "exit\n", "done");
+ * login.setTimeout("prompt", 30);
+ * Dialog dialog = login.compile();
+ * </pre>
+ * States that have no transitions of their own, like "failed" and "done"
+ * above, end the dialog.
+ * <p>
+ * Definitions are not thread safe.  Once compiled, a definition can be
+ * changed and compiled again without affecting dialogs compiled earlier.
+ */
+public class DialogDefinition {
+    /**
+     * Everything we know about one state.
+     */
+    private static class State {
+        /**
+         * The patterns to wait for.
+         */
+        final List patterns = new ArrayList();
+
+        /**
+         * What to send on each pattern.
+         */
+        final List sends = new ArrayList();
+
+        /**
+         * The names of the states to move to on each pattern.
+         */
+        final List next = new ArrayList();
+
+        /**
+         * The timeout in seconds.
+         */
+        long timeout = Dialog.SPAWN_DEFAULT_TIMEOUT;
+
+        /**
+         * What to send on timeout.
+         */
+        String timeoutSend = null;
+
+        /**
+         * The name of the state to move to on timeout, null to fail.
+         */
+        String timeoutNext = null;
+    }
+
+    /**
+     * The name of the state to start in.
+     */
+    private final String initial;
+
+    /**
+     * All states mentioned so far, in the order they were mentioned.
+     */
+    private final List stateNames = new ArrayList();
+
+    /**
+     * State name to {@link State}.
+     */
+    private final Map states = new HashMap();
+
+    /**
+     * Create a new dialog definition.
+     *
+     * @param initial The name of the state to start in.
+     */
+    public DialogDefinition(String initial) {
+        this.initial = initial;
+        getState(initial);
+    }
+
+    /**
+     * Find a state, creating it if it doesn't exist.
+     *
+     * @param name The name of the state.
+     * @return The state.
+     */
+    private State getState(String name) {
+        if (name == null) {
+            throw new NullPointerException("State name must not be null");
+        }
+        State state = (State)states.get(name);
+        if (state == null) {
+            state = new State();
+            states.put(name, state);
+            stateNames.add(name);
+        }
+        return state;
+    }
+
+    /**
+     * Add a transition.
+     *
+     * @param from The state in which to wait for the pattern.
+     * @param pattern The pattern to wait for.
+     * @param send What to send when the pattern is found, may contain ${name}
+     * references to variables passed to {@link Dialog#run(Spawn, Map)}.  Null
+     * means send nothing.
+     * @param to The state to move to after sending.
+     */
+    public void addTransition(String from, ExpectPattern pattern, String send, String to) {
+        if (pattern == null) {
+            throw new NullPointerException("Pattern must not be null");
+        }
+        State state = getState(from);
+        getState(to);
+        state.patterns.add(pattern);
+        state.sends.add(send);
+        state.next.add(to);
+    }
+
+    /**
+     * Add a transition on a pattern found on stdout.
+     *
+     * @param from The state in which to wait for the pattern.
+     * @param pattern The case-insensitive substring to wait for.
+     * @param send What to send when the pattern is found, may be null.
+     * @param to The state to move to after sending.
+     * @see #addTransition(String, ExpectPattern, String, String)
+     */
+    public void addTransition(String from, String pattern, String send, String to) {
+        addTransition(from, ExpectPattern.stdout(pattern), send, to);
+    }
+
+    /**
+     * Set how long to wait for the patterns of a state.  Unless set, the
+     * default timeout of the spawn is used.
+     *
+     * @param stateName The state.
+     * @param timeoutSeconds The timeout in seconds, -1 means wait forever.
+     */
+    public void setTimeout(String stateName, long timeoutSeconds) {
+        if (timeoutSeconds < -1) {
+            throw new IllegalArgumentException("Timeout must be >= -1, was " + timeoutSeconds);
+        }
+        getState(stateName).timeout = timeoutSeconds;
+    }
+
+    /**
+     * Decide what to do when a state times out.  Unless set, the dialog fails
+     * with a {@link TimeoutException}.
+     *
+     * @param from The state that timed out.
+     * @param send What to send on timeout, may be null.
+     * @param to The state to move to after sending.
+     */
+    public void setTimeoutTransition(String from, String send, String to) {
+        State state = getState(from);
+        getState(to);
+        state.timeoutSend = send;
+        state.timeoutNext = to;
+    }
+
+    /**
+     * Compile this definition into an immutable dialog.
+     *
+     * @return A dialog that can be run any number of times.
+     */
+    public Dialog compile() {
+        int count = stateNames.size();
+        String[] names = (String[])stateNames.toArray(new String[count]);
+        Map numbers = new HashMap();
+        for (int i = 0; i < count; i++) {
+            numbers.put(names[i], Integer.valueOf(i));
+        }
+
+        ExpectPattern[][] patterns = new ExpectPattern[count][];
+        String[][] sends = new String[count][];
+        int[][] next = new int[count][];
+        long[] timeouts = new long[count];
+        String[] timeoutSends = new String[count];
+        int[] timeoutNext = new int[count];
+        for (int i = 0; i < count; i++) {
+            State state = (State)states.get(names[i]);
+            patterns[i] = (ExpectPattern[])state.patterns.toArray(new ExpectPattern[0]);
+            sends[i] = (String[])state.sends.toArray(new String[0]);
+            next[i] = new int[state.next.size()];
+            for (int j = 0; j < next[i].length; j++) {
+                next[i][j] = ((Integer)numbers.get(state.next.get(j))).intValue();
+            }
+            timeouts[i] = state.timeout;
+            timeoutSends[i] = state.timeoutSend;
+            timeoutNext[i] = (state.timeoutNext == null)
+                ? -1
+                : ((Integer)numbers.get(state.timeoutNext)).intValue();
+        }
+
+        int initialNumber = ((Integer)numbers.get(initial)).intValue();
+        return new Dialog(names, patterns, sends, next,
+                          timeouts, timeoutSends, timeoutNext, initialNumber);
+    }
+}
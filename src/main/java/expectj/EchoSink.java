@@ -0,0 +1,23 @@
+package expectj;
+
+/**
+ * Receives a copy of everything spawns print, instead of the console.
+ *
+ * @see ExpectJ#setEchoSink(EchoSink)
+ * @see AsyncEchoSink
+ */
+public interface EchoSink {
+    /**
+     * Called by the threads reading spawn output for every chunk read.  This
+     * method should return quickly, since the spawn's output isn't matched
+     * against until it does.
+     *
+     * @param session Identifies the spawn the output comes from.
+     * @param stream {@link Spawn#STDOUT} or {@link Spawn#STDERR}.
+     * @param bytes The output.  Will be overwritten after this method
+     * returns, so copy anything you want to keep.
+     * @param offset Where in bytes the output starts.
+     * @param length The number of bytes of output.
+     */
+    public void echo(String session, int stream, byte[] bytes, int offset, int length);
+}
@@ -0,0 +1,114 @@
+package expectj;
+
+/**
+ * What is known about a spawn after it has closed.
+ *
+ * @see Spawn#getExitInfo()
+ */
+public final class ExitInfo {
+    /**
+     * The spawn's exit value, if {@link #hasExitValue}.
+     */
+    private final int exitValue;
+
+    /**
+     * False if the spawnable couldn't tell its exit value.
+     */
+    private final boolean hasExitValue;
+
+    /**
+     * Milliseconds from the spawn starting to it closing.
+     */
+    private final long durationMillis;
+
+    /**
+     * The number of bytes sent to the spawn.
+     */
+    private final long bytesSent;
+
+    /**
+     * The number of bytes read from the spawn's stdout.
+     */
+    private final long stdoutBytes;
+
+    /**
+     * The number of bytes read from the spawn's stderr.
+     */
+    private final long stderrBytes;
+
+    /**
+     * @param exitValue The spawn's exit value, ignored unless hasExitValue.
+     * @param hasExitValue False if the spawnable couldn't tell its exit value.
+     * @param durationMillis Milliseconds from the spawn starting to it closing.
+     * @param bytesSent The number of bytes sent to the spawn.
+     * @param stdoutBytes The number of bytes read from the spawn's stdout.
+     * @param stderrBytes The number of bytes read from the spawn's stderr.
+     */
+    ExitInfo(int exitValue, boolean hasExitValue, long durationMillis,
+             long bytesSent, long stdoutBytes, long stderrBytes)
+    {
+        this.exitValue = exitValue;
+        this.hasExitValue = hasExitValue;
+        this.durationMillis = durationMillis;
+        this.bytesSent = bytesSent;
+        this.stdoutBytes = stdoutBytes;
+        this.stderrBytes = stderrBytes;
+    }
+
+    /**
+     * @return The spawn's exit value.
+     * @throws ExpectJException if the spawnable couldn't tell its exit value.
+     * @see Spawnable#getExitValue()
+     */
+    public int getExitValue() throws ExpectJException {
+        if (!hasExitValue) {
+            throw new ExpectJException("Exit value not available");
+        }
+        return exitValue;
+    }
+
+    /**
+     * @return False if the spawnable couldn't tell its exit value.
+     */
+    public boolean hasExitValue() {
+        return hasExitValue;
+    }
+
+    /**
+     * @return Milliseconds from the spawn starting to it closing.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return The number of bytes sent to the spawn.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return The number of bytes read from the spawn's stdout when it
+     * closed.
+     */
+    public long getStdoutBytes() {
+        return stdoutBytes;
+    }
+
+    /**
+     * @return The number of bytes read from the spawn's stderr when it
+     * closed, 0 if it has no stderr.
+     */
+    public long getStderrBytes() {
+        return stderrBytes;
+    }
+
+    public String toString() {
+        return (hasExitValue ? "exit value " + exitValue : "unknown exit value")
+            + " after " + durationMillis + "ms, "
+            + bytesSent + " bytes sent, "
+            + stdoutBytes + " bytes on stdout, "
+            + stderrBytes + " bytes on stderr";
+    }
+}
@@ -18,6 +18,45 @@ public class ExpectJ {
     /** Echo spawn output to the console. */
     private final boolean m_bEcho;
 
+    /** The most bytes to read at a time from spawn output streams. */
+    private int m_readBufferSize = StreamPiper.DEFAULT_MAX_BUFFER_SIZE;
+
+    /** The fewest bytes to read at a time from spawn output streams. */
+    private int m_minReadBufferSize = StreamPiper.DEFAULT_MIN_BUFFER_SIZE;
+
+    /** Keep everything spawns print, for the get*Contents() methods. */
+    private boolean m_bCaptureOutput = true;
+
+    /** The number of terminal rows to emulate, 0 for no terminal emulation. */
+    private int m_terminalRows = 0;
+
+    /** The number of terminal columns to emulate. */
+    private int m_terminalColumns = 0;
+
+    /** Which {@link OutputFilters} to apply to spawn output. */
+    private int m_outputFilters = 0;
+
+    /** Where to echo spawn output, null for the console. */
+    private EchoSink m_echoSink = null;
+
+    /** Hibernate spawns after this many idle milliseconds, 0 for never. */
+    private long m_hibernateAfterMillis = 0;
+
+    /** Give up waiting after this many seconds without output, -1 for never. */
+    private long m_lIdleTimeOutSeconds = -1;
+
+    /** Probe network peers after this many quiet seconds, 0 for never. */
+    private int m_keepAliveSeconds = 0;
+
+    /** Aborts blocking spawn operations, null for none. */
+    private CancellationToken m_cancellationToken = null;
+
+    /** How long stopped processes get to terminate before being killed. */
+    private long m_stopGraceMillis = ProcessSpawn.DEFAULT_STOP_GRACE_MILLIS;
+
+    /** Runs close listeners, null for a shared default executor. */
+    private java.util.concurrent.Executor m_closeListenerExecutor = null;
+
     /**
      * Create a new ExpectJ with specified timeout setting and console echo enabled.
      * @param defaultTimeoutSeconds default time out in seconds for the expect
@@ -46,6 +85,333 @@ public class ExpectJ {
         this(-1, true);
     }
 
+    /**
+     * Set a fixed number of bytes to read at a time from the output streams
+     * of spawns created after this call.  Larger buffers mean fewer reads,
+     * writes and wake-ups when spawns produce lots of output.
+     *
+     * @param bytes The read buffer size in bytes.
+     * @see #setReadBufferSize(int, int)
+     */
+    public void setReadBufferSize(int bytes) {
+        setReadBufferSize(bytes, bytes);
+    }
+
+    /**
+     * Let each output stream of spawns created after this call find its own
+     * read buffer size.  A stream's buffer grows while reads fill it, and
+     * shrinks again while reads only use a small part of it.  This way bulk
+     * output is read in few large chunks, while mostly quiet streams don't
+     * hold on to large buffers.
+     *
+     * @param min The smallest read buffer size in bytes.  Defaults to 512.
+     * @param max The largest read buffer size in bytes.  Defaults to 16384.
+     * @see Spawn#getStreamMetrics(int)
+     */
+    public void setReadBufferSize(int min, int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Bad read buffer size range " + min + "-" + max);
+        }
+        m_minReadBufferSize = min;
+        m_readBufferSize = max;
+    }
+
+    /**
+     * Decide whether spawns created after this call should keep everything
+     * they print.  Spawns created without capturing use constant memory no
+     * matter how much they print, but their get*Contents() methods always
+     * return nothing.
+     *
+     * @param capture False to not capture output.  Defaults to true.
+     * @see Spawn#getCurrentStandardOutContents()
+     * @see Spawn#expectEach(String, String, RecordHandler, long)
+     */
+    public void setCaptureOutput(boolean capture) {
+        m_bCaptureOutput = capture;
+    }
+
+    /**
+     * Make spawns created after this call print their stdout on an emulated
+     * VT100 / ANSI terminal, for use with full-screen applications.
+     *
+     * @param rows The number of rows on the terminal, 0 to turn terminal
+     * emulation off.  Defaults to 0.
+     * @param columns The number of columns on the terminal.
+     * @see Spawn#getScreen()
+     * @see Spawn#expectScreen(String, int, int, long)
+     */
+    public void setTerminalEmulation(int rows, int columns) {
+        if (rows < 0 || (rows > 0 && columns < 1)) {
+            throw new IllegalArgumentException("Bad terminal size " + rows + "x" + columns);
+        }
+        m_terminalRows = rows;
+        m_terminalColumns = columns;
+    }
+
+    /**
+     * Clean up the output of spawns created after this call before it is
+     * matched against and captured.  Each output stream of each spawn gets
+     * its own filter instances.
+     *
+     * @param flags Any combination of {@link OutputFilters#STRIP_ANSI},
+     * {@link OutputFilters#NORMALIZE_NEWLINES} and
+     * {@link OutputFilters#FOLD_BACKSPACES}.  Defaults to 0, no filtering.
+     * @see Spawn#setOutputFilter(int, OutputFilter)
+     */
+    public void setOutputFilters(int flags) {
+        // Validate the flags
+        OutputFilters.create(flags);
+        m_outputFilters = flags;
+    }
+
+    /**
+     * @return Which {@link OutputFilters} to apply to spawn output.
+     * @see #setOutputFilters(int)
+     */
+    int getOutputFilters() {
+        return m_outputFilters;
+    }
+
+    /**
+     * Echo the output of spawns created after this call to a sink instead of
+     * to the console.  Setting a sink turns echo on even if this ExpectJ was
+     * created without echo.
+     *
+     * @param sink Where to echo spawn output, null to go back to echoing to
+     * the console if echo is enabled.
+     * @see AsyncEchoSink
+     */
+    public void setEchoSink(EchoSink sink) {
+        m_echoSink = sink;
+    }
+
+    /**
+     * @return Where to echo spawn output, null for the console.
+     * @see #setEchoSink(EchoSink)
+     */
+    EchoSink getEchoSink() {
+        return m_echoSink;
+    }
+
+    /**
+     * Make spawns created after this call release their reader threads and
+     * buffers when they have been idle for a while.
+     * <p>
+     * A hibernating spawn has its output streams checked for new data by a
+     * single thread shared by all hibernating spawns, and wakes up by itself
+     * when data arrives, or when it is sent to or expected on.  This lets
+     * thousands of mostly quiet sessions stay open without thousands of
+     * threads.
+     * <p>
+     * The price is latency: to notice going idle, a spawn's reader threads
+     * poll for output instead of blocking, so output can be picked up a few
+     * tens of milliseconds late, or up to a tenth of a second late while
+     * hibernating.  Output streams that end while the spawn is still running
+     * are noticed only when the spawn closes.
+     *
+     * @param idleMillis Hibernate after this many milliseconds without
+     * output, sends or expects.  0 to never hibernate, which is the default.
+     * @see Spawn#isHibernating()
+     */
+    public void setHibernateAfter(long idleMillis) {
+        if (idleMillis < 0) {
+            throw new IllegalArgumentException("Idle time must be >= 0, was " + idleMillis);
+        }
+        m_hibernateAfterMillis = idleMillis;
+    }
+
+    /**
+     * @return Hibernate spawns after this many idle milliseconds, 0 for never.
+     * @see #setHibernateAfter(long)
+     */
+    long getHibernateAfterMillis() {
+        return m_hibernateAfterMillis;
+    }
+
+    /**
+     * Make expect calls on spawns created after this call give up when the
+     * spawn has been quiet for a while, even if their timeout hasn't run out.
+     * <p>
+     * A hung device that stopped talking would otherwise keep the caller
+     * waiting for the whole timeout.  The idle time counts from the last
+     * output received, or from when the wait started if that was later.
+     *
+     * @param idleTimeOutSeconds Give up after this many seconds without
+     * output.  -1 to only use the expect timeouts, which is the default.
+     * @see Spawn#setIdleTimeout(long)
+     */
+    public void setIdleTimeout(long idleTimeOutSeconds) {
+        if (idleTimeOutSeconds < 1 && idleTimeOutSeconds != -1) {
+            throw new IllegalArgumentException("Idle timeout must be >= 1 or -1, was "
+                                               + idleTimeOutSeconds);
+        }
+        m_lIdleTimeOutSeconds = idleTimeOutSeconds;
+    }
+
+    /**
+     * @return Give up waiting after this many seconds without output, -1 for
+     * never.
+     * @see #setIdleTimeout(long)
+     */
+    long getIdleTimeOutSeconds() {
+        return m_lIdleTimeOutSeconds;
+    }
+
+    /**
+     * Make telnet and SSH spawns created after this call detect peers that
+     * have silently gone away.
+     * <p>
+     * SSH sessions probe the server after this many seconds without traffic,
+     * and disconnect after {@link SshSpawn#SERVER_ALIVE_COUNT_MAX} unanswered
+     * probes.  Telnet sessions turn on TCP keepalive, and where the VM
+     * supports it the same timing is used for the TCP probes.  Older VMs
+     * leave the timing to the operating system, which usually waits two
+     * hours before the first probe.  A dead session then ends its output streams, so
+     * expect calls fail and the spawn can be cleaned up.
+     * <p>
+     * SSH channels passed to {@link #spawn(Channel)} belong to the caller,
+     * and are not changed.
+     *
+     * @param seconds How long a session can be quiet before its peer is
+     * probed.  0 to never probe, which is the default.
+     */
+    public void setKeepAlive(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("Keepalive interval must be >= 0, was "
+                                               + seconds);
+        }
+        m_keepAliveSeconds = seconds;
+    }
+
+    /**
+     * @return How long network sessions can be quiet before their peers are
+     * probed, 0 for never.
+     * @see #setKeepAlive(int)
+     */
+    int getKeepAlive() {
+        return m_keepAliveSeconds;
+    }
+
+    /**
+     * Choose how gently process spawns created after this call are stopped.
+     * <p>
+     * {@link Spawn#stop()} asks the process and all processes it has started
+     * to terminate, and kills the ones still running after the grace period.
+     * Finding the processes a process has started needs Java 9; on older VMs
+     * only the process itself is stopped.
+     *
+     * @param millis The grace period in milliseconds, 0 to kill processes
+     * right away.  The default is two seconds.
+     */
+    public void setStopGracePeriod(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Grace period must be >= 0, was " + millis);
+        }
+        m_stopGraceMillis = millis;
+    }
+
+    /**
+     * @return How long stopped processes get to terminate before being
+     * killed, in milliseconds.
+     * @see #setStopGracePeriod(long)
+     */
+    long getStopGracePeriod() {
+        return m_stopGraceMillis;
+    }
+
+    /**
+     * Make spawns created after this call, and their starting, abortable
+     * through a token.  One token can be shared by any number of ExpectJs to
+     * abort a whole fleet of sessions at once.
+     *
+     * @param token The token to use, or null for none, which is the default.
+     * @see CancellationToken#cancel()
+     */
+    public void setCancellationToken(CancellationToken token) {
+        m_cancellationToken = token;
+    }
+
+    /**
+     * @return The token aborting blocking spawn operations, or null for none.
+     * @see #setCancellationToken(CancellationToken)
+     */
+    CancellationToken getCancellationToken() {
+        return m_cancellationToken;
+    }
+
+    /**
+     * Choose where close listeners of spawns created after this call run.  By
+     * default they run on a pool of daemon threads shared by all spawns.
+     *
+     * @param executor Runs the close listeners, or null for the default.
+     * @see Spawn#addCloseListener(Spawnable.CloseListener)
+     */
+    public void setCloseListenerExecutor(java.util.concurrent.Executor executor) {
+        m_closeListenerExecutor = executor;
+    }
+
+    /**
+     * @return Where close listeners run, or null for the default executor.
+     * @see #setCloseListenerExecutor(java.util.concurrent.Executor)
+     */
+    java.util.concurrent.Executor getCloseListenerExecutor() {
+        return m_closeListenerExecutor;
+    }
+
+    /**
+     * @return The number of terminal rows to emulate, 0 for no terminal
+     * emulation.
+     */
+    int getTerminalRows() {
+        return m_terminalRows;
+    }
+
+    /**
+     * @return The number of terminal columns to emulate.
+     */
+    int getTerminalColumns() {
+        return m_terminalColumns;
+    }
+
+    /**
+     * @return True if spawns should keep everything they print.
+     * @see #setCaptureOutput(boolean)
+     */
+    boolean isCaptureOutput() {
+        return m_bCaptureOutput;
+    }
+
+    /**
+     * @return The default timeout in seconds for the expect commands, -1 means
+     * wait forever.
+     */
+    long getDefaultTimeOutSeconds() {
+        return m_lDefaultTimeOutSeconds;
+    }
+
+    /**
+     * @return True if spawn output should be echoed to the console.
+     */
+    boolean isEcho() {
+        return m_bEcho;
+    }
+
+    /**
+     * @return The most bytes to read at a time from spawn output streams.
+     * @see #setReadBufferSize(int, int)
+     */
+    int getReadBufferSize() {
+        return m_readBufferSize;
+    }
+
+    /**
+     * @return The fewest bytes to read at a time from spawn output streams.
+     * @see #setReadBufferSize(int, int)
+     */
+    int getMinReadBufferSize() {
+        return m_minReadBufferSize;
+    }
+
     /**
      * This method launches a {@link Spawnable}. Further expect commands can be
      * invoked on the returned {@link Spawn} object.
@@ -55,7 +421,7 @@ public class ExpectJ {
      * @throws IOException if the spawning fails
      */
     public Spawn spawn(Spawnable spawnable) throws IOException {
-        return new Spawn(spawnable, m_lDefaultTimeOutSeconds, m_bEcho);
+        return new Spawn(spawnable, this);
     }
 
     /**
@@ -68,7 +434,7 @@ public class ExpectJ {
      * @see Runtime#exec(String)
      */
     public Spawn spawn(final String command) throws IOException {
-        return spawn(new ProcessSpawn(new Executor() {
+        return spawnProcess(new Executor() {
             public Process execute() throws IOException {
                 return Runtime.getRuntime().exec(command);
             }
@@ -76,7 +442,7 @@ public class ExpectJ {
             public String toString() {
                 return command;
             }
-        }));
+        }, false);
     }
 
     /**
@@ -90,7 +456,70 @@ public class ExpectJ {
      */
     public Spawn spawn(Executor executor) throws IOException
     {
-        return spawn(new ProcessSpawn(executor));
+        return spawnProcess(executor, false);
+    }
+
+    /**
+     * This method spawns a new process from a {@link ProcessBuilder}. Further
+     * expect commands can be invoked on the returned {@link Spawn} object.
+     * <p>
+     * If the builder redirects the error stream, the spawn gets no stderr
+     * and everything the process prints arrives on stdout in the order it
+     * was written.  This saves a thread and a pipe per process for
+     * programs whose stderr doesn't need to be told apart.
+     *
+     * @param builder Describes the process to start.  It is started once,
+     * when this method is called.
+     * @return The newly spawned process
+     * @throws IOException if the process spawning fails
+     * @see ProcessBuilder#redirectErrorStream(boolean)
+     */
+    public Spawn spawn(final ProcessBuilder builder) throws IOException
+    {
+        return spawnProcess(new Executor() {
+            public Process execute() throws IOException {
+                return builder.start();
+            }
+
+            public String toString() {
+                return builder.command().toString();
+            }
+        }, builder.redirectErrorStream());
+    }
+
+    /**
+     * This method spawns a new process on a pseudo terminal.  Further expect
+     * commands can be invoked on the returned {@link Spawn} object.
+     * <p>
+     * Programs running on a terminal flush their output line by line and
+     * print prompts right away, where they would block-buffer output written
+     * to a pipe.  The spawn gets no stderr, everything the process prints
+     * arrives on stdout.
+     *
+     * @param command The shell command to execute.
+     * @param rows The number of rows on the terminal.
+     * @param columns The number of columns on the terminal.
+     * @return The newly spawned process
+     * @throws IOException if the process spawning fails
+     * @see PtyExecutor
+     */
+    public Spawn spawnPty(String command, int rows, int columns) throws IOException {
+        return spawnProcess(new PtyExecutor(command, rows, columns), true);
+    }
+
+    /**
+     * Spawn a process using our settings.
+     *
+     * @param executor Will be called upon to start the new process.
+     * @param stderrMerged True if the process writes its stderr to its
+     * stdout.
+     * @return The newly spawned process
+     * @throws IOException if the process spawning fails
+     */
+    private Spawn spawnProcess(Executor executor, boolean stderrMerged) throws IOException {
+        ProcessSpawn process = new ProcessSpawn(executor, stderrMerged);
+        process.setStopGracePeriod(m_stopGraceMillis);
+        return spawn(process);
     }
 
     /**
@@ -111,7 +540,9 @@ public class ExpectJ {
     public Spawn spawn(String hostName, int port)
     throws IOException
     {
-        return spawn(new TelnetSpawn(hostName, port));
+        TelnetSpawn telnet = new TelnetSpawn(hostName, port);
+        telnet.setKeepAlive(m_keepAliveSeconds);
+        return spawn(telnet);
     }
 
     /**
@@ -151,6 +582,8 @@ public class ExpectJ {
      * @see SshSpawn#SshSpawn(String, int, String, String)
      */
     public Spawn spawn(String remoteHostName, int remotePort, String userName, String password) throws IOException {
-        return spawn(new SshSpawn(remoteHostName, remotePort, userName, password));
+        SshSpawn ssh = new SshSpawn(remoteHostName, remotePort, userName, password);
+        ssh.setServerAliveInterval(m_keepAliveSeconds);
+        return spawn(ssh);
     }
 }
@@ -0,0 +1,67 @@
+package expectj;
+
+/**
+ * Describes which of several {@link ExpectPattern}s was found by
+ * {@link Spawn#expect(ExpectPattern[], long)}.
+ */
+public final class ExpectMatch {
+    /**
+     * The pattern that was found.
+     */
+    private final ExpectPattern pattern;
+
+    /**
+     * The index of {@link #pattern} in the array passed to expect().
+     */
+    private final int index;
+
+    /**
+     * The matched text and what preceded it on the same line.
+     */
+    private final String text;
+
+    /**
+     * @param pattern The pattern that was found.
+     * @param index The index of the pattern in the array passed to expect().
+     * @param text The matched text and what preceded it on the same line.
+     */
+    ExpectMatch(ExpectPattern pattern, int index, String text) {
+        this.pattern = pattern;
+        this.index = index;
+        this.text = text;
+    }
+
+    /**
+     * @return The pattern that was found.
+     */
+    public ExpectPattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return The index of the found pattern in the array passed to expect().
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return The stream the pattern was found on, {@link Spawn#STDOUT} or
+     * {@link Spawn#STDERR}.
+     */
+    public int getStream() {
+        return pattern.getStream();
+    }
+
+    /**
+     * @return The received text up to and including the match, starting at the
+     * beginning of the line the match was found on.
+     */
+    public String getText() {
+        return text;
+    }
+
+    public String toString() {
+        return "Match for " + pattern + " at index " + index;
+    }
+}
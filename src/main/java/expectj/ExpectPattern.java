@@ -0,0 +1,90 @@
+package expectj;
+
+/**
+ * A pattern for {@link Spawn#expect(ExpectPattern[], long)}, tagged with the
+ * stream it should be looked for on.
+ *
+ * @see ExpectMatch
+ */
+public final class ExpectPattern {
+    /**
+     * The stream to look on, {@link Spawn#STDOUT} or {@link Spawn#STDERR}.
+     */
+    private final int stream;
+
+    /**
+     * The case-insensitive substring to look for.
+     */
+    private final String pattern;
+
+    /**
+     * Finds {@link #pattern} in received text.
+     */
+    private final CaseInsensitiveSearch search;
+
+    /**
+     * Create a new pattern.
+     *
+     * @param stream The stream to look on, {@link Spawn#STDOUT} or
+     * {@link Spawn#STDERR}.
+     * @param pattern The case-insensitive substring to look for.
+     */
+    public ExpectPattern(int stream, String pattern) {
+        if (stream != Spawn.STDOUT && stream != Spawn.STDERR) {
+            throw new IllegalArgumentException("Stream must be Spawn.STDOUT or Spawn.STDERR, was "
+                                               + stream);
+        }
+        if (pattern == null) {
+            throw new NullPointerException("Pattern must not be null");
+        }
+        this.stream = stream;
+        this.pattern = pattern;
+        this.search = new CaseInsensitiveSearch(pattern);
+    }
+
+    /**
+     * Create a pattern to look for on stdout.
+     *
+     * @param pattern The case-insensitive substring to look for.
+     * @return A new pattern.
+     */
+    public static ExpectPattern stdout(String pattern) {
+        return new ExpectPattern(Spawn.STDOUT, pattern);
+    }
+
+    /**
+     * Create a pattern to look for on stderr.
+     *
+     * @param pattern The case-insensitive substring to look for.
+     * @return A new pattern.
+     */
+    public static ExpectPattern stderr(String pattern) {
+        return new ExpectPattern(Spawn.STDERR, pattern);
+    }
+
+    /**
+     * @return The stream to look on, {@link Spawn#STDOUT} or
+     * {@link Spawn#STDERR}.
+     */
+    public int getStream() {
+        return stream;
+    }
+
+    /**
+     * @return The case-insensitive substring to look for.
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return A search for the pattern.
+     */
+    CaseInsensitiveSearch getSearch() {
+        return search;
+    }
+
+    public String toString() {
+        return (stream == Spawn.STDOUT ? "stdout:\"" : "stderr:\"") + pattern + "\"";
+    }
+}
@@ -0,0 +1,120 @@
+package expectj;
+
+/**
+ * The outcome of {@link Spawn#tryExpect(ExpectPattern[], long)}.
+ * <p>
+ * Unlike expect(), tryExpect() reports timeouts and closed streams through
+ * this class rather than by throwing exceptions.  This makes it cheap to use
+ * for scripts that often fall back to something else when a pattern doesn't
+ * show up.
+ */
+public final class ExpectResult {
+    /**
+     * One of the patterns was found.
+     */
+    public static final int MATCHED = 0;
+
+    /**
+     * None of the patterns showed up before the timeout.
+     */
+    public static final int TIMED_OUT = 1;
+
+    /**
+     * All watched streams ended without any of the patterns showing up.
+     */
+    public static final int EOF = 2;
+
+    /**
+     * {@link #MATCHED}, {@link #TIMED_OUT} or {@link #EOF}.
+     */
+    private final int status;
+
+    /**
+     * What was found, or null if nothing was.
+     */
+    private final ExpectMatch match;
+
+    /**
+     * Received text not consumed by any match.
+     */
+    private final String partial;
+
+    /**
+     * @param status {@link #MATCHED}, {@link #TIMED_OUT} or {@link #EOF}.
+     * @param match What was found, or null if nothing was.
+     * @param partial Received text not consumed by any match.
+     */
+    private ExpectResult(int status, ExpectMatch match, String partial) {
+        this.status = status;
+        this.match = match;
+        this.partial = partial;
+    }
+
+    /**
+     * @param match What was found.
+     * @return A result for a successful expect.
+     */
+    static ExpectResult matched(ExpectMatch match) {
+        return new ExpectResult(MATCHED, match, "");
+    }
+
+    /**
+     * @param partial Received text not consumed by any match.
+     * @return A result for an expect that timed out.
+     */
+    static ExpectResult timedOut(String partial) {
+        return new ExpectResult(TIMED_OUT, null, partial);
+    }
+
+    /**
+     * @param partial Received text not consumed by any match.
+     * @return A result for an expect that ran out of input.
+     */
+    static ExpectResult eof(String partial) {
+        return new ExpectResult(EOF, null, partial);
+    }
+
+    /**
+     * @return {@link #MATCHED}, {@link #TIMED_OUT} or {@link #EOF}.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return True if one of the patterns was found.
+     */
+    public boolean isMatched() {
+        return status == MATCHED;
+    }
+
+    /**
+     * @return What was found, or null if nothing was.
+     */
+    public ExpectMatch getMatch() {
+        return match;
+    }
+
+    /**
+     * When nothing matched, this is what was received after the last line
+     * break, on stdout if stdout was watched and on stderr otherwise.  The text
+     * is still available to later expect calls.
+     *
+     * @return Received text not consumed by any match, empty if something
+     * matched.
+     */
+    public String getPartial() {
+        return partial;
+    }
+
+    public String toString() {
+        switch (status) {
+        case MATCHED:
+            return "Matched " + match.getPattern();
+        case TIMED_OUT:
+            return "Timed out after \"" + partial + "\"";
+        default:
+            return "EOF after \"" + partial + "\"";
+        }
+    }
+}
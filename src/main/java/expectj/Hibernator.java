@@ -0,0 +1,113 @@
+package expectj;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Watches the input streams of hibernating {@link StreamPiper}s, and wakes
+ * pipers up when their streams have something to say.
+ * <p>
+ * One thread watches all hibernating pipers in the JVM, so quiet spawns don't
+ * need a thread each.  The thread is started when the first piper hibernates.
+ */
+class Hibernator implements Runnable {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(Hibernator.class);
+
+    /**
+     * How often hibernating streams are checked for data.
+     */
+    static final long POLL_INTERVAL_MS = 100;
+
+    /**
+     * The one and only hibernator.
+     */
+    private static final Hibernator INSTANCE = new Hibernator();
+
+    /**
+     * The hibernating pipers.  All accesses must be synchronized on this list.
+     */
+    private final List pipers = new ArrayList();
+
+    /**
+     * Our thread, null until the first piper hibernates.  Guarded by
+     * {@link #pipers}.
+     */
+    private Thread thread = null;
+
+    /**
+     * Use {@link #add(StreamPiper)} and {@link #remove(StreamPiper)}.
+     */
+    private Hibernator() {
+        // This constructor intentionally left blank
+    }
+
+    /**
+     * Start watching a hibernating piper.
+     *
+     * @param piper The piper to watch.
+     */
+    static void add(StreamPiper piper) {
+        INSTANCE.addPiper(piper);
+    }
+
+    /**
+     * Stop watching a piper.
+     *
+     * @param piper The piper to stop watching.
+     */
+    static void remove(StreamPiper piper) {
+        synchronized (INSTANCE.pipers) {
+            INSTANCE.pipers.remove(piper);
+        }
+    }
+
+    /**
+     * Start watching a hibernating piper.
+     *
+     * @param piper The piper to watch.
+     */
+    private void addPiper(StreamPiper piper) {
+        synchronized (pipers) {
+            pipers.add(piper);
+            if (thread == null) {
+                thread = new Thread(this, "ExpectJ Hibernator");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            pipers.notify();
+        }
+    }
+
+    /**
+     * Check on the hibernating pipers every {@link #POLL_INTERVAL_MS}
+     * milliseconds.
+     */
+    public void run() {
+        while (true) {
+            StreamPiper[] watched;
+            try {
+                synchronized (pipers) {
+                    while (pipers.isEmpty()) {
+                        pipers.wait();
+                    }
+                    watched = (StreamPiper[])pipers.toArray(new StreamPiper[pipers.size()]);
+                }
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                LOG.warn("Hibernator interrupted, going on", e);
+                continue;
+            }
+
+            // Waking a piper removes it from our list
+            for (int i = 0; i < watched.length; i++) {
+                watched[i].wakeIfReadable();
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package expectj;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An in-memory {@link Spawnable} talking to a scripted peer inside the JVM.
+ * <p>
+ * Every line sent to the spawn is handed to the {@link Peer}, which answers by
+ * writing to an {@link Output}.  There are no sockets, processes or extra
+ * threads involved: the peer runs on the thread doing the sending, and its
+ * answers travel to the reader through lock-free single-producer
+ * single-consumer byte queues.  This makes it cheap enough to run very large
+ * numbers of simulated sessions in tests.
+ * <p>
+ * Lines are split on \n, with any trailing \r removed, and decoded using the
+ * platform's default charset just like {@link Spawn#send(String)} encodes them.
+ */
+public class LoopbackSpawnable extends AbstractSpawnable implements Spawnable {
+    /**
+     * The default capacity of each output queue in bytes.
+     */
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    /**
+     * A scripted peer.  All calls for one spawnable are made by one thread at a
+     * time.
+     */
+    public interface Peer {
+        /**
+         * Called once when the spawnable starts.  Use this for producing
+         * greetings and initial prompts.  Nobody is reading yet at this point,
+         * so this must not produce more output than the queues can hold.
+         *
+         * @param output Where to write the answer.
+         * @throws IOException on trouble writing the answer.
+         */
+        public void start(Output output) throws IOException;
+
+        /**
+         * Called for each line sent to the spawnable.
+         *
+         * @param line The line, without the line terminator.
+         * @param output Where to write the answer.
+         * @throws IOException on trouble writing the answer.
+         */
+        public void lineReceived(String line, Output output) throws IOException;
+    }
+
+    /**
+     * A {@link Peer} writes its answers to here.
+     */
+    public final class Output {
+        /**
+         * Can only be created by {@link LoopbackSpawnable}.
+         */
+        private Output() {
+            // This constructor intentionally left blank
+        }
+
+        /**
+         * Produce text on stdout.
+         *
+         * @param text The text to produce.
+         * @throws IOException if the spawnable has been closed.
+         */
+        public void print(String text) throws IOException {
+            byte[] bytes = text.getBytes();
+            stdout.write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Produce text on stderr.
+         *
+         * @param text The text to produce.
+         * @throws IOException if the spawnable has been closed.
+         */
+        public void printErr(String text) throws IOException {
+            byte[] bytes = text.getBytes();
+            stderr.write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * End the session.  Output already produced can still be read.
+         *
+         * @param exitValue The exit value of the session.
+         */
+        public void exit(int exitValue) {
+            LoopbackSpawnable.this.exit(exitValue);
+        }
+    }
+
+    /**
+     * The peer we're talking to.
+     */
+    private final Peer peer;
+
+    /**
+     * The peer's stdout answers.
+     */
+    private final SpscByteQueue stdout;
+
+    /**
+     * The peer's stderr answers.
+     */
+    private final SpscByteQueue stderr;
+
+    /**
+     * Handed to the peer for answering.
+     */
+    private final Output output = new Output();
+
+    /**
+     * Collects sent bytes until we have a full line.  All accesses must be
+     * synchronized on this.
+     */
+    private final ByteArrayOutputStream currentLine = new ByteArrayOutputStream();
+
+    /**
+     * Sent data goes here.
+     */
+    private final OutputStream stdin = new OutputStream() {
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            received(b, off, len);
+        }
+    };
+
+    /**
+     * Guards the transition to {@link #closed}.  This isn't the spawnable's own
+     * monitor since a peer waiting for the reader holds that one.
+     */
+    private final Object closeLock = new Object();
+
+    /**
+     * True when the session has ended.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The exit value given by the peer.
+     */
+    private volatile int exitValue = 0;
+
+    /**
+     * Create a loopback spawnable with default queue sizes.
+     *
+     * @param peer The peer to talk to.
+     */
+    public LoopbackSpawnable(Peer peer) {
+        this(peer, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a loopback spawnable.
+     *
+     * @param peer The peer to talk to.
+     * @param capacity The capacity of each output queue in bytes.  A peer
+     * producing more than this in one go will block until the reader catches
+     * up.
+     */
+    public LoopbackSpawnable(Peer peer, int capacity) {
+        if (peer == null) {
+            throw new NullPointerException("Peer must not be null");
+        }
+        this.peer = peer;
+        this.stdout = new SpscByteQueue(capacity);
+        this.stderr = new SpscByteQueue(capacity);
+    }
+
+    public synchronized void start() throws IOException {
+        peer.start(output);
+    }
+
+    /**
+     * Pass sent data on to our peer line by line.
+     *
+     * @param b The sent bytes.
+     * @param off Where in b to start.
+     * @param len The number of bytes sent.
+     * @throws IOException if the session has ended or if the peer fails.
+     */
+    private synchronized void received(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Loopback session has ended");
+        }
+        int lineStart = off;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] != '\n') {
+                continue;
+            }
+            currentLine.write(b, lineStart, i - lineStart);
+            lineStart = i + 1;
+
+            byte[] lineBytes = currentLine.toByteArray();
+            currentLine.reset();
+            int lineLength = lineBytes.length;
+            if (lineLength > 0 && lineBytes[lineLength - 1] == '\r') {
+                lineLength--;
+            }
+            peer.lineReceived(new String(lineBytes, 0, lineLength), output);
+            if (closed) {
+                return;
+            }
+        }
+        currentLine.write(b, lineStart, off + len - lineStart);
+    }
+
+    /**
+     * End the session.
+     *
+     * @param exitValue The exit value of the session.
+     */
+    private void exit(int exitValue) {
+        synchronized (closeLock) {
+            if (closed) {
+                return;
+            }
+            this.exitValue = exitValue;
+            closed = true;
+        }
+        stdout.close();
+        stderr.close();
+        onClose();
+    }
+
+    public InputStream getStdout() {
+        return stdout.getInputStream();
+    }
+
+    public OutputStream getStdin() {
+        return stdin;
+    }
+
+    public InputStream getStderr() {
+        return stderr.getInputStream();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getExitValue() throws ExpectJException {
+        if (!closed) {
+            throw new ExpectJException("Loopback session is still running");
+        }
+        return exitValue;
+    }
+
+    public void stop() {
+        exit(exitValue);
+    }
+
+    public String toString() {
+        return "Loopback to " + peer;
+    }
+}
@@ -0,0 +1,26 @@
+package expectj;
+
+/**
+ * Cleans up output from a spawn before it is matched against and captured.
+ * <p>
+ * Filters work in place on the buffer the output was read into, and may only
+ * remove or replace bytes, never add any.  A filter is called once for every
+ * read from its stream, so it must remember anything it needs across calls,
+ * like being in the middle of an escape sequence.  A filter instance must
+ * therefore only be used for one stream.
+ *
+ * @see OutputFilters
+ * @see Spawn#setOutputFilter(int, OutputFilter)
+ */
+public interface OutputFilter {
+    /**
+     * Filter newly read bytes in place.
+     *
+     * @param buffer The bytes to filter.  Filtered bytes are written back to
+     * the same array, starting at offset.
+     * @param offset Where in buffer the new bytes start.
+     * @param length The number of new bytes.
+     * @return The number of filtered bytes, at most length.
+     */
+    public int filter(byte[] buffer, int offset, int length);
+}
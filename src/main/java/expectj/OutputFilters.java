@@ -0,0 +1,249 @@
+package expectj;
+
+/**
+ * Ready-made {@link OutputFilter}s.
+ * <p>
+ * Use {@link ExpectJ#setOutputFilters(int)} to have every spawn's output
+ * filtered, or {@link Spawn#setOutputFilter(int, OutputFilter)} to filter a
+ * single stream.
+ */
+public final class OutputFilters {
+    /**
+     * Remove ANSI escape sequences, like color codes and cursor movements.
+     */
+    public static final int STRIP_ANSI = 1;
+
+    /**
+     * Turn line breaks into single \n chars.  Any run of \r chars, optionally
+     * followed by a \n, becomes one \n.
+     */
+    public static final int NORMALIZE_NEWLINES = 2;
+
+    /**
+     * Let backspaces erase the char before them.
+     */
+    public static final int FOLD_BACKSPACES = 4;
+
+    /**
+     * Use {@link #create(int)} or the factory methods.
+     */
+    private OutputFilters() {
+        // This constructor intentionally left blank
+    }
+
+    /**
+     * Create a chain of the ready-made filters.  The filters are applied in
+     * the order ANSI stripping, newline normalization, backspace folding.
+     *
+     * @param flags Any combination of {@link #STRIP_ANSI},
+     * {@link #NORMALIZE_NEWLINES} and {@link #FOLD_BACKSPACES}.
+     * @return A new filter, or null if flags is 0.
+     */
+    public static OutputFilter create(int flags) {
+        if ((flags & ~(STRIP_ANSI | NORMALIZE_NEWLINES | FOLD_BACKSPACES)) != 0) {
+            throw new IllegalArgumentException("Unknown filter flags: " + flags);
+        }
+        OutputFilter[] filters = new OutputFilter[3];
+        int count = 0;
+        if ((flags & STRIP_ANSI) != 0) {
+            filters[count++] = stripAnsi();
+        }
+        if ((flags & NORMALIZE_NEWLINES) != 0) {
+            filters[count++] = normalizeNewlines();
+        }
+        if ((flags & FOLD_BACKSPACES) != 0) {
+            filters[count++] = foldBackspaces();
+        }
+        if (count == 0) {
+            return null;
+        }
+        if (count == 1) {
+            return filters[0];
+        }
+        OutputFilter[] used = new OutputFilter[count];
+        System.arraycopy(filters, 0, used, 0, count);
+        return chain(used);
+    }
+
+    /**
+     * Combine filters.
+     *
+     * @param filters The filters to apply, in order.
+     * @return A filter applying all filters in order, on the same buffer.
+     */
+    public static OutputFilter chain(OutputFilter[] filters) {
+        final OutputFilter[] chain = (OutputFilter[])filters.clone();
+        return new OutputFilter() {
+            public int filter(byte[] buffer, int offset, int length) {
+                for (int i = 0; i < chain.length && length > 0; i++) {
+                    length = chain[i].filter(buffer, offset, length);
+                }
+                return length;
+            }
+        };
+    }
+
+    /**
+     * @return A new filter removing ANSI escape sequences.
+     * @see #STRIP_ANSI
+     */
+    public static OutputFilter stripAnsi() {
+        return new AnsiStripper();
+    }
+
+    /**
+     * @return A new filter normalizing line breaks.
+     * @see #NORMALIZE_NEWLINES
+     */
+    public static OutputFilter normalizeNewlines() {
+        return new NewlineNormalizer();
+    }
+
+    /**
+     * Backspaces can only erase chars from the same read, backspaces trying
+     * to erase anything earlier are just removed.
+     *
+     * @return A new filter folding backspaces.
+     * @see #FOLD_BACKSPACES
+     */
+    public static OutputFilter foldBackspaces() {
+        return new BackspaceFolder();
+    }
+
+    /**
+     * Removes ESC [ ... control sequences, ESC ] ... operating system
+     * commands, charset selections and other two byte escapes.
+     */
+    private static class AnsiStripper implements OutputFilter {
+        /**
+         * Not in an escape sequence.
+         */
+        private static final int TEXT = 0;
+
+        /**
+         * Got ESC.
+         */
+        private static final int ESCAPE = 1;
+
+        /**
+         * In a control sequence.
+         */
+        private static final int CSI = 2;
+
+        /**
+         * In an operating system command.
+         */
+        private static final int OSC = 3;
+
+        /**
+         * Got ESC inside an operating system command.
+         */
+        private static final int OSC_ESCAPE = 4;
+
+        /**
+         * One more byte of a charset selection to skip.
+         */
+        private static final int CHARSET = 5;
+
+        /**
+         * Where we are, kept between reads.
+         */
+        private int state = TEXT;
+
+        public int filter(byte[] buffer, int offset, int length) {
+            int write = offset;
+            for (int read = offset; read < offset + length; read++) {
+                byte b = buffer[read];
+                switch (state) {
+                case TEXT:
+                    if (b == 27) {
+                        state = ESCAPE;
+                    } else {
+                        buffer[write++] = b;
+                    }
+                    break;
+                case ESCAPE:
+                    if (b == '[') {
+                        state = CSI;
+                    } else if (b == ']') {
+                        state = OSC;
+                    } else if (b == '(' || b == ')' || b == '*' || b == '+' || b == '#') {
+                        state = CHARSET;
+                    } else {
+                        state = TEXT;
+                    }
+                    break;
+                case CSI:
+                    if (b >= '@' && b <= '~') {
+                        state = TEXT;
+                    }
+                    break;
+                case OSC:
+                    if (b == 7) {
+                        state = TEXT;
+                    } else if (b == 27) {
+                        state = OSC_ESCAPE;
+                    }
+                    break;
+                case OSC_ESCAPE:
+                    state = (b == 27) ? OSC_ESCAPE : ((b == '\\') ? TEXT : OSC);
+                    break;
+                default:
+                    state = TEXT;
+                    break;
+                }
+            }
+            return write - offset;
+        }
+    }
+
+    /**
+     * Turns \r\n, \r\r\n, lone \r and lone \n into \n.
+     */
+    private static class NewlineNormalizer implements OutputFilter {
+        /**
+         * True if the last byte we saw was a \r, kept between reads.
+         */
+        private boolean afterCarriageReturn = false;
+
+        public int filter(byte[] buffer, int offset, int length) {
+            int write = offset;
+            for (int read = offset; read < offset + length; read++) {
+                byte b = buffer[read];
+                if (b == '\r') {
+                    if (!afterCarriageReturn) {
+                        buffer[write++] = '\n';
+                    }
+                    afterCarriageReturn = true;
+                } else if (b == '\n') {
+                    if (!afterCarriageReturn) {
+                        buffer[write++] = '\n';
+                    }
+                    afterCarriageReturn = false;
+                } else {
+                    buffer[write++] = b;
+                    afterCarriageReturn = false;
+                }
+            }
+            return write - offset;
+        }
+    }
+
+    /**
+     * Lets backspaces erase the char before them on the same line.
+     */
+    private static class BackspaceFolder implements OutputFilter {
+        public int filter(byte[] buffer, int offset, int length) {
+            int write = offset;
+            for (int read = offset; read < offset + length; read++) {
+                byte b = buffer[read];
+                if (b != '\b') {
+                    buffer[write++] = b;
+                } else if (write > offset && buffer[write - 1] != '\n') {
+                    write--;
+                }
+            }
+            return write - offset;
+        }
+    }
+}
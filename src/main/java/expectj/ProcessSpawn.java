@@ -18,26 +18,83 @@ public class ProcessSpawn extends AbstractSpawnable implements Spawnable {
      */
     private final static Log LOG = LogFactory.getLog(ProcessSpawn.class);
 
+    /**
+     * How long stopped processes get to terminate by default, before being
+     * killed.
+     */
+    static final long DEFAULT_STOP_GRACE_MILLIS = 2000;
+
     /**
      * The spawned process.
      */
     private ProcessThread processThread = null;
 
+    /**
+     * True if the process writes its stderr to its stdout.
+     */
+    private final boolean stderrMerged;
+
+    /**
+     * How long {@link #stop()} lets the process tree terminate before
+     * killing it.
+     */
+    private volatile long stopGraceMillis = DEFAULT_STOP_GRACE_MILLIS;
+
     /**
      * This constructor allows to run a process with indefinite time-out
      * @param executor Will be called upon to create the new process
      */
     ProcessSpawn (Executor executor) {
+        this(executor, false);
+    }
+
+    /**
+     * Run a process that may write its stderr to its stdout.
+     * <p>
+     * Processes with merged streams get no stderr, which saves a piper
+     * thread and a pipe per process.
+     *
+     * @param executor Will be called upon to create the new process
+     * @param stderrMerged True if the process writes its stderr to its
+     * stdout.
+     * @see ProcessBuilder#redirectErrorStream(boolean)
+     */
+    ProcessSpawn (Executor executor, boolean stderrMerged) {
         if (executor == null) {
             throw new NullPointerException("Executor is null, must get something to run");
         }
 
         // Initialise the process thread.
         processThread = new ProcessThread(executor);
+        this.stderrMerged = stderrMerged;
+    }
+
+    /**
+     * Choose how long {@link #stop()} lets the process and its descendants
+     * terminate before killing them.
+     *
+     * @param millis The grace period in milliseconds, 0 to kill right away.
+     * @see ExpectJ#setStopGracePeriod(long)
+     */
+    void setStopGracePeriod(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Grace period must be >= 0, was " + millis);
+        }
+        stopGraceMillis = millis;
     }
 
     /**
-     * This method stops the spawned process.
+     * This method stops the spawned process, and any processes it has
+     * started.
+     * <p>
+     * The whole process tree is asked to terminate.  Processes still running
+     * after the grace period are killed.  When this method returns, the
+     * process has been reaped and its streams are closed.
+     * <p>
+     * If the process is still being created, this returns right away, and
+     * the process is stopped as soon as it exists.
+     *
+     * @see #setStopGracePeriod(long)
      */
     public void stop() {
         processThread.stop();
@@ -70,9 +127,13 @@ public class ProcessSpawn extends AbstractSpawnable implements Spawnable {
     }
 
     /**
-     * @return the error stream of the process.
+     * @return the error stream of the process, or null if the process writes
+     * its stderr to its stdout.
      */
     public InputStream getStderr() {
+        if (stderrMerged) {
+            return null;
+        }
         return processThread.process.getErrorStream();
     }
 
@@ -129,6 +190,12 @@ public class ProcessSpawn extends AbstractSpawnable implements Spawnable {
          */
         private Executor executor;
 
+        /**
+         * True if {@link #stop()} was called before the process had been
+         * created.  Guarded by this.
+         */
+        private boolean stopRequested = false;
+
         /**
          * Prepare for starting a process through the given executor.
          * <p>
@@ -147,9 +214,18 @@ public class ProcessSpawn extends AbstractSpawnable implements Spawnable {
          */
         public void start() throws IOException {
             LOG.debug("Starting process '" + executor + "'");
-            thread = new Thread(this, "ExpectJ: " + executor);
-            process = executor.execute();
-            thread.start();
+            Process started = executor.execute();
+            boolean stopNow;
+            synchronized (this) {
+                thread = new Thread(this, "ExpectJ: " + executor);
+                process = started;
+                thread.start();
+                stopNow = stopRequested;
+            }
+            if (stopNow) {
+                LOG.debug("Process '" + executor + "' was stopped while starting");
+                stop();
+            }
         }
 
         /**
@@ -167,18 +243,72 @@ public class ProcessSpawn extends AbstractSpawnable implements Spawnable {
         }
 
         /**
-         * This method interrupts and stops the thread.
+         * Stop the process tree, and wait for the thread to finish.
          */
         public void stop() {
-            LOG.debug("Process '" + executor + "' killed");
+            synchronized (this) {
+                if (process == null) {
+                    // Still in executor.execute(), start() stops the process
+                    LOG.debug("Process '" + executor + "' not started yet, stopping it when it is");
+                    stopRequested = true;
+                    return;
+                }
+            }
+            LOG.debug("Stopping process '" + executor + "'");
+
+            // Our descendants are re-parented when their parents die, so
+            // find them first
+            Object[] descendants = ProcessTree.getDescendants(process);
             process.destroy();
+            ProcessTree.destroy(descendants);
+
             try {
+                long giveUp = System.currentTimeMillis() + stopGraceMillis;
+                while ((thread.isAlive() || ProcessTree.isAnyAlive(descendants))
+                       && System.currentTimeMillis() < giveUp)
+                {
+                    thread.join(10);
+                }
+
+                if (thread.isAlive() || ProcessTree.isAnyAlive(descendants)) {
+                    LOG.debug("Process '" + executor + "' still running after "
+                              + stopGraceMillis + "ms, killing it");
+                    ProcessTree.destroyForcibly(ProcessTree.getDescendants(process));
+                    ProcessTree.destroyForcibly(descendants);
+                    ProcessTree.destroyForcibly(process);
+                }
+
                 thread.join();
             } catch (InterruptedException e) {
-                // Process should have died when calling process.destroy().
-                // After that, process.waitFor() should return, causing the
-                // run() method above to terminate.
+                // Don't leave anything running behind us
                 LOG.error("Interrupted waiting for process supervisor thread to finish", e);
+                ProcessTree.destroyForcibly(descendants);
+                ProcessTree.destroyForcibly(process);
+                Thread.currentThread().interrupt();
+            }
+
+            closeStreams();
+            LOG.debug("Process '" + executor + "' stopped");
+        }
+
+        /**
+         * Close our ends of the process' pipes.
+         */
+        private void closeStreams() {
+            try {
+                process.getOutputStream().close();
+            } catch (IOException e) {
+                LOG.debug("Closing stdin of '" + executor + "' failed", e);
+            }
+            try {
+                process.getInputStream().close();
+            } catch (IOException e) {
+                LOG.debug("Closing stdout of '" + executor + "' failed", e);
+            }
+            try {
+                process.getErrorStream().close();
+            } catch (IOException e) {
+                LOG.debug("Closing stderr of '" + executor + "' failed", e);
             }
         }
     }
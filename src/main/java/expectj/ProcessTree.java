@@ -0,0 +1,227 @@
+package expectj;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds and kills the descendants of a process.
+ * <p>
+ * Shells started by a spawn often start processes of their own, which
+ * inherit the spawn's pipes.  Destroying only the shell leaves those alive,
+ * and the pipes never see end of file.
+ * <p>
+ * Processes are handled through <code>java.lang.ProcessHandle</code>, which
+ * is looked up by reflection since it needs Java 9.  On older VMs nothing
+ * is known about descendants, and only the process itself can be killed.
+ */
+final class ProcessTree {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(ProcessTree.class);
+
+    /**
+     * <code>Process.toHandle()</code>, or null if not available.
+     */
+    private static final Method TO_HANDLE;
+
+    /**
+     * <code>ProcessHandle.descendants()</code>.
+     */
+    private static final Method DESCENDANTS;
+
+    /**
+     * <code>Stream.toArray()</code>.
+     */
+    private static final Method TO_ARRAY;
+
+    /**
+     * <code>ProcessHandle.destroy()</code>.
+     */
+    private static final Method DESTROY;
+
+    /**
+     * <code>ProcessHandle.destroyForcibly()</code>.
+     */
+    private static final Method DESTROY_FORCIBLY;
+
+    /**
+     * <code>ProcessHandle.isAlive()</code>.
+     */
+    private static final Method IS_ALIVE;
+
+    /**
+     * <code>Process.destroyForcibly()</code>, or null if not available.
+     */
+    private static final Method PROCESS_DESTROY_FORCIBLY;
+
+    static {
+        Method toHandle = null;
+        Method descendants = null;
+        Method toArray = null;
+        Method destroy = null;
+        Method destroyForcibly = null;
+        Method isAlive = null;
+        try {
+            Class handle = Class.forName("java.lang.ProcessHandle");
+            descendants = handle.getMethod("descendants", new Class[0]);
+            toArray = Class.forName("java.util.stream.Stream").getMethod("toArray", new Class[0]);
+            destroy = handle.getMethod("destroy", new Class[0]);
+            destroyForcibly = handle.getMethod("destroyForcibly", new Class[0]);
+            isAlive = handle.getMethod("isAlive", new Class[0]);
+            toHandle = Process.class.getMethod("toHandle", new Class[0]);
+        } catch (Exception e) {
+            LOG.debug("Process handles not available, can't stop process trees", e);
+            toHandle = null;
+        }
+        TO_HANDLE = toHandle;
+        DESCENDANTS = descendants;
+        TO_ARRAY = toArray;
+        DESTROY = destroy;
+        DESTROY_FORCIBLY = destroyForcibly;
+        IS_ALIVE = isAlive;
+
+        Method processDestroyForcibly = null;
+        try {
+            processDestroyForcibly = Process.class.getMethod("destroyForcibly", new Class[0]);
+        } catch (Exception e) {
+            LOG.debug("Process.destroyForcibly() not available", e);
+        }
+        PROCESS_DESTROY_FORCIBLY = processDestroyForcibly;
+    }
+
+    /**
+     * Static methods only.
+     */
+    private ProcessTree() {
+        // This constructor intentionally left blank
+    }
+
+    /**
+     * Call a method we know exists.
+     *
+     * @param method The method to call.
+     * @param target What to call it on.
+     * @return What the method returned.
+     */
+    private static Object invoke(Method method, Object target) {
+        try {
+            return method.invoke(target, new Object[0]);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Calling " + method + " failed: " + e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException("Calling " + method + " failed: " + cause);
+        }
+    }
+
+    /**
+     * @return True if descendants of processes can be found.
+     */
+    static boolean isSupported() {
+        return TO_HANDLE != null;
+    }
+
+    /**
+     * List the descendants of a process.  Processes whose parents have died
+     * are no longer descendants, so list them before killing anything.
+     *
+     * @param process The process whose descendants to list.
+     * @return Handles to the process' children, their children and so on.
+     * Empty if not {@link #isSupported()}.
+     */
+    static Object[] getDescendants(Process process) {
+        if (!isSupported()) {
+            return new Object[0];
+        }
+        try {
+            Object handle = invoke(TO_HANDLE, process);
+            return (Object[])invoke(TO_ARRAY, invoke(DESCENDANTS, handle));
+        } catch (RuntimeException e) {
+            // For example if we aren't allowed to see other processes
+            LOG.warn("Listing descendants of " + process + " failed", e);
+            return new Object[0];
+        }
+    }
+
+    /**
+     * Ask processes to terminate.
+     *
+     * @param handles Handles from {@link #getDescendants(Process)}.
+     */
+    static void destroy(Object[] handles) {
+        for (int i = 0; i < handles.length; i++) {
+            try {
+                invoke(DESTROY, handles[i]);
+            } catch (RuntimeException e) {
+                LOG.debug("Destroying " + handles[i] + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Kill processes that are still alive.
+     *
+     * @param handles Handles from {@link #getDescendants(Process)}.
+     */
+    static void destroyForcibly(Object[] handles) {
+        for (int i = 0; i < handles.length; i++) {
+            try {
+                if (isAlive(handles[i])) {
+                    LOG.debug("Killing " + handles[i]);
+                    invoke(DESTROY_FORCIBLY, handles[i]);
+                }
+            } catch (RuntimeException e) {
+                LOG.debug("Killing " + handles[i] + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Kill a process, or just ask it to terminate if that's all this VM
+     * can do.
+     *
+     * @param process The process to kill.
+     */
+    static void destroyForcibly(Process process) {
+        if (PROCESS_DESTROY_FORCIBLY == null) {
+            process.destroy();
+            return;
+        }
+        invoke(PROCESS_DESTROY_FORCIBLY, process);
+    }
+
+    /**
+     * @param handle A handle from {@link #getDescendants(Process)}.
+     * @return True if the process is still running.
+     */
+    private static boolean isAlive(Object handle) {
+        return ((Boolean)invoke(IS_ALIVE, handle)).booleanValue();
+    }
+
+    /**
+     * @param handles Handles from {@link #getDescendants(Process)}.
+     * @return True if any of the processes is still running.
+     */
+    static boolean isAnyAlive(Object[] handles) {
+        for (int i = 0; i < handles.length; i++) {
+            try {
+                if (isAlive(handles[i])) {
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                LOG.debug("Checking on " + handles[i] + " failed", e);
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package expectj;
+
+import java.io.IOException;
+
+/**
+ * Runs a command on a pseudo terminal, using the util-linux
+ * <code>script</code> helper.
+ * <p>
+ * Most programs block-buffer their output when writing to a pipe, so prompts
+ * from processes started by {@link ExpectJ#spawn(String)} can take seconds to
+ * show up, or not show up until the process exits.  On a terminal, programs
+ * flush after every line and print their prompts right away.
+ * <p>
+ * Note that the terminal works like a real one: what is sent to the process
+ * is echoed back, line breaks come out as \r\n, and stderr is printed on the
+ * terminal together with stdout.  Use {@link OutputFilters#NORMALIZE_NEWLINES}
+ * to get plain \n line breaks.
+ * <p>
+ * This only works on Linux.
+ *
+ * @see ExpectJ#spawnPty(String, int, int)
+ */
+public class PtyExecutor implements Executor {
+    /**
+     * The command to run on the terminal.
+     */
+    private final String command;
+
+    /**
+     * The number of rows on the terminal.
+     */
+    private final int rows;
+
+    /**
+     * The number of columns on the terminal.
+     */
+    private final int columns;
+
+    /**
+     * Run a command on a 24x80 terminal.
+     *
+     * @param command The shell command to run.
+     */
+    public PtyExecutor(String command) {
+        this(command, 24, 80);
+    }
+
+    /**
+     * Run a command on a terminal of a given size.
+     *
+     * @param command The shell command to run.
+     * @param rows The number of rows on the terminal.
+     * @param columns The number of columns on the terminal.
+     */
+    public PtyExecutor(String command, int rows, int columns) {
+        if (command == null) {
+            throw new NullPointerException("Command must not be null");
+        }
+        if (rows < 1 || columns < 1) {
+            throw new IllegalArgumentException("Bad terminal size " + rows + "x" + columns);
+        }
+        this.command = command;
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    /**
+     * Start the command on a new pseudo terminal.  Error messages from
+     * <code>script</code> itself are merged into the process' stdout.
+     *
+     * @return The <code>script</code> process running the command.
+     * @throws IOException if starting <code>script</code> fails.
+     */
+    public Process execute() throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(new String[] {
+            "script", "-q", "-f", "-e", "-c",
+            "stty rows " + rows + " cols " + columns + "; " + command,
+            "/dev/null"
+        });
+        // script runs the command using $SHELL
+        builder.environment().put("SHELL", "/bin/sh");
+        if (!builder.environment().containsKey("TERM")) {
+            builder.environment().put("TERM", "vt100");
+        }
+        builder.redirectErrorStream(true);
+        return builder.start();
+    }
+
+    /**
+     * @return The number of rows on the terminal.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of columns on the terminal.
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    public String toString() {
+        return command + " (on a " + rows + "x" + columns + " terminal)";
+    }
+}
@@ -0,0 +1,18 @@
+package expectj;
+
+import java.io.IOException;
+
+/**
+ * Receives records from
+ * {@link Spawn#expectEach(String, String, RecordHandler, long)} as they
+ * stream past.
+ */
+public interface RecordHandler {
+    /**
+     * Called for each line containing the record pattern.
+     *
+     * @param line The line, without the line terminator.
+     * @throws IOException to abort the expectEach() call.
+     */
+    public void handleRecord(String line) throws IOException;
+}
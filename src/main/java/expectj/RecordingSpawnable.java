@@ -0,0 +1,317 @@
+package expectj;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Wraps another {@link Spawnable} and records everything going to and from it
+ * into a file.  The recording can later be played back using a
+ * {@link ReplaySpawnable}.
+ * <p>
+ * All data is recorded as raw byte chunks together with the time since the
+ * previous chunk, in the order the chunks pass through this class.  Recording
+ * ends when the wrapped spawnable has closed and all its output has been read,
+ * or when {@link #stop()} is called.  Each event is flushed to the file as it
+ * is recorded, so a recording in progress can be replayed up to the point
+ * reached so far.
+ *
+ * @see ReplaySpawnable
+ */
+public class RecordingSpawnable extends AbstractSpawnable implements Spawnable {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(RecordingSpawnable.class);
+
+    /**
+     * The spawnable we're recording.
+     */
+    private final Spawnable spawnable;
+
+    /**
+     * The file we're recording to.
+     */
+    private final File file;
+
+    /**
+     * The recording goes here.  Null before {@link #start()} and after the
+     * recording has been finished.  All accesses must be synchronized on this.
+     */
+    private OutputStream recording;
+
+    /**
+     * When the previous event was recorded.
+     */
+    private long lastEventMs;
+
+    /**
+     * Set when the close of our spawnable has been recorded.
+     */
+    private boolean closeRecorded = false;
+
+    /**
+     * The number of output streams that haven't reached end-of-stream yet.
+     */
+    private int openOutputs;
+
+    /**
+     * Recording wrapper for the spawnable's stdout.
+     */
+    private InputStream stdout;
+
+    /**
+     * Recording wrapper for the spawnable's stderr.
+     */
+    private InputStream stderr;
+
+    /**
+     * Recording wrapper for the spawnable's stdin.
+     */
+    private OutputStream stdin;
+
+    /**
+     * Prepare for recording a spawnable.  Nothing is recorded until
+     * {@link #start()} is called.
+     *
+     * @param spawnable The spawnable to record.
+     * @param recordTo The file to record to.  Will be overwritten if it exists.
+     */
+    public RecordingSpawnable(Spawnable spawnable, File recordTo) {
+        if (spawnable == null) {
+            throw new NullPointerException("Spawnable must not be null");
+        }
+        if (recordTo == null) {
+            throw new NullPointerException("Recording file must not be null");
+        }
+        this.spawnable = spawnable;
+        this.file = recordTo;
+        spawnable.setCloseListener(new CloseListener() {
+            public void onClose() {
+                recordClose();
+                RecordingSpawnable.this.onClose();
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        SessionRecording.writeHeader(out);
+        synchronized (this) {
+            recording = out;
+            lastEventMs = System.currentTimeMillis();
+        }
+
+        spawnable.start();
+
+        if (spawnable.getStdout() != null) {
+            stdout = new RecordingInputStream(spawnable.getStdout(),
+                                              SessionRecording.STDOUT);
+        }
+        if (spawnable.getStderr() != null) {
+            stderr = new RecordingInputStream(spawnable.getStderr(),
+                                              SessionRecording.STDERR);
+        }
+        if (spawnable.getStdin() != null) {
+            stdin = new RecordingOutputStream(spawnable.getStdin());
+        }
+    }
+
+    public InputStream getStdout() {
+        return stdout;
+    }
+
+    public OutputStream getStdin() {
+        return stdin;
+    }
+
+    public InputStream getStderr() {
+        return stderr;
+    }
+
+    public boolean isClosed() {
+        return spawnable.isClosed();
+    }
+
+    public int getExitValue() throws ExpectJException {
+        return spawnable.getExitValue();
+    }
+
+    public void stop() {
+        spawnable.stop();
+        recordClose();
+        finish();
+    }
+
+    public String toString() {
+        return "Recording of " + spawnable;
+    }
+
+    /**
+     * Add one event to the recording.
+     *
+     * @param type The kind of event.
+     * @param data The data to record.
+     * @param offset Where in data to start.
+     * @param length How many bytes to record.
+     */
+    private synchronized void record(int type, byte[] data, int offset, int length) {
+        if (recording == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            SessionRecording.writeData(recording, type, Math.max(0, now - lastEventMs),
+                                       data, offset, length);
+            // A truncated recording is still valid, so this makes everything
+            // recorded so far available for replay
+            recording.flush();
+        } catch (IOException e) {
+            LOG.error("Writing to session recording " + file + " failed, recording stopped", e);
+            abort();
+        }
+        lastEventMs = now;
+    }
+
+    /**
+     * Record the exit value of our spawnable if it has closed.
+     */
+    private synchronized void recordClose() {
+        if (recording == null || closeRecorded || !spawnable.isClosed()) {
+            return;
+        }
+        int exitValue;
+        try {
+            exitValue = spawnable.getExitValue();
+        } catch (ExpectJException e) {
+            // Spawn is still running, we'll get another chance
+            return;
+        }
+
+        closeRecorded = true;
+        long now = System.currentTimeMillis();
+        try {
+            SessionRecording.writeClose(recording, Math.max(0, now - lastEventMs), exitValue);
+            recording.flush();
+        } catch (IOException e) {
+            LOG.error("Writing to session recording " + file + " failed, recording stopped", e);
+            abort();
+        }
+        lastEventMs = now;
+    }
+
+    /**
+     * Called when one of the recorded output streams reaches its end.
+     */
+    private synchronized void outputEnded() {
+        openOutputs--;
+        if (openOutputs <= 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Write the end marker and close the recording.
+     */
+    private synchronized void finish() {
+        if (recording == null) {
+            return;
+        }
+        try {
+            SessionRecording.writeEnd(recording,
+                                      Math.max(0, System.currentTimeMillis() - lastEventMs));
+            recording.close();
+        } catch (IOException e) {
+            LOG.error("Finishing session recording " + file + " failed", e);
+        }
+        recording = null;
+    }
+
+    /**
+     * Give up recording after a failure.
+     */
+    private synchronized void abort() {
+        try {
+            recording.close();
+        } catch (IOException e) {
+            // Failure: When your best just isn't good enough.
+        }
+        recording = null;
+    }
+
+    /**
+     * Records everything read through it.
+     */
+    private class RecordingInputStream extends FilterInputStream {
+        /**
+         * The event type we record as.
+         */
+        private final int type;
+
+        /**
+         * Set when we've reached end-of-stream.
+         */
+        private boolean ended = false;
+
+        /**
+         * @param in The stream to record.
+         * @param type The event type to record as.
+         */
+        RecordingInputStream(InputStream in, int type) {
+            super(in);
+            this.type = type;
+            synchronized (RecordingSpawnable.this) {
+                openOutputs++;
+            }
+        }
+
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            if (read(single, 0, 1) == -1) {
+                return -1;
+            }
+            return single[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                record(type, b, off, count);
+            } else if (count == -1 && !ended) {
+                ended = true;
+                recordClose();
+                outputEnded();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Records everything written through it.
+     */
+    private class RecordingOutputStream extends FilterOutputStream {
+        /**
+         * @param out The stream to record.
+         */
+        RecordingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            record(SessionRecording.STDIN, b, off, len);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package expectj;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Plays back a session recorded by a {@link RecordingSpawnable}.
+ * <p>
+ * Output is produced with the same pauses as in the recording, scaled by a
+ * speed factor.  Everything sent to the replay is validated against what was
+ * sent during the recording, and output recorded after a send won't be
+ * produced until the same data has been sent to the replay.  Sending anything
+ * that differs from the recording makes the write fail with an
+ * {@link IOException} and ends the playback.
+ *
+ * @see RecordingSpawnable
+ */
+public class ReplaySpawnable extends AbstractSpawnable implements Spawnable {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(ReplaySpawnable.class);
+
+    /**
+     * Pass this as speed to the constructor to play back without any pauses.
+     */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /**
+     * How large the output pipes are.
+     */
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    /**
+     * The recording we're playing back.
+     */
+    private final File file;
+
+    /**
+     * Speed factor for playback.  2.0 means twice as fast as the recording,
+     * {@link #AS_FAST_AS_POSSIBLE} means no pauses at all.
+     */
+    private final double speed;
+
+    /**
+     * The user reads stdout from here.
+     */
+    private PipedInputStream stdout;
+
+    /**
+     * The user reads stderr from here.
+     */
+    private PipedInputStream stderr;
+
+    /**
+     * The user writes stdin to here.
+     */
+    private ValidatingOutputStream stdin;
+
+    /**
+     * Plays back the recorded output.
+     */
+    private Thread player;
+
+    /**
+     * The exit value from the recording.
+     */
+    private volatile int exitValue = 0;
+
+    /**
+     * True when playback is done.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Turns false when we've been asked to stop.
+     */
+    private volatile boolean continuePlaying = true;
+
+    /**
+     * Play back a recording at its original speed.
+     *
+     * @param recording A file written by a {@link RecordingSpawnable}.
+     */
+    public ReplaySpawnable(File recording) {
+        this(recording, 1.0);
+    }
+
+    /**
+     * Play back a recording at a custom speed.
+     *
+     * @param recording A file written by a {@link RecordingSpawnable}.
+     * @param speed Speed factor, 2.0 means twice as fast as the recording and
+     * {@link #AS_FAST_AS_POSSIBLE} means no pauses at all.
+     */
+    public ReplaySpawnable(File recording, double speed) {
+        if (recording == null) {
+            throw new NullPointerException("Recording must not be null");
+        }
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed must be >= 0, was " + speed);
+        }
+        this.file = recording;
+        this.speed = speed;
+    }
+
+    public void start() throws IOException {
+        final InputStream events = open();
+        final PipedOutputStream toStdout = new PipedOutputStream();
+        final PipedOutputStream toStderr = new PipedOutputStream();
+        stdout = new PipedInputStream(toStdout, PIPE_SIZE);
+        stderr = new PipedInputStream(toStderr, PIPE_SIZE);
+        stdin = new ValidatingOutputStream(open());
+
+        player = new Thread("ExpectJ Replay of " + file) {
+            public void run() {
+                try {
+                    play(events, toStdout, toStderr);
+                } catch (IOException e) {
+                    if (continuePlaying) {
+                        LOG.error("Playing back " + file + " failed", e);
+                    }
+                } finally {
+                    try {
+                        events.close();
+                    } catch (IOException ignored) {
+                        // We were only reading anyway
+                    }
+                    try {
+                        toStdout.close();
+                        toStderr.close();
+                    } catch (IOException e) {
+                        LOG.warn("Closing replay output failed", e);
+                    }
+                    closed = true;
+                    onClose();
+                }
+            }
+        };
+        player.setDaemon(true);
+        player.start();
+    }
+
+    /**
+     * Open the recording and skip past the header.
+     *
+     * @return A stream positioned at the first event.
+     * @throws IOException if the recording can't be opened.
+     */
+    private InputStream open() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            SessionRecording.readHeader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /**
+     * Play back the recorded output.
+     *
+     * @param events The recording.
+     * @param toStdout Where to write stdout data.
+     * @param toStderr Where to write stderr data.
+     * @throws IOException on trouble reading or writing.
+     */
+    private void play(InputStream events, OutputStream toStdout, OutputStream toStderr)
+    throws IOException
+    {
+        long stdinBytes = 0;
+        long lastEventMs = System.currentTimeMillis();
+        while (continuePlaying) {
+            SessionRecording.Event event = SessionRecording.readEvent(events);
+            if (event.type == SessionRecording.END) {
+                return;
+            }
+
+            // The user decides the pace of stdin events, so don't pause for those
+            if (speed != AS_FAST_AS_POSSIBLE && event.type != SessionRecording.STDIN) {
+                long dueMs = lastEventMs + (long)(event.delayMs / speed);
+                long msLeft = dueMs - System.currentTimeMillis();
+                if (msLeft > 0) {
+                    try {
+                        Thread.sleep(msLeft);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            switch (event.type) {
+            case SessionRecording.STDOUT:
+                toStdout.write(event.data);
+                toStdout.flush();
+                break;
+            case SessionRecording.STDERR:
+                toStderr.write(event.data);
+                toStderr.flush();
+                break;
+            case SessionRecording.STDIN:
+                // Don't play what came after this until the user has sent it
+                stdinBytes += event.data.length;
+                if (!stdin.waitForValidated(stdinBytes)) {
+                    return;
+                }
+                break;
+            case SessionRecording.CLOSE:
+                exitValue = event.exitValue;
+                break;
+            }
+            lastEventMs = System.currentTimeMillis();
+        }
+    }
+
+    public InputStream getStdout() {
+        return stdout;
+    }
+
+    public OutputStream getStdin() {
+        return stdin;
+    }
+
+    public InputStream getStderr() {
+        return stderr;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getExitValue() throws ExpectJException {
+        if (!closed) {
+            throw new ExpectJException("Replay is still running");
+        }
+        return exitValue;
+    }
+
+    public void stop() {
+        continuePlaying = false;
+        if (player == null) {
+            closed = true;
+            return;
+        }
+        stdin.abort();
+        player.interrupt();
+        try {
+            player.join();
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted waiting for replay thread to finish", e);
+        }
+    }
+
+    public String toString() {
+        return "Replay of " + file;
+    }
+
+    /**
+     * Compares everything written to it with the stdin data in the recording.
+     */
+    private class ValidatingOutputStream extends OutputStream {
+        /**
+         * Our own reader of the recording, used for finding stdin events.
+         */
+        private final InputStream events;
+
+        /**
+         * The stdin data we're currently comparing against.
+         */
+        private byte[] expected = new byte[0];
+
+        /**
+         * How much of {@link #expected} has been validated.
+         */
+        private int position = 0;
+
+        /**
+         * How many bytes have been validated in total.
+         */
+        private long validated = 0;
+
+        /**
+         * Set if validation has failed, or if playback has been stopped.
+         */
+        private String failure = null;
+
+        /**
+         * @param events The recording, positioned at the first event.
+         */
+        ValidatingOutputStream(InputStream events) {
+            this.events = events;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                if (failure != null) {
+                    throw new IOException(failure);
+                }
+                if (position == expected.length && !nextExpected()) {
+                    fail("Sent data beyond the end of the recording: \""
+                         + new String(b, i, off + len - i, "ISO-8859-1") + "\"");
+                    throw new IOException(failure);
+                }
+                if (b[i] != expected[position]) {
+                    fail("Sent data doesn't match the recording at stdin offset "
+                         + validated + ", expected \""
+                         + new String(expected, position, expected.length - position, "ISO-8859-1")
+                         + "\" but got \""
+                         + new String(b, i, off + len - i, "ISO-8859-1") + "\"");
+                    throw new IOException(failure);
+                }
+                position++;
+                validated++;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Load the next chunk of recorded stdin data.
+         *
+         * @return false if there is no more stdin data in the recording.
+         * @throws IOException on trouble reading the recording.
+         */
+        private boolean nextExpected() throws IOException {
+            while (true) {
+                SessionRecording.Event event = SessionRecording.readEvent(events);
+                if (event.type == SessionRecording.END) {
+                    events.close();
+                    return false;
+                }
+                if (event.type == SessionRecording.STDIN && event.data.length > 0) {
+                    expected = event.data;
+                    position = 0;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Fail validation and end the playback.
+         *
+         * @param message What went wrong.
+         */
+        private void fail(String message) {
+            LOG.debug(message);
+            failure = message;
+            continuePlaying = false;
+            notifyAll();
+        }
+
+        /**
+         * Make the player stop waiting for data.
+         */
+        synchronized void abort() {
+            if (failure == null) {
+                failure = "Replay stopped";
+            }
+            notifyAll();
+        }
+
+        /**
+         * Wait until a given number of bytes have been validated.
+         *
+         * @param count The number of bytes to wait for.
+         * @return true if validation went fine, false if validation failed or
+         * the replay was stopped.
+         */
+        synchronized boolean waitForValidated(long count) {
+            while (validated < count && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return failure == null;
+        }
+
+        public void close() throws IOException {
+            events.close();
+        }
+    }
+}
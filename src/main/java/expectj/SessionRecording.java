@@ -0,0 +1,270 @@
+package expectj;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The binary format shared by {@link RecordingSpawnable} and
+ * {@link ReplaySpawnable}.
+ * <p>
+ * A recording starts with the four magic bytes <code>EXJR</code> and a format
+ * version byte.  After that comes a sequence of events, each consisting of an
+ * event type byte, the number of milliseconds since the previous event and a
+ * payload.  Numbers are stored as unsigned variable length integers, seven bits
+ * per byte, so that the common case of small chunks arriving in quick
+ * succession costs only a few bytes of overhead per chunk.
+ */
+class SessionRecording {
+    /**
+     * Every recording starts with these bytes.
+     */
+    private static final byte[] MAGIC = {'E', 'X', 'J', 'R'};
+
+    /**
+     * The version of the format we read and write.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Data received on the spawn's stdout.  The payload is a length followed
+     * by that many bytes.
+     */
+    static final int STDOUT = 1;
+
+    /**
+     * Data received on the spawn's stderr.  The payload is a length followed
+     * by that many bytes.
+     */
+    static final int STDERR = 2;
+
+    /**
+     * Data sent to the spawn's stdin.  The payload is a length followed by that
+     * many bytes.
+     */
+    static final int STDIN = 3;
+
+    /**
+     * The spawn closed.  The payload is the exit value.
+     */
+    static final int CLOSE = 4;
+
+    /**
+     * The recording is over.  There is no payload.
+     */
+    static final int END = 5;
+
+    /**
+     * One event read from a recording.
+     */
+    static class Event {
+        /**
+         * One of {@link SessionRecording#STDOUT}, {@link SessionRecording#STDERR},
+         * {@link SessionRecording#STDIN}, {@link SessionRecording#CLOSE} or
+         * {@link SessionRecording#END}.
+         */
+        int type;
+
+        /**
+         * Milliseconds since the previous event.
+         */
+        long delayMs;
+
+        /**
+         * The data of a stream event, null for other events.
+         */
+        byte[] data;
+
+        /**
+         * The exit value of a {@link SessionRecording#CLOSE} event.
+         */
+        int exitValue;
+    }
+
+    /**
+     * Can't be instantiated.
+     */
+    private SessionRecording() {
+        // This constructor intentionally left blank
+    }
+
+    /**
+     * Write the recording header.
+     *
+     * @param out Where to write the header.
+     * @throws IOException on trouble writing.
+     */
+    static void writeHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    /**
+     * Read and verify the recording header.
+     *
+     * @param in Where to read the header from.
+     * @throws IOException if the header is missing or has the wrong version.
+     */
+    static void readHeader(InputStream in) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (in.read() != MAGIC[i]) {
+                throw new IOException("Not an ExpectJ session recording");
+            }
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported session recording version " + version);
+        }
+    }
+
+    /**
+     * Write a stream data event.
+     *
+     * @param out Where to write the event.
+     * @param type {@link #STDOUT}, {@link #STDERR} or {@link #STDIN}.
+     * @param delayMs Milliseconds since the previous event.
+     * @param data The data to record.
+     * @param offset Where in data to start.
+     * @param length How many bytes of data to record.
+     * @throws IOException on trouble writing.
+     */
+    static void writeData(OutputStream out, int type, long delayMs,
+                          byte[] data, int offset, int length)
+    throws IOException
+    {
+        out.write(type);
+        writeNumber(out, delayMs);
+        writeNumber(out, length);
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Write a close event.
+     *
+     * @param out Where to write the event.
+     * @param delayMs Milliseconds since the previous event.
+     * @param exitValue The exit value of the closed spawn.
+     * @throws IOException on trouble writing.
+     */
+    static void writeClose(OutputStream out, long delayMs, int exitValue)
+    throws IOException
+    {
+        out.write(CLOSE);
+        writeNumber(out, delayMs);
+        // Exit values are often negative when processes die from signals
+        writeNumber(out, exitValue & 0xffffffffL);
+    }
+
+    /**
+     * Write the end-of-recording marker.
+     *
+     * @param out Where to write the marker.
+     * @param delayMs Milliseconds since the previous event.
+     * @throws IOException on trouble writing.
+     */
+    static void writeEnd(OutputStream out, long delayMs) throws IOException {
+        out.write(END);
+        writeNumber(out, delayMs);
+    }
+
+    /**
+     * Read the next event from a recording.
+     *
+     * @param in Where to read the event from.
+     * @return The next event.  A truncated recording, as left behind by a
+     * crashed recorder, reads as if it ended with an {@link #END} event.
+     * @throws IOException on trouble reading or if the recording is corrupt.
+     */
+    static Event readEvent(InputStream in) throws IOException {
+        Event event = new Event();
+        event.type = in.read();
+        if (event.type == -1) {
+            event.type = END;
+            return event;
+        }
+
+        try {
+            event.delayMs = readNumber(in);
+            switch (event.type) {
+            case STDOUT:
+            case STDERR:
+            case STDIN:
+                long length = readNumber(in);
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Corrupt session recording, chunk length " + length);
+                }
+                event.data = new byte[(int)length];
+                readFully(in, event.data);
+                break;
+            case CLOSE:
+                event.exitValue = (int)readNumber(in);
+                break;
+            case END:
+                break;
+            default:
+                throw new IOException("Corrupt session recording, unknown event type "
+                                      + event.type);
+            }
+        } catch (EOFException e) {
+            event.type = END;
+            event.data = null;
+        }
+        return event;
+    }
+
+    /**
+     * Write an unsigned variable length number.
+     *
+     * @param out Where to write the number.
+     * @param number A non-negative number.
+     * @throws IOException on trouble writing.
+     */
+    private static void writeNumber(OutputStream out, long number) throws IOException {
+        while ((number & ~0x7fL) != 0) {
+            out.write((int)((number & 0x7f) | 0x80));
+            number >>>= 7;
+        }
+        out.write((int)number);
+    }
+
+    /**
+     * Read an unsigned variable length number.
+     *
+     * @param in Where to read the number from.
+     * @return The number read.
+     * @throws IOException on trouble reading.
+     */
+    private static long readNumber(InputStream in) throws IOException {
+        long number = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Session recording truncated");
+            }
+            number |= ((long)(b & 0x7f)) << shift;
+            if ((b & 0x80) == 0) {
+                return number;
+            }
+        }
+        throw new IOException("Corrupt session recording, number too long");
+    }
+
+    /**
+     * Fill a buffer from a stream.
+     *
+     * @param in Where to read from.
+     * @param buffer What to fill.
+     * @throws IOException on trouble reading.
+     */
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int done = 0;
+        while (done < buffer.length) {
+            int count = in.read(buffer, done, buffer.length - done);
+            if (count == -1) {
+                throw new EOFException("Session recording truncated");
+            }
+            done += count;
+        }
+    }
+}
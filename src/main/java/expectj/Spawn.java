@@ -1,467 +1,1799 @@
-package expectj;
-
-
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.Pipe;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Date;
-
-/**
- * This class is used for talking to processes / ports. This will also interact
- * with the process to read and write to it.
- *
- * @author	Sachin Shekar Shetty
- */
-public class Spawn {
-    /**
-     * Log messages go here.
-     */
-    private final static Log LOG = LogFactory.getLog(ProcessSpawn.class);
-
-    /** Default time out for expect commands */
-    private long m_lDefaultTimeOutSeconds = -1;
-
-    /**
-     * Buffered wrapper stream for slave's stdin.
-     */
-    private BufferedWriter toStdin = null;
-
-    /**
-     * This is what we're actually talking to.
-     */
-    private SpawnableHelper slave = null;
-
-    /**
-     * Turns false on timeout.
-     */
-    private volatile boolean continueReading = true;
-
-    /**
-     * Pumps data from stdin to the spawn's stdin.
-     */
-    private StreamPiper interactIn = null;
-
-    /**
-     * Pumps data from the spawn's stdout to stdout.
-     */
-    private StreamPiper interactOut = null;
-
-    /**
-     * Pumps data from the spawn's stderr to stderr.
-     */
-    private StreamPiper interactErr = null;
-
-    /**
-     * Wait for data from spawn's stdout.
-     */
-    private Selector stdoutSelector;
-
-    /**
-     * Wait for data from spawn's stderr.
-     */
-    private Selector stderrSelector;
-
-    /**
-     * This object will be notified on timer timeout or when the spawn we're
-     * waiting for closes.
-     */
-    private final Object doneWaitingForClose = new Object();
-
-    /**
-     * Constructor
-     *
-     * @param spawn This is what we'll control.
-     * @param lDefaultTimeOutSeconds Default timeout for expect commands
-     * @throws IOException on trouble launching the spawn
-     */
-    Spawn(Spawnable spawn, long lDefaultTimeOutSeconds, boolean echo) throws IOException {
-        if (lDefaultTimeOutSeconds < -1) {
-            throw new IllegalArgumentException("Timeout must be >= -1, was "
-                                               + lDefaultTimeOutSeconds);
-        }
-        m_lDefaultTimeOutSeconds = lDefaultTimeOutSeconds;
-
-        slave = new SpawnableHelper(spawn, lDefaultTimeOutSeconds, echo);
-        slave.start();
-        LOG.debug("Spawned Process: " + spawn);
-
-        if (slave.getStdin() != null) {
-            toStdin =
-                new BufferedWriter(new OutputStreamWriter(slave.getStdin()));
-        }
-
-        stdoutSelector = Selector.open();
-        slave.getStdoutChannel().register(stdoutSelector, SelectionKey.OP_READ);
-        if (slave.getStderrChannel() != null) {
-            stderrSelector = Selector.open();
-            slave.getStderrChannel().register(stderrSelector, SelectionKey.OP_READ);
-        }
-    }
-
-    /**
-     * This method is invoked by our {@link Timer} when the time-out occurs.
-     */
-    private synchronized void timerTimedOut() {
-        continueReading = false;
-        stdoutSelector.wakeup();
-        if (stderrSelector != null) {
-            stderrSelector.wakeup();
-        }
-        synchronized (doneWaitingForClose) {
-            doneWaitingForClose.notify();
-        }
-    }
-
-    /**
-     * This method is invoked by our {@link Timer} when the timer thread
-     * receives an interrupted exception
-     * @param reason The reason for the interrupt
-     */
-    private void timerInterrupted(InterruptedException reason) {
-        timerTimedOut();
-    }
-
-    /**
-     * Wait for a pattern to appear on standard out.
-     * @param pattern The case-insensitive substring to match against.
-     * @param timeOutSeconds The timeout in seconds before the match fails.
-     * @throws IOException on IO trouble waiting for pattern
-     * @throws TimeoutException on timeout waiting for pattern
-     */
-    public void expect(String pattern, long timeOutSeconds)
-    throws IOException, TimeoutException
-    {
-        expect(pattern, timeOutSeconds, stdoutSelector);
-    }
-
-    /**
-     * Wait for the spawned process to finish.
-     * @param timeOutSeconds The number of seconds to wait before giving up, or
-     * -1 to wait forever.
-     * @throws ExpectJException if we're interrupted while waiting for the spawn
-     * to finish.
-     * @throws TimeoutException if the spawn didn't finish inside of the
-     * timeout.
-     * @see #expectClose()
-     */
-    public void expectClose(long timeOutSeconds)
-    throws TimeoutException, ExpectJException
-    {
-        if (timeOutSeconds < -1) {
-            throw new IllegalArgumentException("Timeout must be >= -1, was "
-                                               + timeOutSeconds);
-        }
-
-        LOG.debug("Waiting for spawn to close connection...");
-        Timer tm = null;
-        slave.setCloseListener(new Spawnable.CloseListener() {
-            public void onClose() {
-                synchronized (doneWaitingForClose) {
-                    doneWaitingForClose.notify();
-                }
-            }
-        });
-        if (timeOutSeconds != -1 ) {
-            tm = new Timer(timeOutSeconds, new TimerEventListener() {
-                public void timerTimedOut() {
-                    Spawn.this.timerTimedOut();
-                }
-
-                public void timerInterrupted(InterruptedException reason) {
-                    Spawn.this.timerInterrupted(reason);
-                }
-            });
-            tm.startTimer();
-        }
-        continueReading = true;
-        boolean closed = false;
-        synchronized (doneWaitingForClose) {
-            while(continueReading) {
-                // Sleep if process is still running
-                if (slave.isClosed()) {
-                    closed = true;
-                    break;
-                } else {
-                    try {
-                        doneWaitingForClose.wait(500);
-                    } catch (InterruptedException e) {
-                        throw new ExpectJException("Interrupted waiting for spawn to finish",
-                                                   e);
-                    }
-                }
-            }
-        }
-        if (tm != null) {
-            tm.close();
-        }
-        if (closed) {
-            LOG.debug("Connection to spawn closed, continueReading="
-                      + continueReading);
-        } else {
-            LOG.debug("Timed out waiting for spawn to close, continueReading="
-                      + continueReading);
-        }
-        if (tm != null) {
-            LOG.debug("Timer Status:" + tm.getStatus());
-        }
-        if (!continueReading) {
-            throw new TimeoutException("Timeout waiting for spawn to finish");
-        }
-
-        freeResources();
-    }
-
-    /**
-     * Free up system resources.
-     */
-    private void freeResources() {
-        try {
-            slave.close();
-            if (interactIn != null) {
-                interactIn.stopProcessing();
-            }
-            if (interactOut != null) {
-                interactOut.stopProcessing();
-            }
-            if (interactErr != null) {
-                interactErr.stopProcessing();
-            }
-            if (stderrSelector != null) {
-                stderrSelector.close();
-            }
-            if (stdoutSelector != null) {
-                stdoutSelector.close();
-            }
-            if (toStdin != null) {
-                toStdin.close();
-            }
-        } catch (IOException e) {
-            // Cleaning up is a best effort operation, failures are
-            // logged but otherwise accepted.
-            LOG.warn("Failed cleaning up after spawn done", e);
-        }
-    }
-
-    /**
-     * Wait the default timeout for the spawned process to finish.
-     * @throws ExpectJException If something fails.
-     * @throws TimeoutException if the spawn didn't finish inside of the default
-     * timeout.
-     * @see #expectClose(long)
-     * @see ExpectJ#ExpectJ(long)
-     */
-    public void expectClose()
-    throws ExpectJException, TimeoutException
-    {
-        expectClose(m_lDefaultTimeOutSeconds);
-    }
-
-    /**
-     * Workhorse of the expect() and expectErr() methods.
-     * @see #expect(String, long)
-     * @param pattern What to look for
-     * @param lTimeOutSeconds How long to look before giving up
-     * @param selector A selector covering only the channel we should read from
-     * @throws IOException on IO trouble waiting for pattern
-     * @throws TimeoutException on timeout waiting for pattern
-     */
-    private void expect(String pattern, long lTimeOutSeconds, Selector selector)
-    throws IOException, TimeoutException
-    {
-        if (lTimeOutSeconds < -1) {
-            throw new IllegalArgumentException("Timeout must be >= -1, was "
-                                               + lTimeOutSeconds);
-        }
-
-        if (selector.keys().size() != 1) {
-            throw new IllegalArgumentException("Selector key set size must be 1, was "
-                                               + selector.keys().size());
-        }
-        // If this cast fails somebody gave us the wrong selector.
-        Pipe.SourceChannel readMe =
-            (Pipe.SourceChannel)((SelectionKey)(selector.keys().iterator().next())).channel();
-
-        LOG.debug("Expecting '" + pattern + "'");
-        continueReading = true;
-        boolean found = false;
-        StringBuilder line = new StringBuilder();
-        Date runUntil = null;
-        if (lTimeOutSeconds > 0) {
-            runUntil = new Date(new Date().getTime() + lTimeOutSeconds * 1000);
-        }
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        while(continueReading) {
-            if (runUntil == null) {
-                selector.select();
-            } else {
-                long msLeft = runUntil.getTime() - new Date().getTime();
-                if (msLeft > 0) {
-                    selector.select(msLeft);
-                } else {
-                    continueReading = false;
-                    break;
-                }
-            }
-            if (selector.selectedKeys().size() == 0) {
-                // Woke up with nothing selected, try again
-                continue;
-            }
-
-            buffer.rewind();
-            int readCount = readMe.read(buffer);
-            if (readCount == -1) {
-                // End of stream
-                throw new IOException("End of stream reached, no match found");
-            }
-            buffer.rewind();
-            line.append(new String(buffer.array(), buffer.arrayOffset(), readCount, "ISO-8859-1"));
-            if (line.toString().trim().toUpperCase().indexOf(pattern.toUpperCase()) != -1) {
-                LOG.debug("Found match for " + pattern + ":" + line);
-                found = true;
-                break;
-            }
-            while (line.indexOf("\n") != -1) {
-                line.delete(0, line.indexOf("\n") + 1);
-            }
-        }
-        if (found) {
-            LOG.debug("Match found, continueReading=" + continueReading);
-        } else {
-            LOG.debug("Timed out waiting for match, continueReading="
-                      + continueReading);
-        }
-        if (!continueReading) {
-            throw new TimeoutException("Timeout trying to match \"" + pattern + "\"");
-        }
-    }
-
-    /**
-     * Wait for a pattern to appear on standard error.
-     * @see #expect(String, long)
-     * @param pattern The case-insensitive substring to match against.
-     * @param timeOutSeconds The timeout in seconds before the match fails.
-     * @throws TimeoutException on timeout waiting for pattern
-     * @throws IOException on IO trouble waiting for pattern
-     */
-    public void expectErr(String pattern, long timeOutSeconds)
-    throws IOException, TimeoutException
-    {
-        expect(pattern, timeOutSeconds, stderrSelector);
-    }
-
-    /**
-     * Wait for a pattern to appear on standard out.
-     * @param pattern The case-insensitive substring to match against.
-     * @throws TimeoutException on timeout waiting for pattern
-     * @throws IOException on IO trouble waiting for pattern
-     */
-    public void expect(String pattern)
-    throws IOException, TimeoutException
-    {
-        expect(pattern, m_lDefaultTimeOutSeconds);
-    }
-
-    /**
-     * Wait for a pattern to appear on standard error.
-     * @param pattern The case-insensitive substring to match against.
-     * @throws TimeoutException on timeout waiting for pattern
-     * @throws IOException on IO trouble waiting for pattern
-     * @see #expect(String)
-     */
-    public void expectErr(String pattern)
-    throws IOException, TimeoutException
-    {
-        expectErr(pattern, m_lDefaultTimeOutSeconds);
-    }
-
-    /**
-     * This method can be use use to check the target process status
-     * before invoking {@link #send(String)}
-     * @return true if the process has already exited.
-     */
-    public boolean isClosed() {
-        return slave.isClosed();
-    }
-
-    /**
-     * Retrieve the exit code of a finished process.
-     * @return the exit code of the process if the process has
-     * already exited.
-     * @throws ExpectJException if the spawn is still running.
-     */
-    public int getExitValue()
-    throws ExpectJException
-    {
-        return slave.getExitValue();
-    }
-
-    /**
-     * Writes a string to the standard input of the spawned process.
-     *
-     * @param string The string to send.  Don't forget to terminate it with \n
-     * if you want it linefed.
-     * @throws IOException on IO trouble talking to spawn
-     */
-    public void send(String string)
-    throws IOException {
-        LOG.debug("Sending '" + string + "'");
-        toStdin.write(string);
-        toStdin.flush();
-    }
-
-    /**
-     * Allows the user to interact with the spawned process.
-     */
-    public void interact() {
-        // FIXME: User input is echoed twice on the screen
-        interactIn = new StreamPiper(null,
-                                     System.in, slave.getStdin());
-        interactIn.start();
-        interactOut = new StreamPiper(null,
-                                      Channels.newInputStream(slave.getStdoutChannel()),
-                                      System.out);
-        interactOut.start();
-        interactErr = new StreamPiper(null,
-                                      Channels.newInputStream(slave.getStderrChannel()),
-                                      System.err);
-        interactErr.start();
-        slave.stopPipingToStandardOut();
-    }
-
-    /**
-     * This method kills the process represented by SpawnedProcess object.
-     */
-    public void stop() {
-        slave.stop();
-
-        freeResources();
-    }
-
-    /**
-     * Returns everything that has been received on the spawn's stdout during
-     * this session.
-     *
-     * @return the available contents of Standard Out
-     */
-    public String getCurrentStandardOutContents() {
-        return slave.getCurrentStandardOutContents();
-    }
-
-    /**
-     * Returns everything that has been received on the spawn's stderr during
-     * this session.
-     *
-     * @return the available contents of Standard Err
-     */
-    public String getCurrentStandardErrContents() {
-        return slave.getCurrentStandardErrContents();
-    }
-}
+package expectj;
+
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is used for talking to processes / ports. This will also interact
+ * with the process to read and write to it.
+ * <p>
+ * Spawns can be used from several threads at once.  Sending never waits for
+ * expect calls, so one thread can stream input while other threads expect
+ * on stdout and stderr.  Strings sent from different threads are never
+ * mixed.  Expect calls on the same stream take turns, since each one
+ * consumes what it has read; expect calls on different streams run in
+ * parallel.  Each expect and expectClose call has its own timeouts.
+ * {@link #interact()} must not be used while other threads are expecting.
+ *
+ * @author	Sachin Shekar Shetty
+ */
+public class Spawn {
+    /**
+     * Identifies the spawn's stdout stream.
+     *
+     * @see ExpectPattern
+     */
+    public static final int STDOUT = 1;
+
+    /**
+     * Identifies the spawn's stderr stream.
+     *
+     * @see ExpectPattern
+     */
+    public static final int STDERR = 2;
+
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(ProcessSpawn.class);
+
+    /** Default time out for expect commands */
+    private long m_lDefaultTimeOutSeconds = -1;
+
+    /** Give up waiting after this many seconds without output, -1 for never. */
+    private volatile long m_lIdleTimeOutSeconds = -1;
+
+    /** Aborts our blocking operations, null for none. */
+    private final CancellationToken cancellation;
+
+    /**
+     * How many bytes to read at a time from the spawn's output.
+     */
+    private final int readBufferSize;
+
+    /**
+     * Buffered wrapper stream for slave's stdin.
+     */
+    private BufferedWriter toStdin = null;
+
+    /**
+     * The registered {@link AutoResponder}s.  All accesses must be
+     * synchronized on this list.
+     */
+    private final List autoResponders = new ArrayList();
+
+    /**
+     * This is what we're actually talking to.
+     */
+    private SpawnableHelper slave = null;
+
+    /**
+     * Held while reading and matching stdout, see
+     * {@link #lockStreams(boolean, boolean)}.
+     */
+    private final ReentrantLock stdoutLock = new ReentrantLock();
+
+    /**
+     * Held while reading and matching stderr, see
+     * {@link #lockStreams(boolean, boolean)}.
+     */
+    private final ReentrantLock stderrLock = new ReentrantLock();
+
+    /**
+     * Held while sending, so strings from different threads aren't mixed.
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /**
+     * {@link AutoResponder} replies waiting to be sent.  All accesses must be
+     * synchronized on this list.
+     */
+    private final LinkedList pendingReplies = new LinkedList();
+
+    /**
+     * True while a task sending {@link #pendingReplies} is queued or running.
+     * Guarded by {@link #pendingReplies}.
+     */
+    private boolean replySenderScheduled = false;
+
+    /**
+     * Pumps data from stdin to the spawn's stdin.
+     */
+    private StreamPiper interactIn = null;
+
+    /**
+     * Pumps data from the spawn's stdout to stdout.
+     */
+    private StreamPiper interactOut = null;
+
+    /**
+     * Pumps data from the spawn's stderr to stderr.
+     */
+    private StreamPiper interactErr = null;
+
+    /**
+     * Data received on stdout that hasn't been consumed by a match yet.  Only
+     * the last line is kept.
+     */
+    private final StringBuilder stdoutLine = new StringBuilder();
+
+    /**
+     * Data received on stderr that hasn't been consumed by a match yet.  Only
+     * the last line is kept.
+     */
+    private final StringBuilder stderrLine = new StringBuilder();
+
+    /**
+     * A copy of the patterns {@link #stdoutLine} was last searched for
+     * without a match, or null.  Callers may change their arrays between
+     * calls, so this is never the caller's array.
+     */
+    private ExpectPattern[] stdoutSearchedFor = null;
+
+    /**
+     * How much of {@link #stdoutLine} has been searched for
+     * {@link #stdoutSearchedFor}.
+     */
+    private int stdoutSearched = 0;
+
+    /**
+     * A copy of the patterns {@link #stderrLine} was last searched for
+     * without a match, or null.
+     */
+    private ExpectPattern[] stderrSearchedFor = null;
+
+    /**
+     * How much of {@link #stderrLine} has been searched for
+     * {@link #stderrSearchedFor}.
+     */
+    private int stderrSearched = 0;
+
+    /**
+     * How long to wait for remaining output after the spawn has closed,
+     * before counting it for {@link ExitInfo} or freeing our resources.
+     */
+    private static final long OUTPUT_DRAIN_MILLIS = 1000;
+
+    /**
+     * This object will be notified when the spawn we're waiting for closes.
+     */
+    private final Object doneWaitingForClose = new Object();
+
+    /**
+     * Runs close listeners of spawns that don't have an executor of their
+     * own.  Created on first use.
+     */
+    private static java.util.concurrent.Executor defaultCloseListenerExecutor = null;
+
+    /**
+     * Sends auto responder replies, created on first use.
+     */
+    private static java.util.concurrent.Executor replyExecutor = null;
+
+    /**
+     * Runs our close listeners.
+     */
+    private final java.util.concurrent.Executor closeListenerExecutor;
+
+    /**
+     * Will be notified when the spawn closes.  All accesses must be
+     * synchronized on the list.
+     */
+    private final List closeListeners = new ArrayList();
+
+    /**
+     * True once the close listeners have been dispatched.  Guarded by
+     * {@link #closeListeners}.
+     */
+    private boolean closeDispatched = false;
+
+    /**
+     * When we started the spawn.
+     */
+    private final long startMillis = System.currentTimeMillis();
+
+    /**
+     * The number of bytes sent to the spawn.
+     */
+    private volatile long bytesSent = 0;
+
+    /**
+     * Set just before {@link #exitInfoFuture} is completed.
+     */
+    private volatile ExitInfo exitInfo = null;
+
+    /**
+     * Completed with {@link #exitInfo} after the spawn closes.
+     */
+    private final FutureTask exitInfoFuture = new FutureTask(new Callable() {
+        public Object call() {
+            return exitInfo;
+        }
+    });
+
+    /**
+     * Constructor
+     *
+     * @param spawn This is what we'll control.
+     * @param settings The settings of the {@link ExpectJ} creating this spawn.
+     * @throws IOException on trouble launching the spawn
+     */
+    Spawn(Spawnable spawn, ExpectJ settings) throws IOException {
+        long lDefaultTimeOutSeconds = settings.getDefaultTimeOutSeconds();
+        if (lDefaultTimeOutSeconds < -1) {
+            throw new IllegalArgumentException("Timeout must be >= -1, was "
+                                               + lDefaultTimeOutSeconds);
+        }
+        m_lDefaultTimeOutSeconds = lDefaultTimeOutSeconds;
+        m_lIdleTimeOutSeconds = settings.getIdleTimeOutSeconds();
+        readBufferSize = settings.getReadBufferSize();
+        cancellation = settings.getCancellationToken();
+        java.util.concurrent.Executor executor = settings.getCloseListenerExecutor();
+        closeListenerExecutor =
+            (executor != null) ? executor : getDefaultCloseListenerExecutor();
+
+        slave = new SpawnableHelper(spawn, settings);
+        if (cancellation != null) {
+            cancellation.enter(spawn);
+        }
+        try {
+            slave.start();
+        } catch (IOException e) {
+            if (cancellation != null && cancellation.isCancelled()) {
+                InterruptedIOException wrapper =
+                    new InterruptedIOException("Cancelled starting " + spawn);
+                wrapper.initCause(e);
+                throw wrapper;
+            }
+            throw e;
+        } finally {
+            if (cancellation != null) {
+                cancellation.exit(spawn);
+            }
+        }
+        LOG.debug("Spawned Process: " + spawn);
+
+        if (slave.getStdin() != null) {
+            // Count what we send, for our ExitInfo.  Count first, the write
+            // may make the spawn close.
+            FilterOutputStream counter = new FilterOutputStream(slave.getStdin()) {
+                public void write(byte[] b, int off, int len) throws IOException {
+                    bytesSent += len;
+                    out.write(b, off, len);
+                }
+
+                public void write(int b) throws IOException {
+                    bytesSent++;
+                    out.write(b);
+                }
+            };
+            toStdin = new BufferedWriter(new OutputStreamWriter(counter));
+        }
+
+        slave.addCloseListener(new Spawnable.CloseListener() {
+            public void onClose() {
+                spawnClosed();
+            }
+        });
+        if (slave.isClosed()) {
+            // We may have missed the spawnable closing, and spawnables don't
+            // have to tell us about that anyway
+            spawnClosed();
+        }
+
+        if (cancellation != null && cancellation.isCancelled()) {
+            // We may have been cancelled after the spawnable was done starting
+            stop();
+            throw new InterruptedIOException("Cancelled starting " + spawn);
+        }
+    }
+
+    /**
+     * @return An executor running close listeners on daemon threads.
+     */
+    private static synchronized java.util.concurrent.Executor getDefaultCloseListenerExecutor() {
+        if (defaultCloseListenerExecutor == null) {
+            defaultCloseListenerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ExpectJ Close Listener");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultCloseListenerExecutor;
+    }
+
+    /**
+     * @return An executor sending auto responder replies on daemon threads.
+     */
+    private static synchronized java.util.concurrent.Executor getReplyExecutor() {
+        if (replyExecutor == null) {
+            replyExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ExpectJ Auto Responder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return replyExecutor;
+    }
+
+    /**
+     * Run something on our close listener executor, or in this thread if the
+     * executor won't take it.
+     *
+     * @param task What to run.
+     */
+    private void dispatch(Runnable task) {
+        try {
+            closeListenerExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Close listener executor rejected task, running it directly", e);
+            task.run();
+        }
+    }
+
+    /**
+     * Call a close listener, logging any exception it throws.
+     *
+     * @param listener The listener to call.
+     */
+    private void notifyCloseListener(Spawnable.CloseListener listener) {
+        try {
+            listener.onClose();
+        } catch (RuntimeException e) {
+            LOG.warn("Close listener failed: " + listener, e);
+        }
+    }
+
+    /**
+     * The spawn has closed.  Wakes up threads waiting for that, and dispatches
+     * the close listeners the first time we're called.
+     */
+    private void spawnClosed() {
+        synchronized (doneWaitingForClose) {
+            doneWaitingForClose.notifyAll();
+        }
+
+        final Spawnable.CloseListener[] listeners;
+        synchronized (closeListeners) {
+            if (closeDispatched) {
+                return;
+            }
+            closeDispatched = true;
+            listeners = (Spawnable.CloseListener[])closeListeners.toArray(
+                new Spawnable.CloseListener[closeListeners.size()]);
+        }
+        final long closedMillis = System.currentTimeMillis();
+        dispatch(new Runnable() {
+            public void run() {
+                try {
+                    slave.awaitOutputEnd(OUTPUT_DRAIN_MILLIS);
+                } catch (InterruptedException e) {
+                    LOG.warn("Interrupted waiting for output, exit info may be incomplete", e);
+                }
+                exitInfo = createExitInfo(closedMillis);
+                exitInfoFuture.run();
+                for (int i = 0; i < listeners.length; i++) {
+                    notifyCloseListener(listeners[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Collect what we know about the closed spawn.
+     *
+     * @param closedMillis When the spawn closed.
+     * @return What we know about the spawn.
+     */
+    private ExitInfo createExitInfo(long closedMillis) {
+        int exitValue = 0;
+        boolean hasExitValue = true;
+        try {
+            exitValue = slave.getExitValue();
+        } catch (ExpectJException e) {
+            hasExitValue = false;
+        } catch (RuntimeException e) {
+            LOG.warn("Getting exit value failed", e);
+            hasExitValue = false;
+        }
+        StreamMetrics stdout = slave.getStreamMetrics(STDOUT);
+        StreamMetrics stderr = slave.getStreamMetrics(STDERR);
+        return new ExitInfo(exitValue, hasExitValue, closedMillis - startMillis,
+                            bytesSent,
+                            (stdout == null) ? 0 : stdout.getBytesRead(),
+                            (stderr == null) ? 0 : stderr.getBytesRead());
+    }
+
+    /**
+     * Register a listener that will be called when the spawn closes.
+     * <p>
+     * Listeners are called on the executor set by
+     * {@link ExpectJ#setCloseListenerExecutor(java.util.concurrent.Executor)},
+     * after {@link #getExitInfo()} is done.  A listener added after the spawn
+     * has closed is called right away.
+     * <p>
+     * Spawnables that don't tell when they close are noticed by
+     * {@link #expectClose()}, {@link #isClosed()} and {@link #stop()}.
+     *
+     * @param listener The listener to add.
+     * @see #removeCloseListener(Spawnable.CloseListener)
+     */
+    public void addCloseListener(final Spawnable.CloseListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("Close listener must not be null");
+        }
+        synchronized (closeListeners) {
+            if (!closeDispatched) {
+                closeListeners.add(listener);
+                return;
+            }
+        }
+        dispatch(new Runnable() {
+            public void run() {
+                notifyCloseListener(listener);
+            }
+        });
+    }
+
+    /**
+     * Stop notifying a close listener.  Listeners that have already been
+     * dispatched may still be called.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeCloseListener(Spawnable.CloseListener listener) {
+        synchronized (closeListeners) {
+            closeListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Find out how the spawn ended, without polling {@link #isClosed()}.
+     * <p>
+     * The future's value is an {@link ExitInfo}.  It is done once the spawn
+     * has closed and been noticed, see
+     * {@link #addCloseListener(Spawnable.CloseListener)}.
+     *
+     * @return A future {@link ExitInfo}.
+     */
+    public Future getExitInfo() {
+        return exitInfoFuture;
+    }
+
+    /**
+     * Register a blocking operation with our cancellation token, if any.
+     * Must be followed by {@link #endOperation()}.
+     *
+     * @throws InterruptedIOException if the token has been cancelled.
+     * @see ExpectJ#setCancellationToken(CancellationToken)
+     */
+    void beginOperation() throws InterruptedIOException {
+        if (cancellation != null) {
+            cancellation.enter();
+        }
+    }
+
+    /**
+     * A blocking operation registered by {@link #beginOperation()} is done.
+     */
+    void endOperation() {
+        if (cancellation != null) {
+            cancellation.exit();
+        }
+    }
+
+    /**
+     * Get exclusive access to what has been received on some of the spawn's
+     * output streams.  Stdout is always locked before stderr.  Must be
+     * followed by {@link #unlockStreams(boolean, boolean)}.
+     *
+     * @param stdout True to lock stdout.
+     * @param stderr True to lock stderr.
+     * @throws InterruptedIOException if interrupted while waiting for another
+     * thread to finish reading.  Nothing is locked then.
+     */
+    void lockStreams(boolean stdout, boolean stderr) throws InterruptedIOException {
+        try {
+            if (stdout) {
+                stdoutLock.lockInterruptibly();
+            }
+            if (stderr) {
+                try {
+                    stderrLock.lockInterruptibly();
+                } catch (InterruptedException e) {
+                    if (stdout) {
+                        stdoutLock.unlock();
+                    }
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException wrapper =
+                new InterruptedIOException("Interrupted waiting for another thread reading spawn output");
+            wrapper.initCause(e);
+            throw wrapper;
+        }
+    }
+
+    /**
+     * Release locks taken by {@link #lockStreams(boolean, boolean)}.
+     *
+     * @param stdout True to unlock stdout.
+     * @param stderr True to unlock stderr.
+     */
+    void unlockStreams(boolean stdout, boolean stderr) {
+        if (stderr) {
+            stderrLock.unlock();
+        }
+        if (stdout) {
+            stdoutLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a pattern to appear on standard out.
+     * @param pattern The case-insensitive substring to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @throws IOException on IO trouble waiting for pattern
+     * @throws TimeoutException on timeout waiting for pattern
+     */
+    public void expect(String pattern, long timeOutSeconds)
+    throws IOException, TimeoutException
+    {
+        expect(new ExpectPattern[] {ExpectPattern.stdout(pattern)}, timeOutSeconds);
+    }
+
+    /**
+     * Wait for the spawned process to finish.
+     * @param timeOutSeconds The number of seconds to wait before giving up, or
+     * -1 to wait forever.
+     * @throws ExpectJException if we're interrupted while waiting for the spawn
+     * to finish.
+     * @throws TimeoutException if the spawn didn't finish inside of the
+     * timeout.
+     * @see #expectClose()
+     */
+    public void expectClose(long timeOutSeconds)
+    throws TimeoutException, ExpectJException
+    {
+        if (timeOutSeconds < -1) {
+            throw new IllegalArgumentException("Timeout must be >= -1, was "
+                                               + timeOutSeconds);
+        }
+
+        LOG.debug("Waiting for spawn to close connection...");
+        try {
+            beginOperation();
+        } catch (InterruptedIOException e) {
+            throw new ExpectJException("Cancelled waiting for spawn to finish", e);
+        }
+        Date runUntil = null;
+        if (timeOutSeconds != -1) {
+            runUntil = new Date(new Date().getTime() + timeOutSeconds * 1000);
+        }
+        boolean closed = false;
+        long waitStart = System.currentTimeMillis();
+        try {
+            synchronized (doneWaitingForClose) {
+                while (true) {
+                    // Sleep if process is still running
+                    if (slave.isClosed()) {
+                        closed = true;
+                        break;
+                    }
+                    long msLeft = waitTimeLeft(runUntil, waitStart);
+                    if (msLeft == 0) {
+                        break;
+                    }
+                    try {
+                        doneWaitingForClose.wait((msLeft == -1) ? 500 : Math.min(msLeft, 500));
+                    } catch (InterruptedException e) {
+                        throw new ExpectJException("Interrupted waiting for spawn to finish",
+                                                   e);
+                    }
+                }
+            }
+        } finally {
+            endOperation();
+        }
+        if (!closed) {
+            LOG.debug("Timed out waiting for spawn to close");
+            throw new TimeoutException("Timeout waiting for spawn to finish");
+        }
+        LOG.debug("Connection to spawn closed");
+
+        spawnClosed();
+        try {
+            // Stopping our pipers would drop whatever they haven't read yet
+            slave.awaitOutputEnd(OUTPUT_DRAIN_MILLIS);
+        } catch (InterruptedException e) {
+            throw new ExpectJException("Interrupted waiting for spawn output", e);
+        }
+        freeResources();
+    }
+
+    /**
+     * Free up system resources.
+     */
+    private void freeResources() {
+        try {
+            slave.close();
+            if (interactIn != null) {
+                interactIn.stopProcessing();
+            }
+            if (interactOut != null) {
+                interactOut.stopProcessing();
+            }
+            if (interactErr != null) {
+                interactErr.stopProcessing();
+            }
+            if (toStdin != null) {
+                toStdin.close();
+            }
+        } catch (IOException e) {
+            // Cleaning up is a best effort operation, failures are
+            // logged but otherwise accepted.
+            LOG.warn("Failed cleaning up after spawn done", e);
+        }
+    }
+
+    /**
+     * Wait the default timeout for the spawned process to finish.
+     * @throws ExpectJException If something fails.
+     * @throws TimeoutException if the spawn didn't finish inside of the default
+     * timeout.
+     * @see #expectClose(long)
+     * @see ExpectJ#ExpectJ(long)
+     */
+    public void expectClose()
+    throws ExpectJException, TimeoutException
+    {
+        expectClose(m_lDefaultTimeOutSeconds);
+    }
+
+    /**
+     * Wait for any of a number of patterns to appear on standard out or
+     * standard error.
+     * <p>
+     * Both streams are watched at the same time, so this can be used for
+     * waiting for either a prompt on stdout or an error message on stderr.  If
+     * more than one pattern matches, the one first in the array wins.  Received
+     * data following the match is kept for the next expect call.
+     *
+     * @param patterns What to look for, each tagged with the stream to look on.
+     * Patterns for stderr are ignored if the spawn has no stderr.
+     * @param lTimeOutSeconds The timeout in seconds before the match fails, or
+     * -1 to wait forever.
+     * @return A description of which pattern was found.
+     * @throws IOException on IO trouble waiting for pattern, or if all watched
+     * streams are closed without a match.  An InterruptedIOException if the
+     * waiting thread is interrupted, or the spawn's {@link CancellationToken}
+     * is cancelled.
+     * @throws TimeoutException on timeout waiting for pattern
+     * @see #tryExpect(ExpectPattern[], long)
+     */
+    public ExpectMatch expect(ExpectPattern[] patterns, long lTimeOutSeconds)
+    throws IOException, TimeoutException
+    {
+        ExpectResult result = tryExpect(patterns, lTimeOutSeconds);
+        switch (result.getStatus()) {
+        case ExpectResult.MATCHED:
+            return result.getMatch();
+        case ExpectResult.EOF:
+            throw new IOException("End of stream reached, no match found");
+        default:
+            throw new TimeoutException("Timeout trying to match " + describe(patterns));
+        }
+    }
+
+    /**
+     * Wait for any of a number of patterns to appear on standard out or
+     * standard error, without throwing exceptions on timeouts or closed
+     * streams.
+     * <p>
+     * This works just like {@link #expect(ExpectPattern[], long)}, but is
+     * cheaper for scripts that often try one thing and fall back to another.
+     *
+     * @param patterns What to look for, each tagged with the stream to look on.
+     * Patterns for stderr are ignored if the spawn has no stderr.
+     * @param lTimeOutSeconds The timeout in seconds before the match fails, or
+     * -1 to wait forever.
+     * @return Whether a pattern was found, the watched streams ended or we
+     * timed out.
+     * @throws IOException on IO trouble waiting for pattern.  An
+     * InterruptedIOException if the waiting thread is interrupted, or the
+     * spawn's {@link CancellationToken} is cancelled.
+     */
+    public ExpectResult tryExpect(ExpectPattern[] patterns, long lTimeOutSeconds)
+    throws IOException
+    {
+        if (lTimeOutSeconds < -1) {
+            throw new IllegalArgumentException("Timeout must be >= -1, was "
+                                               + lTimeOutSeconds);
+        }
+
+        boolean watchStdout = false;
+        boolean watchStderr = false;
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].getStream() == STDOUT) {
+                watchStdout = true;
+            } else if (slave.getStderrQueue() != null) {
+                watchStderr = true;
+            }
+        }
+        if (!watchStdout && !watchStderr) {
+            throw new IllegalArgumentException("No patterns to look for on stdout, and "
+                                               + (slave.getStderrQueue() == null
+                                                  ? "spawn has no stderr"
+                                                  : "no patterns for stderr"));
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Expecting " + describe(patterns));
+        }
+        slave.wake();
+
+        beginOperation();
+        try {
+            lockStreams(watchStdout, watchStderr);
+            try {
+                return awaitMatch(patterns, watchStdout, watchStderr, lTimeOutSeconds);
+            } finally {
+                unlockStreams(watchStdout, watchStderr);
+            }
+        } finally {
+            endOperation();
+        }
+    }
+
+    /**
+     * Look for patterns in buffered and new output until one matches, the
+     * watched streams end or we time out.  The caller must hold the locks of
+     * the watched streams.
+     *
+     * @param patterns What to look for, each tagged with the stream to look on.
+     * @param watchStdout True to look on stdout.
+     * @param watchStderr True to look on stderr.
+     * @param lTimeOutSeconds The timeout in seconds before the match fails, or
+     * -1 to wait forever.
+     * @return Whether a pattern was found, the watched streams ended or we
+     * timed out.
+     * @throws IOException on IO trouble waiting for pattern.
+     * @see #tryExpect(ExpectPattern[], long)
+     */
+    private ExpectResult awaitMatch(ExpectPattern[] patterns,
+                                    boolean watchStdout,
+                                    boolean watchStderr,
+                                    long lTimeOutSeconds)
+    throws IOException
+    {
+        // What we have received earlier may already match
+        ExpectMatch match = null;
+        if (watchStdout) {
+            match = findBufferedMatch(patterns, STDOUT);
+        }
+        if (match == null && watchStderr) {
+            match = findBufferedMatch(patterns, STDERR);
+        }
+        if (match != null) {
+            LOG.debug("Found match for " + match.getPattern() + ":" + match.getText());
+            return ExpectResult.matched(match);
+        }
+
+        // Stdout first, then stderr
+        SpscByteQueue[] watched = new SpscByteQueue[] {
+            watchStdout ? slave.getStdoutQueue() : null,
+            watchStderr ? slave.getStderrQueue() : null
+        };
+
+        Date runUntil = null;
+        if (lTimeOutSeconds > 0) {
+            runUntil = new Date(new Date().getTime() + lTimeOutSeconds * 1000);
+        }
+        long waitStart = System.currentTimeMillis();
+        byte[] buffer = BufferPool.acquire(readBufferSize);
+        try {
+            while (true) {
+                boolean gotData = false;
+                for (int i = 0; i < watched.length; i++) {
+                    if (watched[i] == null) {
+                        continue;
+                    }
+                    int stream = (i == 0) ? STDOUT : STDERR;
+                    int readCount = read(stream, buffer);
+                    if (readCount == 0) {
+                        continue;
+                    }
+                    if (readCount == -1) {
+                        // End of this stream, keep watching the other one if we can
+                        watched[i] = null;
+                        if (watched[0] == null && watched[1] == null) {
+                            return ExpectResult.eof(getPartial(patterns));
+                        }
+                        continue;
+                    }
+
+                    gotData = true;
+                    match = findBufferedMatch(patterns, stream);
+                    if (match != null) {
+                        LOG.debug("Found match for " + match.getPattern() + ":" + match.getText());
+                        return ExpectResult.matched(match);
+                    }
+                }
+                if (gotData) {
+                    // There may be more where that came from
+                    continue;
+                }
+
+                long msLeft = waitTimeLeft(runUntil, waitStart);
+                if (msLeft == 0) {
+                    break;
+                }
+                SpscByteQueue.awaitAny(watched, msLeft);
+            }
+
+            LOG.debug("Timed out waiting for match");
+            return ExpectResult.timedOut(getPartial(patterns));
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Wait the default timeout for any of a number of patterns to appear on
+     * standard out or standard error, without throwing exceptions on timeouts
+     * or closed streams.
+     *
+     * @param patterns What to look for, each tagged with the stream to look on.
+     * @return Whether a pattern was found, the watched streams ended or we
+     * timed out.
+     * @throws IOException on IO trouble waiting for pattern
+     * @see #tryExpect(ExpectPattern[], long)
+     */
+    public ExpectResult tryExpect(ExpectPattern[] patterns)
+    throws IOException
+    {
+        return tryExpect(patterns, m_lDefaultTimeOutSeconds);
+    }
+
+    /**
+     * Wait for a pattern to appear on standard out, without throwing
+     * exceptions on timeouts or closed streams.
+     *
+     * @param pattern The case-insensitive substring to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return Whether the pattern was found, stdout ended or we timed out.
+     * @throws IOException on IO trouble waiting for pattern
+     * @see #tryExpect(ExpectPattern[], long)
+     */
+    public ExpectResult tryExpect(String pattern, long timeOutSeconds)
+    throws IOException
+    {
+        return tryExpect(new ExpectPattern[] {ExpectPattern.stdout(pattern)}, timeOutSeconds);
+    }
+
+    /**
+     * Wait the default timeout for a pattern to appear on standard out, without
+     * throwing exceptions on timeouts or closed streams.
+     *
+     * @param pattern The case-insensitive substring to match against.
+     * @return Whether the pattern was found, stdout ended or we timed out.
+     * @throws IOException on IO trouble waiting for pattern
+     * @see #tryExpect(ExpectPattern[], long)
+     */
+    public ExpectResult tryExpect(String pattern)
+    throws IOException
+    {
+        return tryExpect(pattern, m_lDefaultTimeOutSeconds);
+    }
+
+    /**
+     * Hand each line on standard out containing a record pattern to a handler,
+     * until a terminator appears.
+     * <p>
+     * Lines are handed over as they stream past, and are discarded right after
+     * that.  This makes it possible to process huge outputs piece by piece:
+     * <pre>
+     * spawn.send("show interfaces\n");
+     * spawn.expectEach("line protocol", "router#", handler, 600);
+     * </pre>
+     * For memory use to stay constant no matter how much is printed, the spawn
+     * must also have been created with output capturing turned off, see
+     * {@link ExpectJ#setCaptureOutput(boolean)}.
+     * <p>
+     * The terminator is looked for both in complete lines and in the line
+     * currently being received, so it can be a prompt.  Received data
+     * following the terminator is kept for the next expect call.
+     *
+     * @param recordPattern The case-insensitive substring identifying record
+     * lines.
+     * @param terminator The case-insensitive substring to stop at.
+     * @param handler Receives the record lines.
+     * @param lTimeOutSeconds The timeout in seconds before we give up waiting
+     * for the terminator, or -1 to wait forever.
+     * @return The number of records handled.
+     * @throws IOException on IO trouble, if stdout ends before the terminator
+     * shows up, or if the handler throws.
+     * @throws TimeoutException if the terminator doesn't show up in time.
+     */
+    public int expectEach(String recordPattern,
+                          String terminator,
+                          RecordHandler handler,
+                          long lTimeOutSeconds)
+    throws IOException, TimeoutException
+    {
+        if (lTimeOutSeconds < -1) {
+            throw new IllegalArgumentException("Timeout must be >= -1, was "
+                                               + lTimeOutSeconds);
+        }
+        slave.wake();
+        CaseInsensitiveSearch recordSearch = new CaseInsensitiveSearch(recordPattern);
+        CaseInsensitiveSearch terminatorSearch = new CaseInsensitiveSearch(terminator);
+
+        SpscByteQueue[] watched = new SpscByteQueue[] {slave.getStdoutQueue()};
+
+        Date runUntil = null;
+        if (lTimeOutSeconds > 0) {
+            runUntil = new Date(new Date().getTime() + lTimeOutSeconds * 1000);
+        }
+        long waitStart = System.currentTimeMillis();
+        beginOperation();
+        byte[] buffer = BufferPool.acquire(readBufferSize);
+        boolean locked = false;
+        try {
+            lockStreams(true, false);
+            locked = true;
+            int records = 0;
+
+            // How much of the unfinished line has already been searched for
+            // the terminator
+            int unfinishedSearched = 0;
+            while (true) {
+                int consumed = 0;
+                int searchedTo = unfinishedSearched;
+                boolean terminated = false;
+                try {
+                    int linefeed;
+                    while ((linefeed = stdoutLine.indexOf("\n", consumed)) != -1) {
+                        int from = Math.max(consumed, searchedTo - terminatorSearch.length() + 1);
+                        int terminatorIndex = terminatorSearch.indexOf(stdoutLine, from, linefeed);
+                        if (terminatorIndex != -1) {
+                            consumed = terminatorIndex + terminatorSearch.length();
+                            terminated = true;
+                            break;
+                        }
+                        int lineStart = consumed;
+                        consumed = linefeed + 1;
+                        searchedTo = consumed;
+                        if (recordSearch.indexOf(stdoutLine, lineStart, linefeed) != -1) {
+                            int lineEnd = linefeed;
+                            if (lineEnd > lineStart && stdoutLine.charAt(lineEnd - 1) == '\r') {
+                                lineEnd--;
+                            }
+                            records++;
+                            handler.handleRecord(stdoutLine.substring(lineStart, lineEnd));
+                        }
+                    }
+                    if (!terminated) {
+                        int from = Math.max(consumed, searchedTo - terminatorSearch.length() + 1);
+                        int terminatorIndex =
+                            terminatorSearch.indexOf(stdoutLine, from, stdoutLine.length());
+                        if (terminatorIndex != -1) {
+                            consumed = terminatorIndex + terminatorSearch.length();
+                            terminated = true;
+                        } else {
+                            unfinishedSearched = stdoutLine.length() - consumed;
+                        }
+                    }
+                } finally {
+                    stdoutLine.delete(0, consumed);
+                    stdoutSearchedFor = null;
+                }
+                if (terminated) {
+                    LOG.debug("Found terminator " + terminator + " after " + records + " records");
+                    return records;
+                }
+
+                int readCount = read(STDOUT, buffer);
+                while (readCount == 0) {
+                    long msLeft = waitTimeLeft(runUntil, waitStart);
+                    if (msLeft == 0) {
+                        throw new TimeoutException("Timeout waiting for \"" + terminator + "\"");
+                    }
+                    SpscByteQueue.awaitAny(watched, msLeft);
+                    readCount = read(STDOUT, buffer);
+                }
+                if (readCount == -1) {
+                    throw new IOException("End of stream reached, terminator not found");
+                }
+            }
+        } finally {
+            if (locked) {
+                unlockStreams(true, false);
+            }
+            BufferPool.release(buffer);
+            endOperation();
+        }
+    }
+
+    /**
+     * Clean up output read from one of the spawn's streams from now on, before
+     * it is matched against and captured.  Output already read is left as it
+     * is.  Replaces any filter set through
+     * {@link ExpectJ#setOutputFilters(int)}.
+     *
+     * @param stream {@link #STDOUT} or {@link #STDERR}.
+     * @param filter The filter to use, null for no filtering.  Filters keep
+     * state, so don't share an instance between streams.
+     * @see OutputFilters
+     */
+    public void setOutputFilter(int stream, OutputFilter filter) {
+        if (stream != STDOUT && stream != STDERR) {
+            throw new IllegalArgumentException("Unknown stream " + stream);
+        }
+        slave.setOutputFilter(stream, filter);
+    }
+
+    /**
+     * @return The emulated terminal the spawn's stdout is printed on, or null
+     * if terminal emulation is off.
+     * @see ExpectJ#setTerminalEmulation(int, int)
+     */
+    public TerminalScreen getScreen() {
+        return slave.getScreen();
+    }
+
+    /**
+     * Wait for text to show up anywhere on the emulated terminal screen.
+     *
+     * @param pattern The case-insensitive substring to wait for.
+     * @param timeOutSeconds The timeout in seconds, or -1 to wait forever.
+     * @return The row the text showed up on, 0 based.
+     * @throws IOException if stdout ends without the text showing up, or if
+     * interrupted while waiting.
+     * @throws TimeoutException on timeout waiting for the text.
+     * @see #expectScreen(String, int, int, long)
+     */
+    public int expectScreen(String pattern, long timeOutSeconds)
+    throws IOException, TimeoutException
+    {
+        TerminalScreen screen = getScreen();
+        int lastRow = (screen == null) ? 0 : screen.getRows() - 1;
+        return expectScreen(pattern, 0, lastRow, timeOutSeconds);
+    }
+
+    /**
+     * Wait for text to show up on some rows of the emulated terminal screen.
+     * <p>
+     * Unlike expect(), this looks at what's currently on the screen, so text
+     * that shows up and is then overwritten may be missed, and text already
+     * on the screen is found again.  Only rows changed since the previous look
+     * are examined while waiting.  Text spanning rows isn't found.
+     *
+     * @param pattern The case-insensitive substring to wait for.
+     * @param firstRow The first row to look on, 0 based.
+     * @param lastRow The last row to look on, inclusive.
+     * @param timeOutSeconds The timeout in seconds, or -1 to wait forever.
+     * @return The row the text showed up on, 0 based.
+     * @throws IOException if stdout ends without the text showing up, or if
+     * interrupted while waiting.
+     * @throws TimeoutException on timeout waiting for the text.
+     * @throws IllegalStateException if terminal emulation is off.
+     * @see ExpectJ#setTerminalEmulation(int, int)
+     */
+    public int expectScreen(String pattern, int firstRow, int lastRow, long timeOutSeconds)
+    throws IOException, TimeoutException
+    {
+        if (timeOutSeconds < -1) {
+            throw new IllegalArgumentException("Timeout must be >= -1, was "
+                                               + timeOutSeconds);
+        }
+        TerminalScreen screen = getScreen();
+        if (screen == null) {
+            throw new IllegalStateException("Terminal emulation is off, "
+                                            + "see ExpectJ.setTerminalEmulation()");
+        }
+        slave.wake();
+        int row;
+        beginOperation();
+        try {
+            row = screen.waitFor(pattern, firstRow, lastRow,
+                                 (timeOutSeconds == -1) ? -1 : timeOutSeconds * 1000);
+        } catch (InterruptedException e) {
+            InterruptedIOException wrapper =
+                new InterruptedIOException("Interrupted waiting for \"" + pattern + "\"");
+            wrapper.initCause(e);
+            throw wrapper;
+        } finally {
+            endOperation();
+        }
+        if (row != -1) {
+            LOG.debug("Found " + pattern + " on screen row " + row);
+            return row;
+        }
+        if (screen.isClosed()) {
+            throw new IOException("End of stream reached, no match found");
+        }
+        throw new TimeoutException("Timeout waiting for \"" + pattern + "\" on screen");
+    }
+
+    /**
+     * Read whatever is available on one of the spawn's output streams, and
+     * add it to what has been received but not yet consumed by a match.
+     *
+     * @param stream {@link #STDOUT} or {@link #STDERR}.
+     * @param buffer Scratch space for reading.
+     * @return The number of bytes read, 0 if nothing was available, or -1 at
+     * end of stream.
+     * @throws IOException on trouble reading.
+     */
+    int read(int stream, byte[] buffer) throws IOException {
+        SpscByteQueue queue =
+            (stream == STDOUT) ? slave.getStdoutQueue() : slave.getStderrQueue();
+        int readCount = queue.poll(buffer, 0, buffer.length);
+        if (readCount > 0) {
+            // Decode ISO-8859-1 in place, without a temporary String
+            StringBuilder line = (stream == STDOUT) ? stdoutLine : stderrLine;
+            line.ensureCapacity(line.length() + readCount);
+            for (int i = 0; i < readCount; i++) {
+                line.append((char)(buffer[i] & 0xff));
+            }
+        }
+        return readCount;
+    }
+
+    /**
+     * Look for patterns in what has been received on one stream but not yet
+     * consumed by a match.
+     *
+     * @param patterns The patterns to look for.  Only patterns for the given
+     * stream are considered.
+     * @param stream {@link #STDOUT} or {@link #STDERR}.
+     * @return The first matching pattern, or null if none matched.
+     */
+    ExpectMatch findBufferedMatch(ExpectPattern[] patterns, int stream) {
+        ExpectMatch match;
+        if (stream == STDOUT) {
+            boolean same = samePatterns(stdoutSearchedFor, patterns);
+            match = findMatch(patterns, stream, stdoutLine, same ? stdoutSearched : 0);
+            if (match != null) {
+                stdoutSearchedFor = null;
+            } else if (!same) {
+                stdoutSearchedFor = (ExpectPattern[])patterns.clone();
+            }
+            stdoutSearched = trimmedEnd(stdoutLine);
+        } else {
+            boolean same = samePatterns(stderrSearchedFor, patterns);
+            match = findMatch(patterns, stream, stderrLine, same ? stderrSearched : 0);
+            if (match != null) {
+                stderrSearchedFor = null;
+            } else if (!same) {
+                stderrSearchedFor = (ExpectPattern[])patterns.clone();
+            }
+            stderrSearched = trimmedEnd(stderrLine);
+        }
+        return match;
+    }
+
+    /**
+     * @param searchedFor The patterns a line was last searched for, or null.
+     * @param patterns The patterns to search for now.
+     * @return True if the same patterns are searched for, in the same order.
+     */
+    private static boolean samePatterns(ExpectPattern[] searchedFor,
+                                        ExpectPattern[] patterns)
+    {
+        if (searchedFor == null || searchedFor.length != patterns.length) {
+            return false;
+        }
+        for (int i = 0; i < patterns.length; i++) {
+            // Patterns are immutable
+            if (searchedFor[i] != patterns[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make expect calls give up when the spawn has been quiet for a while,
+     * even if their timeout hasn't run out.  The idle time counts from the
+     * last output received, or from when the wait started if that was later.
+     *
+     * @param idleTimeOutSeconds Give up after this many seconds without
+     * output.  -1 to only use the expect timeouts.
+     * @see ExpectJ#setIdleTimeout(long)
+     */
+    public void setIdleTimeout(long idleTimeOutSeconds) {
+        if (idleTimeOutSeconds < 1 && idleTimeOutSeconds != -1) {
+            throw new IllegalArgumentException("Idle timeout must be >= 1 or -1, was "
+                                               + idleTimeOutSeconds);
+        }
+        m_lIdleTimeOutSeconds = idleTimeOutSeconds;
+    }
+
+    /**
+     * Find out how much longer to wait, considering both the timeout and the
+     * idle timeout.
+     *
+     * @param runUntil When the timeout runs out, or null for no timeout.
+     * @param waitStart When the wait started, in milliseconds since the epoch.
+     * @return The number of milliseconds left, 0 if it is time to give up, or
+     * -1 to wait forever.
+     */
+    long waitTimeLeft(Date runUntil, long waitStart) {
+        long now = System.currentTimeMillis();
+        long msLeft = -1;
+        if (runUntil != null) {
+            msLeft = Math.max(0, runUntil.getTime() - now);
+        }
+        long idleTimeOutSeconds = m_lIdleTimeOutSeconds;
+        if (idleTimeOutSeconds != -1) {
+            long lastOutput = Math.max(waitStart, slave.getLastOutputMillis());
+            long idleMsLeft = Math.max(0, lastOutput + idleTimeOutSeconds * 1000 - now);
+            msLeft = (msLeft == -1) ? idleMsLeft : Math.min(msLeft, idleMsLeft);
+        }
+        return msLeft;
+    }
+
+    /**
+     * Tell the spawn it is being used, waking it up if it is hibernating.
+     */
+    void wake() {
+        slave.wake();
+    }
+
+    /**
+     * @return True if the spawn has released its reader threads after being
+     * idle, see {@link ExpectJ#setHibernateAfter(long)}.  A hibernating spawn
+     * wakes up by itself when it receives output or is used.
+     */
+    public boolean isHibernating() {
+        return slave.isHibernating();
+    }
+
+    /**
+     * Find out how one of the spawn's output streams has been read, including
+     * its current read buffer size.
+     *
+     * @param stream {@link #STDOUT} or {@link #STDERR}.
+     * @return A snapshot of the stream's metrics, or null if the spawn has no
+     * such stream.
+     * @see ExpectJ#setReadBufferSize(int, int)
+     */
+    public StreamMetrics getStreamMetrics(int stream) {
+        if (stream != STDOUT && stream != STDERR) {
+            throw new IllegalArgumentException("Unknown stream " + stream);
+        }
+        return slave.getStreamMetrics(stream);
+    }
+
+    /**
+     * @return The queue delivering the spawn's stdout.
+     */
+    SpscByteQueue getStdoutQueue() {
+        return slave.getStdoutQueue();
+    }
+
+    /**
+     * @return The queue delivering the spawn's stderr, or null if the spawn
+     * has no stderr.
+     */
+    SpscByteQueue getStderrQueue() {
+        return slave.getStderrQueue();
+    }
+
+    /**
+     * Find out what has been received on the watched streams without being
+     * consumed by a match.
+     *
+     * @param patterns The patterns that were looked for.
+     * @return Unconsumed stdout text if stdout was watched, otherwise
+     * unconsumed stderr text.
+     */
+    private String getPartial(ExpectPattern[] patterns) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].getStream() == STDOUT) {
+                return stdoutLine.toString();
+            }
+        }
+        return stderrLine.toString();
+    }
+
+    /**
+     * Wait the default timeout for any of a number of patterns to appear on
+     * standard out or standard error.
+     *
+     * @param patterns What to look for, each tagged with the stream to look on.
+     * @return A description of which pattern was found.
+     * @throws IOException on IO trouble waiting for pattern
+     * @throws TimeoutException on timeout waiting for pattern
+     * @see #expect(ExpectPattern[], long)
+     */
+    public ExpectMatch expect(ExpectPattern[] patterns)
+    throws IOException, TimeoutException
+    {
+        return expect(patterns, m_lDefaultTimeOutSeconds);
+    }
+
+    /**
+     * Look for patterns in what we have received on one stream.
+     * <p>
+     * Leading and trailing whitespace is never part of a match.  On a match,
+     * everything up to and including the match is removed from the line
+     * buffer.  Otherwise, everything up to and including the last linefeed is
+     * removed since we only match within the current line.
+     *
+     * @param patterns The patterns to look for.  Only patterns for the given
+     * stream are considered.
+     * @param stream The stream the line buffer belongs to.
+     * @param line Received data not yet consumed by a match.
+     * @param searched How much of the line has already been searched for
+     * these patterns without a match.  Only matches ending after this are
+     * looked for.
+     * @return The first matching pattern, or null if none matched.
+     */
+    private static ExpectMatch findMatch(ExpectPattern[] patterns,
+                                         int stream,
+                                         StringBuilder line,
+                                         int searched)
+    {
+        int start = 0;
+        while (start < line.length() && line.charAt(start) <= ' ') {
+            start++;
+        }
+        int end = trimmedEnd(line);
+
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].getStream() != stream) {
+                continue;
+            }
+            CaseInsensitiveSearch search = patterns[i].getSearch();
+            int from = Math.max(start, searched - search.length() + 1);
+            int index = search.indexOf(line, from, end);
+            if (index == -1) {
+                continue;
+            }
+            int matchEnd = index + search.length();
+            String text = line.substring(0, matchEnd);
+            line.delete(0, matchEnd);
+            return new ExpectMatch(patterns[i], i, text);
+        }
+
+        // Linefeeds before what was searched earlier have already been removed
+        for (int i = line.length() - 1; i >= searched && i >= 0; i--) {
+            if (line.charAt(i) == '\n') {
+                line.delete(0, i + 1);
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param line Some text.
+     * @return The length of the text without trailing whitespace.
+     */
+    private static int trimmedEnd(StringBuilder line) {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Describe some patterns for log and exception messages.
+     *
+     * @param patterns The patterns to describe.
+     * @return A human readable description of the patterns.
+     */
+    private static String describe(ExpectPattern[] patterns) {
+        if (patterns.length == 1 && patterns[0].getStream() == STDOUT) {
+            // Compatible with how single patterns have always been described
+            return "\"" + patterns[0].getPattern() + "\"";
+        }
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < patterns.length; i++) {
+            if (i > 0) {
+                description.append(" or ");
+            }
+            description.append(patterns[i]);
+        }
+        return description.toString();
+    }
+
+    /**
+     * Wait for a pattern to appear on standard error.
+     * @see #expect(String, long)
+     * @param pattern The case-insensitive substring to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @throws TimeoutException on timeout waiting for pattern
+     * @throws IOException on IO trouble waiting for pattern
+     */
+    public void expectErr(String pattern, long timeOutSeconds)
+    throws IOException, TimeoutException
+    {
+        expect(new ExpectPattern[] {ExpectPattern.stderr(pattern)}, timeOutSeconds);
+    }
+
+    /**
+     * Wait for a pattern to appear on standard out.
+     * @param pattern The case-insensitive substring to match against.
+     * @throws TimeoutException on timeout waiting for pattern
+     * @throws IOException on IO trouble waiting for pattern
+     */
+    public void expect(String pattern)
+    throws IOException, TimeoutException
+    {
+        expect(pattern, m_lDefaultTimeOutSeconds);
+    }
+
+    /**
+     * Wait for a pattern to appear on standard error.
+     * @param pattern The case-insensitive substring to match against.
+     * @throws TimeoutException on timeout waiting for pattern
+     * @throws IOException on IO trouble waiting for pattern
+     * @see #expect(String)
+     */
+    public void expectErr(String pattern)
+    throws IOException, TimeoutException
+    {
+        expectErr(pattern, m_lDefaultTimeOutSeconds);
+    }
+
+    /**
+     * This method can be use use to check the target process status
+     * before invoking {@link #send(String)}
+     * @return true if the process has already exited.
+     */
+    public boolean isClosed() {
+        if (!slave.isClosed()) {
+            return false;
+        }
+        spawnClosed();
+        return true;
+    }
+
+    /**
+     * Retrieve the exit code of a finished process.
+     * @return the exit code of the process if the process has
+     * already exited.
+     * @throws ExpectJException if the spawn is still running.
+     */
+    public int getExitValue()
+    throws ExpectJException
+    {
+        return slave.getExitValue();
+    }
+
+    /**
+     * Writes a string to the standard input of the spawned process.
+     *
+     * @param string The string to send.  Don't forget to terminate it with \n
+     * if you want it linefed.
+     * @throws IOException on IO trouble talking to spawn.  An
+     * InterruptedIOException if the spawn's {@link CancellationToken} is
+     * cancelled, or if interrupted while waiting for an in-memory spawnable to
+     * accept the string.
+     */
+    public void send(String string)
+    throws IOException {
+        LOG.debug("Sending '" + string + "'");
+        slave.wake();
+        beginOperation();
+        try {
+            try {
+                sendLock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException wrapper =
+                    new InterruptedIOException("Interrupted waiting for another thread sending");
+                wrapper.initCause(e);
+                throw wrapper;
+            }
+            try {
+                // Replies to output received before this call go first
+                writePendingReplies();
+                toStdin.write(string);
+                toStdin.flush();
+            } finally {
+                sendLock.unlock();
+            }
+        } finally {
+            endOperation();
+        }
+    }
+
+    /**
+     * Send an {@link AutoResponder} reply.
+     * <p>
+     * This is called by the threads reading the spawn's output, which must
+     * never wait for the spawn's stdin.  If another thread is sending a
+     * string the spawn won't read until we have drained its output, waiting
+     * for that send to finish would hang both.  So the reply is queued, and
+     * written by a helper thread or by the next {@link #send(String)},
+     * whichever gets to it first.
+     *
+     * @param reply The reply to send.
+     */
+    void sendReply(String reply) {
+        synchronized (pendingReplies) {
+            pendingReplies.add(reply);
+            if (replySenderScheduled) {
+                return;
+            }
+            replySenderScheduled = true;
+        }
+
+        getReplyExecutor().execute(new Runnable() {
+            public void run() {
+                sendLock.lock();
+                try {
+                    boolean written = false;
+                    while (true) {
+                        written |= writePendingReplies();
+                        synchronized (pendingReplies) {
+                            // Replies queued after we're done would be stuck
+                            if (pendingReplies.isEmpty()) {
+                                replySenderScheduled = false;
+                                break;
+                            }
+                        }
+                    }
+                    if (written) {
+                        toStdin.flush();
+                    }
+                } catch (IOException e) {
+                    LOG.error("Sending auto responder replies failed", e);
+                    synchronized (pendingReplies) {
+                        pendingReplies.clear();
+                        replySenderScheduled = false;
+                    }
+                } finally {
+                    sendLock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the queued {@link AutoResponder} replies, without flushing.  Must
+     * be called while holding {@link #sendLock}.
+     *
+     * @return True if anything was written.
+     * @throws IOException on IO trouble talking to spawn.
+     */
+    private boolean writePendingReplies() throws IOException {
+        boolean written = false;
+        while (true) {
+            String reply;
+            synchronized (pendingReplies) {
+                if (pendingReplies.isEmpty()) {
+                    return written;
+                }
+                reply = (String)pendingReplies.removeFirst();
+            }
+            if (toStdin == null) {
+                LOG.warn("Spawn has no stdin, dropping auto responder reply '"
+                         + reply + "'");
+                continue;
+            }
+            LOG.debug("Sending auto responder reply '" + reply + "'");
+            toStdin.write(reply);
+            written = true;
+        }
+    }
+
+    /**
+     * Register a rule for answering a recurring prompt.
+     * <p>
+     * The rule is evaluated by the thread reading the spawn's output, as data
+     * arrives, and the reply is sent without waiting for anyone to call
+     * expect().  Replies go out in order, and before any string passed to
+     * {@link #send(String)} after the prompt was seen.  This way, pagers like
+     * "--More--" can be fed without any expect() calls:
+     * <pre>
+     * spawn.addAutoResponder(new AutoResponder(Spawn.STDOUT, "--More--", " ", true));
+     * spawn.send("show running-config\n");
+     * spawn.expect("end");
+     * </pre>
+     * <p>
+     * Rules are tried in the order they were added.
+     *
+     * @param responder The rule to add.
+     * @see #removeAutoResponder(AutoResponder)
+     */
+    public void addAutoResponder(AutoResponder responder) {
+        if (responder == null) {
+            throw new NullPointerException("Auto-responder must not be null");
+        }
+        synchronized (autoResponders) {
+            autoResponders.add(responder);
+            updateAutoResponders();
+        }
+    }
+
+    /**
+     * Register a rule for answering a recurring prompt on stdout.
+     *
+     * @param pattern The case-insensitive substring to look for.
+     * @param reply What to send each time the pattern is found.
+     * @return The new rule, for passing to
+     * {@link #removeAutoResponder(AutoResponder)}.
+     * @see #addAutoResponder(AutoResponder)
+     */
+    public AutoResponder addAutoResponder(String pattern, String reply) {
+        AutoResponder responder = new AutoResponder(pattern, reply);
+        addAutoResponder(responder);
+        return responder;
+    }
+
+    /**
+     * Stop answering a prompt.
+     *
+     * @param responder A rule previously passed to
+     * {@link #addAutoResponder(AutoResponder)}.
+     * @return True if the rule was registered.
+     */
+    public boolean removeAutoResponder(AutoResponder responder) {
+        synchronized (autoResponders) {
+            boolean removed = autoResponders.remove(responder);
+            updateAutoResponders();
+            return removed;
+        }
+    }
+
+    /**
+     * Hand the registered auto-responders to the threads reading the spawn's
+     * output.  Must be called while synchronized on {@link #autoResponders}.
+     */
+    private void updateAutoResponders() {
+        List stdoutRules = new ArrayList();
+        List stderrRules = new ArrayList();
+        for (Iterator i = autoResponders.iterator(); i.hasNext(); ) {
+            AutoResponder responder = (AutoResponder)i.next();
+            if (responder.getStream() == STDOUT) {
+                stdoutRules.add(responder);
+            } else {
+                stderrRules.add(responder);
+            }
+        }
+        slave.setAutoResponders(STDOUT,
+                                (AutoResponder[])stdoutRules.toArray(new AutoResponder[0]),
+                                this);
+        slave.setAutoResponders(STDERR,
+                                (AutoResponder[])stderrRules.toArray(new AutoResponder[0]),
+                                this);
+    }
+
+    /**
+     * Allows the user to interact with the spawned process.
+     */
+    public void interact() {
+        slave.wake();
+        // FIXME: User input is echoed twice on the screen
+        interactIn = new StreamPiper(null,
+                                     System.in, slave.getStdin());
+        interactIn.start();
+        interactOut = new StreamPiper(null,
+                                      slave.getStdoutQueue().getInputStream(),
+                                      System.out);
+        interactOut.start();
+        if (slave.getStderrQueue() != null) {
+            interactErr = new StreamPiper(null,
+                                          slave.getStderrQueue().getInputStream(),
+                                          System.err);
+            interactErr.start();
+        }
+        slave.stopPipingToStandardOut();
+    }
+
+    /**
+     * This method kills the process represented by SpawnedProcess object.
+     */
+    public void stop() {
+        slave.stop();
+
+        freeResources();
+        spawnClosed();
+    }
+
+    /**
+     * Returns everything that has been received on the spawn's stdout during
+     * this session.
+     *
+     * @return the available contents of Standard Out
+     */
+    public String getCurrentStandardOutContents() {
+        return slave.getCurrentStandardOutContents();
+    }
+
+    /**
+     * Returns everything that has been received on the spawn's stderr during
+     * this session.
+     *
+     * @return the available contents of Standard Err
+     */
+    public String getCurrentStandardErrContents() {
+        return slave.getCurrentStandardErrContents();
+    }
+
+    /**
+     * Returns an immutable view of everything that has been received on the
+     * spawn's stdout during this session.
+     * <p>
+     * Taking a snapshot neither copies the received data nor blocks the thread
+     * receiving it, so this is suitable for frequent polling.  The length of a
+     * snapshot can be passed to {@link #getStandardOutContentsSince(int)} later
+     * for getting only what has arrived after the snapshot was taken.
+     *
+     * @return the available contents of Standard Out
+     */
+    public CharSequence getStandardOutSnapshot() {
+        return slave.getStandardOutSnapshot();
+    }
+
+    /**
+     * Returns an immutable view of everything that has been received on the
+     * spawn's stderr during this session.
+     *
+     * @return the available contents of Standard Err, or null if the spawn has
+     * no stderr
+     * @see #getStandardOutSnapshot()
+     */
+    public CharSequence getStandardErrSnapshot() {
+        return slave.getStandardErrSnapshot();
+    }
+
+    /**
+     * Returns an immutable view of what has been received on the spawn's
+     * stdout after the first offset chars.
+     *
+     * @param offset How many chars to skip, typically the length of an earlier
+     * snapshot.
+     * @return the contents of Standard Out received after offset
+     * @see #getStandardOutSnapshot()
+     */
+    public CharSequence getStandardOutContentsSince(int offset) {
+        return slave.getStandardOutContentsSince(offset);
+    }
+
+    /**
+     * Returns an immutable view of what has been received on the spawn's
+     * stderr after the first offset chars.
+     *
+     * @param offset How many chars to skip, typically the length of an earlier
+     * snapshot.
+     * @return the contents of Standard Err received after offset, or null if
+     * the spawn has no stderr
+     * @see #getStandardErrSnapshot()
+     */
+    public CharSequence getStandardErrContentsSince(int offset) {
+        return slave.getStandardErrContentsSince(offset);
+    }
+}
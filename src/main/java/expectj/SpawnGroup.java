@@ -0,0 +1,364 @@
+package expectj;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Waits for patterns on many {@link Spawn}s at once.
+ * <p>
+ * This is what Tcl expect does when given a list of spawn ids.  Each spawn in
+ * the group has its own patterns, and {@link #expect(long)} returns as soon as
+ * any spawn has a match.  All waiting is done by one thread, which sleeps
+ * until any spawn in the group receives output:
+ * <pre>
+ * SpawnGroup group = new SpawnGroup();
+ * for (int i = 0; i &lt; spawns.length; i++) {
+ *     group.add(spawns[i], "$");
+ * }
+ * SpawnMatch ready[] = group.expect(30);
+ * </pre>
+ * Received data following a match is kept by the spawn, so a spawn can be
+ * switched between group expects and its own expect methods.  Other threads
+ * expecting on the watched streams of a spawn wait until the group is done
+ * with them, sending works as usual.
+ * <p>
+ * Groups are not thread safe.  Spawns shouldn't be in several groups that
+ * are waited on by different threads at the same time.
+ */
+public class SpawnGroup {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(SpawnGroup.class);
+
+    /**
+     * A spawn in this group.
+     */
+    private static class Member {
+        /**
+         * The spawn.
+         */
+        final Spawn spawn;
+
+        /**
+         * What to look for.
+         */
+        ExpectPattern[] patterns;
+
+        /**
+         * The spawn's stdout queue if watched, null otherwise.
+         */
+        SpscByteQueue stdout = null;
+
+        /**
+         * The spawn's stderr queue if watched, null otherwise.
+         */
+        SpscByteQueue stderr = null;
+
+        /**
+         * @param spawn The spawn.
+         */
+        Member(Spawn spawn) {
+            this.spawn = spawn;
+        }
+    }
+
+    /**
+     * Spawn to {@link Member}, in the order the spawns were added.
+     */
+    private final Map members = new LinkedHashMap();
+
+    /**
+     * Scratch space for reading.
+     */
+    private final byte[] buffer = new byte[StreamPiper.DEFAULT_BUFFER_SIZE];
+
+    /**
+     * Create a new empty group.
+     */
+    public SpawnGroup() {
+        // This constructor intentionally left blank
+    }
+
+    /**
+     * Add a spawn to this group, or change the patterns of a spawn already in
+     * the group.
+     *
+     * @param spawn The spawn.
+     * @param patterns What to look for on the spawn.  Patterns for stderr are
+     * ignored if the spawn has no stderr.
+     */
+    public void add(Spawn spawn, ExpectPattern[] patterns) {
+        if (patterns.length == 0) {
+            throw new IllegalArgumentException("Need at least one pattern");
+        }
+        Member member = (Member)members.get(spawn);
+        if (member == null) {
+            member = new Member(spawn);
+            members.put(spawn, member);
+        }
+        member.patterns = (ExpectPattern[])patterns.clone();
+
+        boolean watchStdout = false;
+        boolean watchStderr = false;
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].getStream() == Spawn.STDOUT) {
+                watchStdout = true;
+            } else {
+                watchStderr = true;
+            }
+        }
+        member.stdout = watchStdout ? spawn.getStdoutQueue() : null;
+        member.stderr = watchStderr ? spawn.getStderrQueue() : null;
+    }
+
+    /**
+     * Add a spawn to this group, or change the pattern of a spawn already in
+     * the group.
+     *
+     * @param spawn The spawn.
+     * @param pattern The case-insensitive substring to look for on the
+     * spawn's stdout.
+     */
+    public void add(Spawn spawn, String pattern) {
+        add(spawn, new ExpectPattern[] {ExpectPattern.stdout(pattern)});
+    }
+
+    /**
+     * Remove a spawn from this group.
+     *
+     * @param spawn The spawn to remove.
+     * @return True if the spawn was in this group.
+     */
+    public boolean remove(Spawn spawn) {
+        return members.remove(spawn) != null;
+    }
+
+    /**
+     * @return The spawns in this group, in the order they were added.
+     */
+    public Spawn[] getSpawns() {
+        return (Spawn[])members.keySet().toArray(new Spawn[members.size()]);
+    }
+
+    /**
+     * Wait for any spawn in the group to match one of its patterns.
+     * <p>
+     * Spawns whose watched streams all end are removed from the group, and
+     * reported with a null match.
+     * <p>
+     * The wait is also given up when all spawns have been quiet for longer
+     * than their idle timeouts, see {@link Spawn#setIdleTimeout(long)}, and
+     * aborted when the cancellation token of any spawn is cancelled.
+     *
+     * @param timeOutSeconds The timeout in seconds, or -1 to wait forever.
+     * @return All spawns that became ready, at least one.  Each spawn is
+     * reported at most once.
+     * @throws IOException on trouble reading from the spawns, or if the group
+     * is empty.  An InterruptedIOException if cancelled or interrupted.
+     * @throws TimeoutException if no spawn became ready in time, or all spawns
+     * have been idle for too long.
+     */
+    public SpawnMatch[] expect(long timeOutSeconds) throws IOException, TimeoutException {
+        if (timeOutSeconds < -1) {
+            throw new IllegalArgumentException("Timeout must be >= -1, was "
+                                               + timeOutSeconds);
+        }
+        if (members.isEmpty()) {
+            throw new IOException("No spawns in group");
+        }
+
+        // Let the members' cancellation tokens abort our wait, and keep other
+        // threads from reading what we're watching
+        Member[] locked = new Member[members.size()];
+        boolean[] lockedStdout = new boolean[locked.length];
+        boolean[] lockedStderr = new boolean[locked.length];
+        Member[] registered = new Member[members.size()];
+        int registerCount = 0;
+        int lockCount = 0;
+        try {
+            for (Iterator i = members.values().iterator(); i.hasNext(); ) {
+                Member member = (Member)i.next();
+                member.spawn.beginOperation();
+                registered[registerCount++] = member;
+            }
+            for (Iterator i = members.values().iterator(); i.hasNext(); ) {
+                Member member = (Member)i.next();
+                boolean stdout = member.stdout != null;
+                boolean stderr = member.stderr != null;
+                member.spawn.lockStreams(stdout, stderr);
+                locked[lockCount] = member;
+                lockedStdout[lockCount] = stdout;
+                lockedStderr[lockCount] = stderr;
+                lockCount++;
+            }
+            return awaitReady(timeOutSeconds);
+        } finally {
+            for (int i = 0; i < lockCount; i++) {
+                locked[i].spawn.unlockStreams(lockedStdout[i], lockedStderr[i]);
+            }
+            for (int i = 0; i < registerCount; i++) {
+                registered[i].spawn.endOperation();
+            }
+        }
+    }
+
+    /**
+     * Wait for any spawn in the group to match one of its patterns.  The
+     * caller must hold the locks of all watched streams.
+     *
+     * @param timeOutSeconds The timeout in seconds, or -1 to wait forever.
+     * @return All spawns that became ready, at least one.
+     * @throws IOException on trouble reading from the spawns.
+     * @throws TimeoutException if no spawn became ready in time, or all spawns
+     * have been idle for too long.
+     * @see #expect(long)
+     */
+    private SpawnMatch[] awaitReady(long timeOutSeconds) throws IOException, TimeoutException {
+        // What we have received earlier may already match
+        List ready = new ArrayList();
+        for (Iterator i = members.values().iterator(); i.hasNext(); ) {
+            Member member = (Member)i.next();
+            member.spawn.wake();
+            ExpectMatch match = null;
+            if (member.stdout != null) {
+                match = member.spawn.findBufferedMatch(member.patterns, Spawn.STDOUT);
+            }
+            if (match == null && member.stderr != null) {
+                match = member.spawn.findBufferedMatch(member.patterns, Spawn.STDERR);
+            }
+            if (match != null) {
+                ready.add(new SpawnMatch(member.spawn, match));
+            }
+        }
+
+        Date runUntil = null;
+        if (timeOutSeconds != -1) {
+            runUntil = new Date(new Date().getTime() + timeOutSeconds * 1000);
+        }
+        long waitStart = System.currentTimeMillis();
+        boolean idle = false;
+        while (ready.isEmpty()) {
+            boolean gotData = false;
+            for (Iterator i = members.values().iterator(); i.hasNext(); ) {
+                Member member = (Member)i.next();
+                ExpectMatch match = null;
+                if (member.stdout != null) {
+                    int readCount = member.spawn.read(Spawn.STDOUT, buffer);
+                    if (readCount == -1) {
+                        member.stdout = null;
+                    } else if (readCount > 0) {
+                        gotData = true;
+                        match = member.spawn.findBufferedMatch(member.patterns, Spawn.STDOUT);
+                    }
+                }
+                if (match == null && member.stderr != null) {
+                    int readCount = member.spawn.read(Spawn.STDERR, buffer);
+                    if (readCount == -1) {
+                        member.stderr = null;
+                    } else if (readCount > 0) {
+                        gotData = true;
+                        match = member.spawn.findBufferedMatch(member.patterns, Spawn.STDERR);
+                    }
+                }
+
+                if (match != null) {
+                    ready.add(new SpawnMatch(member.spawn, match));
+                } else if (member.stdout == null && member.stderr == null) {
+                    LOG.debug("All watched streams ended for " + member.spawn);
+                    ready.add(new SpawnMatch(member.spawn, null));
+                }
+            }
+            if (gotData || !ready.isEmpty()) {
+                continue;
+            }
+
+            long msLeft = -1;
+            if (runUntil != null) {
+                msLeft = runUntil.getTime() - new Date().getTime();
+                if (msLeft <= 0) {
+                    break;
+                }
+            }
+            long idleMsLeft = getIdleTimeLeft(waitStart);
+            if (idleMsLeft == 0) {
+                idle = true;
+                break;
+            }
+            if (idleMsLeft != -1) {
+                msLeft = (msLeft == -1) ? idleMsLeft : Math.min(msLeft, idleMsLeft);
+            }
+            SpscByteQueue.awaitAny(getWatchedQueues(), msLeft);
+        }
+
+        for (Iterator i = ready.iterator(); i.hasNext(); ) {
+            SpawnMatch spawnMatch = (SpawnMatch)i.next();
+            if (spawnMatch.getMatch() == null) {
+                remove(spawnMatch.getSpawn());
+            }
+        }
+        if (ready.isEmpty()) {
+            if (idle) {
+                throw new TimeoutException("All " + members.size()
+                                           + " spawns idle for too long");
+            }
+            throw new TimeoutException("Timeout waiting for any of " + members.size()
+                                       + " spawns");
+        }
+        return (SpawnMatch[])ready.toArray(new SpawnMatch[ready.size()]);
+    }
+
+    /**
+     * Find out how long until all members have been idle for longer than
+     * their idle timeouts.
+     *
+     * @param waitStart When the wait started, in milliseconds since the epoch.
+     * @return The number of milliseconds left, 0 if all members are idle, or
+     * -1 if some member has no idle timeout.
+     */
+    private long getIdleTimeLeft(long waitStart) {
+        long idleMsLeft = 0;
+        for (Iterator i = members.values().iterator(); i.hasNext(); ) {
+            Member member = (Member)i.next();
+            long memberMsLeft = member.spawn.waitTimeLeft(null, waitStart);
+            if (memberMsLeft == -1) {
+                return -1;
+            }
+            idleMsLeft = Math.max(idleMsLeft, memberMsLeft);
+        }
+        return idleMsLeft;
+    }
+
+    /**
+     * @return The queues of all watched streams of all members.
+     */
+    private SpscByteQueue[] getWatchedQueues() {
+        List queues = new ArrayList();
+        for (Iterator i = members.values().iterator(); i.hasNext(); ) {
+            Member member = (Member)i.next();
+            if (member.stdout != null) {
+                queues.add(member.stdout);
+            }
+            if (member.stderr != null) {
+                queues.add(member.stderr);
+            }
+        }
+        return (SpscByteQueue[])queues.toArray(new SpscByteQueue[queues.size()]);
+    }
+
+    /**
+     * Remove all spawns from this group.  The spawns themselves are left
+     * running.
+     */
+    public void close() {
+        members.clear();
+    }
+}
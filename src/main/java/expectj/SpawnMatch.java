@@ -0,0 +1,51 @@
+package expectj;
+
+/**
+ * Tells which {@link Spawn} in a {@link SpawnGroup} is ready, and why.
+ *
+ * @see SpawnGroup#expect(long)
+ */
+public final class SpawnMatch {
+    /**
+     * The spawn that is ready.
+     */
+    private final Spawn spawn;
+
+    /**
+     * What was found, or null if the spawn's watched streams ended.
+     */
+    private final ExpectMatch match;
+
+    /**
+     * @param spawn The spawn that is ready.
+     * @param match What was found, or null if the spawn's watched streams
+     * ended.
+     */
+    SpawnMatch(Spawn spawn, ExpectMatch match) {
+        this.spawn = spawn;
+        this.match = match;
+    }
+
+    /**
+     * @return The spawn that is ready.
+     */
+    public Spawn getSpawn() {
+        return spawn;
+    }
+
+    /**
+     * @return What was found on the spawn, or null if all of the spawn's
+     * watched streams ended without a match.  In the latter case the spawn
+     * has been removed from its group.
+     */
+    public ExpectMatch getMatch() {
+        return match;
+    }
+
+    public String toString() {
+        if (match == null) {
+            return spawn + " ended";
+        }
+        return spawn + " matched " + match.getPattern();
+    }
+}
@@ -64,6 +64,11 @@ public interface Spawnable
 
     /**
      * Register a listener that will be called when this spawnable closes.
+     * <p>
+     * {@link Spawn}s need a listener of their own.  Spawnables extending
+     * {@link AbstractSpawnable} get it added, and keep any listeners set
+     * before.  For other spawnables, the spawn's listener replaces the one
+     * set before.  Listeners should be called without holding any locks.
      *
      * @param closeListener The listener that will be notified when this
      * spawnable closes.
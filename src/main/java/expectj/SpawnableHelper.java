@@ -6,8 +6,7 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.channels.Channels;
-import java.nio.channels.Pipe;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helper class that wraps Spawnables to make them crunchier for ExpectJ to run.
@@ -22,6 +21,17 @@ implements TimerEventListener
      */
     private final static Log LOG = LogFactory.getLog(SpawnableHelper.class);
 
+    /**
+     * Used for numbering sessions for {@link EchoSink}s.
+     */
+    private final static AtomicInteger SESSION_COUNTER = new AtomicInteger();
+
+    /**
+     * How many read buffers' worth of output can be queued for each stream
+     * before the spawnable is made to wait.
+     */
+    private final static int QUEUE_CAPACITY_BUFFERS = 4;
+
     /**
      * The spawnable we're wrapping.
      */
@@ -30,10 +40,55 @@ implements TimerEventListener
     private final boolean echo;
 
     /**
-     * @param timeOutSeconds time interval in seconds to be allowed for spawn execution
+     * How many bytes to read at a time from the spawnable's output streams.
+     */
+    private final int readBufferSize;
+
+    /**
+     * The fewest bytes to read at a time from the spawnable's output streams.
+     */
+    private final int minReadBufferSize;
+
+    /**
+     * Whether to keep everything the spawnable prints.
+     */
+    private final boolean captureOutput;
+
+    /**
+     * The spawnable's stdout printed on a terminal, null if terminal emulation
+     * is off.
+     */
+    private final TerminalScreen screen;
+
+    /**
+     * Which {@link OutputFilters} to apply to the spawnable's output streams.
+     */
+    private final int outputFilters;
+
+    /**
+     * Where to echo the spawnable's output, null for the console.
+     */
+    private final EchoSink echoSink;
+
+    /**
+     * Identifies our spawnable to {@link #echoSink}.
+     */
+    private final String session;
+
+    /**
+     * Hibernate the output pipers after this many idle milliseconds, 0 for
+     * never.
+     */
+    private final long hibernateAfterMillis;
+
+    /**
      * @param runMe the spawnable to execute
+     * @param settings The settings of the {@link ExpectJ} creating us, the
+     * default timeout is the time interval in seconds to be allowed for spawn
+     * execution
      */
-    SpawnableHelper(Spawnable runMe, long timeOutSeconds, boolean echo) {
+    SpawnableHelper(Spawnable runMe, ExpectJ settings) {
+        long timeOutSeconds = settings.getDefaultTimeOutSeconds();
         if (timeOutSeconds < -1) {
             throw new IllegalArgumentException("Time-out is invalid");
         }
@@ -41,7 +96,20 @@ implements TimerEventListener
             timer = new Timer(timeOutSeconds, this);
         }
         this.spawnable = runMe;
-        this.echo = echo;
+        this.echo = settings.isEcho();
+        this.readBufferSize = settings.getReadBufferSize();
+        this.minReadBufferSize = settings.getMinReadBufferSize();
+        this.captureOutput = settings.isCaptureOutput();
+        if (settings.getTerminalRows() > 0) {
+            this.screen = new TerminalScreen(settings.getTerminalRows(),
+                                             settings.getTerminalColumns());
+        } else {
+            this.screen = null;
+        }
+        this.outputFilters = settings.getOutputFilters();
+        this.echoSink = settings.getEchoSink();
+        this.session = String.valueOf(SESSION_COUNTER.incrementAndGet());
+        this.hibernateAfterMillis = settings.getHibernateAfterMillis();
     }
 
     /** Timer object to monitor our Spawnable */
@@ -50,20 +118,20 @@ implements TimerEventListener
     /**
      * Handle spawn's stdout.
      */
-    private Pipe systemOut;
+    private SpscByteQueue systemOut;
 
     /**
      * Handle spawn's stderr.
      */
-    private Pipe systemErr;
+    private SpscByteQueue systemErr;
 
     /**
-     * Drive the pipe from spawn's stdout to {@link #systemOut}.
+     * Drive the queue from spawn's stdout to {@link #systemOut}.
      */
     private StreamPiper spawnOutToSystemOut = null;
 
     /**
-     * Drive the pipe from spawn's stderr to {@link #systemErr}.
+     * Drive the queue from spawn's stderr to {@link #systemErr}.
      */
     private StreamPiper spawnErrToSystemErr = null;
 
@@ -100,7 +168,7 @@ implements TimerEventListener
      * @see #startPipingToStandardOut()
      * @see Spawn#interact()
      */
-    synchronized void stopPipingToStandardOut() {
+    void stopPipingToStandardOut() {
         spawnOutToSystemOut.stopPipingToStandardOut();
         if (spawnErrToSystemErr != null) {
             spawnErrToSystemErr.stopPipingToStandardOut();
@@ -112,13 +180,131 @@ implements TimerEventListener
      * @see #stopPipingToStandardOut()
      * @see Spawn#interact()
      */
-    synchronized void startPipingToStandardOut() {
+    void startPipingToStandardOut() {
         spawnOutToSystemOut.startPipingToStandardOut();
         if (spawnErrToSystemErr != null) {
             spawnErrToSystemErr.startPipingToStandardOut();
         }
     }
 
+    /**
+     * Tell the output pipers that the spawn is being used, waking them up if
+     * they are hibernating.
+     */
+    void wake() {
+        spawnOutToSystemOut.wake();
+        if (spawnErrToSystemErr != null) {
+            spawnErrToSystemErr.wake();
+        }
+    }
+
+    /**
+     * @param stream {@link Spawn#STDOUT} or {@link Spawn#STDERR}.
+     * @return How the stream has been read so far, or null if there is no
+     * such stream.
+     */
+    StreamMetrics getStreamMetrics(int stream) {
+        if (stream == Spawn.STDOUT) {
+            return spawnOutToSystemOut.getMetrics();
+        }
+        if (spawnErrToSystemErr == null) {
+            return null;
+        }
+        return spawnErrToSystemErr.getMetrics();
+    }
+
+    /**
+     * @return When the spawnable last printed anything, in milliseconds since
+     * the epoch.
+     */
+    long getLastOutputMillis() {
+        long lastOutput = spawnOutToSystemOut.getLastRead();
+        if (spawnErrToSystemErr != null) {
+            lastOutput = Math.max(lastOutput, spawnErrToSystemErr.getLastRead());
+        }
+        return lastOutput;
+    }
+
+    /**
+     * @return True if all output pipers are hibernating.
+     */
+    boolean isHibernating() {
+        return spawnOutToSystemOut.isHibernating()
+            && (spawnErrToSystemErr == null || spawnErrToSystemErr.isHibernating());
+    }
+
+    /**
+     * Wait for the spawnable's output to be read to the end, for example
+     * after it has closed.
+     *
+     * @param timeoutMillis How long to wait at most.
+     * @return True if all output has been read or the pipers are stopped,
+     * false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitOutputEnd(long timeoutMillis) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + timeoutMillis;
+        return awaitOutputEnd(spawnOutToSystemOut, systemOut, giveUp)
+            && awaitOutputEnd(spawnErrToSystemErr, systemErr, giveUp);
+    }
+
+    /**
+     * Wait for a piper to stop reading.
+     *
+     * @param piper A piper, or null.
+     * @param queue The queue the piper writes to.
+     * @param giveUp When to stop waiting, in milliseconds since the epoch.
+     * @return True if the piper won't read any more, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static boolean awaitOutputEnd(StreamPiper piper, SpscByteQueue queue, long giveUp)
+    throws InterruptedException
+    {
+        if (piper == null || queue.isClosed()) {
+            return true;
+        }
+        // A stopped piper may end without closing its queue
+        return piper.awaitEnd(giveUp - System.currentTimeMillis());
+    }
+
+    /**
+     * @return The spawnable's stdout printed on a terminal, or null if terminal
+     * emulation is off.
+     */
+    TerminalScreen getScreen() {
+        return screen;
+    }
+
+    /**
+     * Replace the auto-responders evaluated on one of the spawnable's output
+     * streams.
+     *
+     * @param stream {@link Spawn#STDOUT} or {@link Spawn#STDERR}.
+     * @param rules The auto-responders for that stream.
+     * @param replyTo Where to send replies.
+     */
+    void setAutoResponders(int stream, AutoResponder[] rules, Spawn replyTo) {
+        if (stream == Spawn.STDOUT) {
+            spawnOutToSystemOut.setAutoResponders(rules, replyTo);
+        } else if (spawnErrToSystemErr != null) {
+            spawnErrToSystemErr.setAutoResponders(rules, replyTo);
+        }
+    }
+
+    /**
+     * Replace the filter cleaning up one of the spawnable's output streams.
+     *
+     * @param stream {@link Spawn#STDOUT} or {@link Spawn#STDERR}.
+     * @param filter The filter to use, null for no filtering.
+     */
+    void setOutputFilter(int stream, OutputFilter filter) {
+        if (stream == Spawn.STDOUT) {
+            spawnOutToSystemOut.setFilter(filter);
+        } else if (spawnErrToSystemErr != null) {
+            spawnErrToSystemErr.setFilter(filter);
+        }
+    }
+
     /**
      * This method launches our Spawnable within the specified time
      * limit.  It tells the spawnable to start, and starts the timer when
@@ -133,21 +319,41 @@ implements TimerEventListener
             timer.startTimer();
         }
 
-        // Starting the piped streams and StreamPiper objects
-        systemOut = Pipe.open();
-        systemOut.source().configureBlocking(false);
+        // Starting the queues and StreamPiper objects.  The queues live in
+        // memory, so the only file descriptors a spawn uses are the
+        // spawnable's own.
+        systemOut = new SpscByteQueue(QUEUE_CAPACITY_BUFFERS * readBufferSize);
         spawnOutToSystemOut = new StreamPiper(echo ? System.out : null,
                                               spawnable.getStdout(),
-                                              Channels.newOutputStream(systemOut.sink()));
+                                              systemOut.getOutputStream(),
+                                              readBufferSize);
+        spawnOutToSystemOut.setCapturing(captureOutput);
+        spawnOutToSystemOut.setMinBufferSize(minReadBufferSize);
+        spawnOutToSystemOut.setScreen(screen);
+        spawnOutToSystemOut.setFilter(OutputFilters.create(outputFilters));
+        if (echoSink != null) {
+            spawnOutToSystemOut.setEchoSink(echoSink, session, Spawn.STDOUT);
+        }
+        if (hibernateAfterMillis > 0) {
+            spawnOutToSystemOut.setHibernation(hibernateAfterMillis, spawnable, systemOut);
+        }
         spawnOutToSystemOut.start();
 
         if (spawnable.getStderr() != null) {
-            systemErr = Pipe.open();
-            systemErr.source().configureBlocking(false);
-
+            systemErr = new SpscByteQueue(QUEUE_CAPACITY_BUFFERS * readBufferSize);
             spawnErrToSystemErr = new StreamPiper(echo ? System.err : null,
                                                   spawnable.getStderr(),
-                                                  Channels.newOutputStream(systemErr.sink()));
+                                                  systemErr.getOutputStream(),
+                                                  readBufferSize);
+            spawnErrToSystemErr.setCapturing(captureOutput);
+            spawnErrToSystemErr.setMinBufferSize(minReadBufferSize);
+            spawnErrToSystemErr.setFilter(OutputFilters.create(outputFilters));
+            if (echoSink != null) {
+                spawnErrToSystemErr.setEchoSink(echoSink, session, Spawn.STDERR);
+            }
+            if (hibernateAfterMillis > 0) {
+                spawnErrToSystemErr.setHibernation(hibernateAfterMillis, spawnable, systemErr);
+            }
             spawnErrToSystemErr.start();
         }
     }
@@ -164,37 +370,21 @@ implements TimerEventListener
         if (spawnOutToSystemOut != null) {
             spawnOutToSystemOut.stopProcessing();
         }
+        // Wakes up pipers waiting for queue space; what has already been
+        // queued can still be read
         if (systemOut != null) {
-            try {
-                systemOut.sink().close();
-            } catch (IOException e) {
-                LOG.warn("Closing stdout sink failed", e);
-            }
-            try {
-                systemOut.source().close();
-            } catch (IOException e) {
-                LOG.warn("Closing stdout source failed", e);
-            }
+            systemOut.close();
         }
         if (systemErr != null) {
-            try {
-                systemErr.sink().close();
-            } catch (IOException e) {
-                LOG.warn("Closing stderr sink failed", e);
-            }
-            try {
-                systemErr.source().close();
-            } catch (IOException e) {
-                LOG.warn("Closing stderr source failed", e);
-            }
+            systemErr.close();
         }
     }
 
     /**
-     * @return a channel from which data produced by the spawn can be read
+     * @return a queue from which data produced by the spawn can be read
      */
-    Pipe.SourceChannel getStdoutChannel() {
-        return systemOut.source();
+    SpscByteQueue getStdoutQueue() {
+        return systemOut;
     }
 
     /**
@@ -205,14 +395,11 @@ implements TimerEventListener
     }
 
     /**
-     * @return a channel from which stderr data produced by the spawn can be read, or
-     * null if there is no channel to stderr.
+     * @return a queue from which stderr data produced by the spawn can be read, or
+     * null if there is no stderr.
      */
-    Pipe.SourceChannel getStderrChannel() {
-        if (systemErr == null) {
-            return null;
-        }
-        return systemErr.source();
+    SpscByteQueue getStderrQueue() {
+        return systemErr;
     }
 
     /**
@@ -256,14 +443,58 @@ implements TimerEventListener
         return spawnErrToSystemErr.getCurrentContents();
     }
 
+    /**
+     * @return an immutable view of what has been read from Standard Out so far
+     */
+    CharSequence getStandardOutSnapshot() {
+        return spawnOutToSystemOut.getSnapshot();
+    }
+
+    /**
+     * @return an immutable view of what has been read from Standard Err so far,
+     * or null if stderr is not available
+     */
+    CharSequence getStandardErrSnapshot() {
+        if (spawnErrToSystemErr == null) {
+            return null;
+        }
+        return spawnErrToSystemErr.getSnapshot();
+    }
+
+    /**
+     * @param offset How many chars to skip
+     * @return an immutable view of what has been read from Standard Out since
+     * the given offset
+     */
+    CharSequence getStandardOutContentsSince(int offset) {
+        return spawnOutToSystemOut.getContentsSince(offset);
+    }
+
+    /**
+     * @param offset How many chars to skip
+     * @return an immutable view of what has been read from Standard Err since
+     * the given offset, or null if stderr is not available
+     */
+    CharSequence getStandardErrContentsSince(int offset) {
+        if (spawnErrToSystemErr == null) {
+            return null;
+        }
+        return spawnErrToSystemErr.getContentsSince(offset);
+    }
+
     /**
      * Register a listener that will be called when the spawnable we're wrapping
-     * closes.
+     * closes.  Listeners already registered with the spawnable are kept if
+     * it's an {@link AbstractSpawnable}.
      *
      * @param closeListener The listener that will be notified when this
      * spawnable closes.
      */
-    void setCloseListener(CloseListener closeListener) {
-        spawnable.setCloseListener(closeListener);
+    void addCloseListener(CloseListener closeListener) {
+        if (spawnable instanceof AbstractSpawnable) {
+            ((AbstractSpawnable)spawnable).addCloseListener(closeListener);
+        } else {
+            spawnable.setCloseListener(closeListener);
+        }
     }
 }
@@ -0,0 +1,360 @@
+package expectj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free single-producer single-consumer byte queue.
+ * <p>
+ * Bytes are kept in a ring buffer.  The producer publishes what it has written
+ * by advancing {@link #tail}, the consumer publishes what it has read by
+ * advancing {@link #head}.  Neither side ever takes a lock; a side that has to
+ * wait parks its thread and is unparked by the other side.
+ * <p>
+ * At most one thread at a time may act as producer and at most one thread at a
+ * time may act as consumer.  Callers that want several threads to produce (or
+ * consume) must serialize them themselves, a monitor hand-over between the
+ * threads is enough.
+ */
+class SpscByteQueue {
+    /**
+     * The ring buffer.  Its length is a power of two.  Null until the first
+     * write, and while the queue is trimmed, see {@link #trim()}.
+     */
+    private volatile byte[] buffer;
+
+    /**
+     * The length of {@link #buffer}.
+     */
+    private final int capacity;
+
+    /**
+     * {@link #buffer}.length - 1, for cheap modulo.
+     */
+    private final int mask;
+
+    /**
+     * The total number of bytes ever read.  Only advanced by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The total number of bytes ever written.  Only advanced by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Set by the producer when no more bytes will be written.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The consumer thread if it is waiting for data, null otherwise.
+     */
+    private volatile Thread waitingConsumer = null;
+
+    /**
+     * The producer thread if it is waiting for space, null otherwise.
+     */
+    private volatile Thread waitingProducer = null;
+
+    /**
+     * Create a new queue.
+     *
+     * @param capacity The minimum number of bytes the queue should be able to
+     * hold.  Will be rounded up to a power of two.
+     */
+    SpscByteQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be >= 1, was " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        mask = size - 1;
+    }
+
+    /**
+     * Write as many bytes as there is room for without waiting.  Producer only.
+     *
+     * @param b The bytes to write.
+     * @param off Where in b to start.
+     * @param len The maximum number of bytes to write.
+     * @return The number of bytes written, possibly 0.
+     * @throws IOException if the queue has been closed.
+     */
+    int offer(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Queue closed");
+        }
+        long t = tail.get();
+        int free = capacity - (int)(t - head.get());
+        int count = Math.min(free, len);
+        if (count <= 0) {
+            return 0;
+        }
+
+        byte[] buffer = this.buffer;
+        if (buffer == null) {
+            buffer = new byte[capacity];
+            this.buffer = buffer;
+        }
+        int start = (int)t & mask;
+        int firstPart = Math.min(count, buffer.length - start);
+        System.arraycopy(b, off, buffer, start, firstPart);
+        System.arraycopy(b, off + firstPart, buffer, 0, count - firstPart);
+        tail.set(t + count);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return count;
+    }
+
+    /**
+     * Write bytes, waiting for room as needed.  Producer only.
+     *
+     * @param b The bytes to write.
+     * @param off Where in b to start.
+     * @param len The number of bytes to write.
+     * @throws IOException if the queue has been closed.
+     * @throws InterruptedIOException if interrupted while waiting for room.
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = offer(b, off, len);
+            off += count;
+            len -= count;
+            if (count == 0) {
+                waitingProducer = Thread.currentThread();
+                try {
+                    // Re-check after announcing ourselves to avoid a lost wakeup
+                    if (tail.get() - head.get() == capacity && !closed) {
+                        LockSupport.park(this);
+                    }
+                } finally {
+                    waitingProducer = null;
+                }
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for queue space");
+                }
+            }
+        }
+    }
+
+    /**
+     * Read as many bytes as are available without waiting.  Consumer only.
+     *
+     * @param b Where to put the bytes.
+     * @param off Where in b to start.
+     * @param len The maximum number of bytes to read.
+     * @return The number of bytes read, 0 if the queue is empty, or -1 if the
+     * queue is empty and has been closed.
+     */
+    int poll(byte[] b, int off, int len) {
+        long h = head.get();
+        int available = (int)(tail.get() - h);
+        if (available == 0) {
+            // Closing happens after the last write, so re-check for data
+            if (closed && tail.get() == h) {
+                return -1;
+            }
+            return 0;
+        }
+        int count = Math.min(available, len);
+
+        // Published by the producer before it advanced the tail
+        byte[] buffer = this.buffer;
+        int start = (int)h & mask;
+        int firstPart = Math.min(count, buffer.length - start);
+        System.arraycopy(buffer, start, b, off, firstPart);
+        System.arraycopy(buffer, 0, b, off + firstPart, count - firstPart);
+        head.set(h + count);
+
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return count;
+    }
+
+    /**
+     * Read bytes, waiting until at least one is available.  Consumer only.
+     *
+     * @param b Where to put the bytes.
+     * @param off Where in b to start.
+     * @param len The maximum number of bytes to read.
+     * @return The number of bytes read, or -1 at end of stream.
+     * @throws InterruptedIOException if interrupted while waiting for data.
+     */
+    int read(byte[] b, int off, int len) throws InterruptedIOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            int count = poll(b, off, len);
+            if (count != 0) {
+                return count;
+            }
+            waitingConsumer = Thread.currentThread();
+            try {
+                // Re-check after announcing ourselves to avoid a lost wakeup
+                if (tail.get() == head.get() && !closed) {
+                    LockSupport.park(this);
+                }
+            } finally {
+                waitingConsumer = null;
+            }
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for queue data");
+            }
+        }
+    }
+
+    /**
+     * Release the ring buffer if the queue is empty.  It will be allocated
+     * again on the next write.  Producer only.
+     */
+    void trim() {
+        if (tail.get() == head.get()) {
+            buffer = null;
+        }
+    }
+
+    /**
+     * Wait until any of a number of queues has data or has been closed.  The
+     * calling thread must be the consumer of all the queues.
+     * <p>
+     * This method may return early, callers should check their queues and
+     * wait again as needed.
+     *
+     * @param queues The queues to wait for.  Null entries are ignored.
+     * @param timeoutMillis The maximum number of milliseconds to wait, or -1
+     * to wait until there is data.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    static void awaitAny(SpscByteQueue[] queues, long timeoutMillis)
+    throws InterruptedIOException
+    {
+        Thread consumer = Thread.currentThread();
+        for (int i = 0; i < queues.length; i++) {
+            if (queues[i] != null) {
+                queues[i].waitingConsumer = consumer;
+            }
+        }
+        try {
+            // Re-check after announcing ourselves to avoid a lost wakeup
+            for (int i = 0; i < queues.length; i++) {
+                if (queues[i] != null && queues[i].isReadable()) {
+                    return;
+                }
+            }
+            if (timeoutMillis == -1) {
+                LockSupport.park(queues);
+            } else if (timeoutMillis > 0) {
+                LockSupport.parkNanos(queues, timeoutMillis * 1000000L);
+            }
+        } finally {
+            for (int i = 0; i < queues.length; i++) {
+                if (queues[i] != null) {
+                    queues[i].waitingConsumer = null;
+                }
+            }
+        }
+        if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for queue data");
+        }
+    }
+
+    /**
+     * @return True if reading from this queue won't wait, because it either
+     * has data or has been closed.
+     */
+    boolean isReadable() {
+        return closed || tail.get() != head.get();
+    }
+
+    /**
+     * @return The number of bytes that can be read without waiting.
+     */
+    int available() {
+        return (int)(tail.get() - head.get());
+    }
+
+    /**
+     * Tell the consumer that no more data will be written.  Data already in the
+     * queue can still be read.
+     */
+    void close() {
+        closed = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * @return true if {@link #close()} has been called.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return A stream reading from this queue.  Reading from the stream makes
+     * the reading thread the consumer.
+     */
+    InputStream getInputStream() {
+        return new InputStream() {
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                if (SpscByteQueue.this.read(single, 0, 1) == -1) {
+                    return -1;
+                }
+                return single[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return SpscByteQueue.this.read(b, off, len);
+            }
+
+            public int available() {
+                return SpscByteQueue.this.available();
+            }
+        };
+    }
+
+    /**
+     * @return A stream writing to this queue.  Writing to the stream makes the
+     * writing thread the producer.  Closing the stream closes the queue.
+     */
+    OutputStream getOutputStream() {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                SpscByteQueue.this.write(new byte[] {(byte)b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                SpscByteQueue.this.write(b, off, len);
+            }
+
+            public void close() {
+                SpscByteQueue.this.close();
+            }
+        };
+    }
+}
@@ -12,6 +12,13 @@ import com.jcraft.jsch.Session;
  * A Spawnable for controlling an SSH session using ExpectJ.
  */
 public class SshSpawn extends AbstractSpawnable implements Spawnable {
+    /**
+     * Disconnect after this many unanswered server alive probes.
+     *
+     * @see #setServerAliveInterval(int)
+     */
+    public static final int SERVER_ALIVE_COUNT_MAX = 3;
+
     /**
      * A reference to the remote host.
      */
@@ -25,7 +32,7 @@ public class SshSpawn extends AbstractSpawnable implements Spawnable {
     /**
      * Our communications channel to the remote host.
      */
-    private Session m_session = null ;
+    private volatile Session m_session = null ;
 
     /**
      * Use this to read data from the remote host.
@@ -52,6 +59,11 @@ public class SshSpawn extends AbstractSpawnable implements Spawnable {
      */
     private Channel m_channel = null ;
 
+    /**
+     * Probe the server after this many seconds without traffic, 0 for never.
+     */
+    private int m_serverAliveSeconds = 0;
+
     /**
      * Construct a new SSH spawn.
      * @param remoteHostName The remote host to connect to.
@@ -88,6 +100,22 @@ public class SshSpawn extends AbstractSpawnable implements Spawnable {
         m_fromSocket = m_channel.getOutputStream();
     }
 
+    /**
+     * Probe the server when the session has been quiet for a while, and
+     * disconnect if it doesn't answer {@link #SERVER_ALIVE_COUNT_MAX} probes
+     * in a row.  Must be called before {@link #start()}, and has no effect on
+     * spawns created from an existing channel.
+     *
+     * @param seconds How long the session can be quiet before the server is
+     * probed.  0 to never probe, which is the default.
+     */
+    public void setServerAliveInterval(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("Interval must be >= 0, was " + seconds);
+        }
+        m_serverAliveSeconds = seconds;
+    }
+
     public void start() throws IOException {
         if (m_toSocket != null) {
             // We've probably been created by the SshSpawn(Channel) constructor,
@@ -100,6 +128,10 @@ public class SshSpawn extends AbstractSpawnable implements Spawnable {
 			m_session = new JSch().getSession(m_username, m_remoteHost, m_remotePort) ;
 			m_session.setPassword(m_password) ;
 			m_session.setConfig("StrictHostKeyChecking", "no");
+			if (m_serverAliveSeconds > 0) {
+			    m_session.setServerAliveInterval(m_serverAliveSeconds * 1000);
+			    m_session.setServerAliveCountMax(SERVER_ALIVE_COUNT_MAX);
+			}
 			m_session.connect() ;
 			m_channel = m_session.openChannel("shell") ;
 			m_channel.connect() ;
@@ -137,15 +169,15 @@ public class SshSpawn extends AbstractSpawnable implements Spawnable {
     }
 
     public void stop() {
-        if (m_channel == null) {
-            return;
+        if (m_channel != null) {
+            m_channel.disconnect();
+            m_channel = null;
         }
 
-        m_channel.disconnect();
-		m_channel = null;
-
-		if (m_session != null) {
-		    m_session.disconnect();
+        // If we're still connecting, this aborts the connection attempt
+        Session session = m_session;
+		if (session != null) {
+		    session.disconnect();
 		    m_session = null;
 		}
         m_toSocket = null;
@@ -0,0 +1,61 @@
+package expectj;
+
+/**
+ * A snapshot of how one of a spawn's output streams has been read.
+ *
+ * @see Spawn#getStreamMetrics(int)
+ */
+public final class StreamMetrics {
+    /**
+     * The number of bytes read so far.
+     */
+    private final long bytesRead;
+
+    /**
+     * The number of reads so far.
+     */
+    private final long readCount;
+
+    /**
+     * The current read buffer size.
+     */
+    private final int readBufferSize;
+
+    /**
+     * @param bytesRead The number of bytes read so far.
+     * @param readCount The number of reads so far.
+     * @param readBufferSize The current read buffer size.
+     */
+    StreamMetrics(long bytesRead, long readCount, int readBufferSize) {
+        this.bytesRead = bytesRead;
+        this.readCount = readCount;
+        this.readBufferSize = readBufferSize;
+    }
+
+    /**
+     * @return The number of bytes read from the stream so far.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return The number of reads from the stream so far, not counting the
+     * final one at end of stream.
+     */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * @return How many bytes the next read from the stream will ask for.
+     * @see ExpectJ#setReadBufferSize(int, int)
+     */
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    public String toString() {
+        return bytesRead + " bytes in " + readCount + " reads, buffer size " + readBufferSize;
+    }
+}
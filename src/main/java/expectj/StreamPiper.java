@@ -1,158 +1,662 @@
-package expectj;
-
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintStream;
-
-/**
- * This class is responsible for piping the output of one stream to the
- * other. Optionally it also copies the content to standard out or
- * standard err.
- *
- * @author	Sachin Shekar Shetty
- */
-
-class StreamPiper extends Thread implements Runnable {
-    /**
-     * Log messages go here.
-     */
-    private final static Log LOG = LogFactory.getLog(StreamPiper.class);
-
-    /**
-     * Read data from here.
-     */
-    private InputStream inputStream = null;
-
-    /**
-     * Write data to here.
-     */
-    private OutputStream outputStream = null;
-
-    /**
-     * Optionally send a copy of all piped data to here.
-     */
-    private PrintStream copyStream = null;
-
-    /**
-     * When true we drop data from {@link #inputStream} rather than passing it
-     * to {@link #outputStream}.
-     */
-    boolean pipingPaused = false;
-
-    /**
-     * When this turns false, we shut down.  All accesses to this variable should be
-     * synchronized.
-     */
-    private boolean continueProcessing = true;
-
-    /**
-     * String Buffer to hold the contents of output and err.
-     */
-    private volatile StringBuffer sCurrentOut = new StringBuffer();
-
-    /**
-     * When data piping is paused, we just drop data from the input stream
-     * rather than copying it to the output stream.
-     *
-     * @return True if piping is paused.  False otherwise.
-     */
-    private synchronized boolean getPipingPaused() {
-        return pipingPaused;
-    }
-
-    /**
-     * @param copyStream Stream to copy the contents to before piping
-     * the data to another stream. When this parameter is null, it does
-     * not copy the contents
-     * @param pi Input stream to read the data
-     * @param po Output stream to write the data
-     */
-    StreamPiper(PrintStream copyStream, InputStream pi, OutputStream po) {
-        if (pi == null) {
-            throw new NullPointerException("Input stream must not be null");
-        }
-        this.inputStream = pi;
-        this.outputStream = po;
-        this.copyStream = copyStream;
-        // So that JVM does not wait for these threads
-        this.setDaemon(true);
-        this.setName("ExpectJ Stream Piper");
-    }
-
-    /**
-     * This method is used to stop copying on to Standard out and err.
-     * This is used after interact.
-     */
-    public synchronized void stopPipingToStandardOut() {
-        pipingPaused = true;
-    }
-
-    /**
-     * This method is used to start copying on to Standard out and err.
-     * This is used after interact.
-     */
-    public synchronized void startPipingToStandardOut() {
-        pipingPaused = false;
-    }
-
-    /**
-     * This is used to stop the thread, after the process is killed
-     */
-    public synchronized void stopProcessing() {
-        continueProcessing = false;
-    }
-
-    /**
-     * Should we keep doing our thing?
-     *
-     * @return True if we should keep piping data.  False if we should shut down.
-     */
-    private synchronized boolean getContinueProcessing() {
-        return continueProcessing;
-    }
-
-    /**
-     * @return the entire available contents read from the stream
-     */
-    synchronized String getCurrentContents() {
-        return sCurrentOut.toString();
-    }
-
-    /**
-     * Thread method that reads from the stream and writes to the other.
-     */
-    public void run() {
-        byte[] buffer = new byte[512];
-        int bytes_read;
-
-        try {
-            while(getContinueProcessing()) {
-                bytes_read = inputStream.read(buffer);
-                if (bytes_read == -1) {
-                    LOG.debug("Stream ended, closing");
-                    inputStream.close();
-                    outputStream.close();
-                    return;
-                }
-                synchronized (this) {
-                    sCurrentOut.append(new String(buffer, 0, bytes_read));
-                }
-                outputStream.write(buffer, 0, bytes_read);
-                if (copyStream != null && !getPipingPaused()) {
-                    copyStream.write(buffer, 0, bytes_read);
-                    copyStream.flush();
-                }
-                outputStream.flush();
-            }
-        } catch (IOException e) {
-            if (getContinueProcessing()) {
-                LOG.error("Trouble while pushing data between streams", e);
-            }
-        }
-    }
-
-}
+package expectj;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * This class is responsible for piping the output of one stream to the
+ * other. Optionally it also copies the content to standard out or
+ * standard err.
+ *
+ * @author	Sachin Shekar Shetty
+ */
+
+class StreamPiper extends Thread implements Runnable {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(StreamPiper.class);
+
+    /**
+     * How many bytes we try to read at a time unless told otherwise.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * The smallest adaptive read size for spawn output, unless told otherwise.
+     */
+    static final int DEFAULT_MIN_BUFFER_SIZE = 512;
+
+    /**
+     * The largest adaptive read size for spawn output, unless told otherwise.
+     */
+    static final int DEFAULT_MAX_BUFFER_SIZE = 16384;
+
+    /**
+     * Shrink the read size after this many reads in a row that used at most
+     * a quarter of it.
+     */
+    private static final int SHRINK_AFTER_SMALL_READS = 4;
+
+    /**
+     * The longest we sleep between checks for input while polling, see
+     * {@link #setHibernation(long, Spawnable, SpscByteQueue)}.
+     */
+    private static final long MAX_POLL_INTERVAL_MS = 20;
+
+    /**
+     * Read data from here.
+     */
+    private InputStream inputStream = null;
+
+    /**
+     * Write data to here.
+     */
+    private OutputStream outputStream = null;
+
+    /**
+     * Optionally send a copy of all piped data to here.
+     */
+    private PrintStream copyStream = null;
+
+    /**
+     * When true we don't copy data to {@link #copyStream}.
+     */
+    private volatile boolean pipingPaused = false;
+
+    /**
+     * When this turns false, we shut down.
+     */
+    private volatile boolean continueProcessing = true;
+
+    /**
+     * The most bytes we try to read at a time.
+     */
+    private final int bufferSize;
+
+    /**
+     * The fewest bytes we try to read at a time.
+     */
+    private int minBufferSize;
+
+    /**
+     * How many bytes we currently try to read at a time, between
+     * {@link #minBufferSize} and {@link #bufferSize}.
+     */
+    private volatile int readSize;
+
+    /**
+     * How many reads in a row have used at most a quarter of
+     * {@link #readSize}.  Only touched by the thread running us.
+     */
+    private int smallReads = 0;
+
+    /**
+     * The number of bytes we have read.  Only written by the thread running
+     * us.
+     */
+    private volatile long bytesRead = 0;
+
+    /**
+     * The number of reads we have done.  Only written by the thread running
+     * us.
+     */
+    private volatile long readCount = 0;
+
+    /**
+     * Holds everything we've read.  Only appended to by our own thread.
+     */
+    private final CaptureBuffer capture = new CaptureBuffer();
+
+    /**
+     * When false we don't add anything to {@link #capture}.
+     */
+    private volatile boolean capturing = true;
+
+    /**
+     * If not null, everything we read is printed on this screen.
+     */
+    private volatile TerminalScreen screen = null;
+
+    /**
+     * Answers recurring prompts as they are read.
+     */
+    private final AutoResponderMatcher responders = new AutoResponderMatcher();
+
+    /**
+     * If not null, cleans up everything we read before it is matched against
+     * or captured.
+     */
+    private volatile OutputFilter filter = null;
+
+    /**
+     * If not null, gets a copy of all piped data instead of
+     * {@link #copyStream}.
+     */
+    private EchoSink echoSink = null;
+
+    /**
+     * Identifies our spawn to {@link #echoSink}.
+     */
+    private String echoSession = null;
+
+    /**
+     * Which stream we are piping, for {@link #echoSink}.
+     */
+    private int echoStream = Spawn.STDOUT;
+
+    /**
+     * Hibernate after this many milliseconds without input, 0 to never
+     * hibernate.
+     */
+    private long hibernateAfterMillis = 0;
+
+    /**
+     * The spawnable we're reading from, checked for closing while we poll
+     * for input.  Null if we never hibernate.
+     */
+    private Spawnable owner = null;
+
+    /**
+     * Trimmed when we hibernate, may be null.
+     */
+    private SpscByteQueue queue = null;
+
+    /**
+     * When we last read something, or were told to wake up.
+     */
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    /**
+     * When we last got anything from our input stream.
+     */
+    private volatile long lastRead = System.currentTimeMillis();
+
+    /**
+     * Guards {@link #hibernating} and {@link #ended}, and is notified when
+     * {@link #ended} is set.
+     */
+    private final Object hibernationLock = new Object();
+
+    /**
+     * True when our thread is done for good, not just hibernating.  Guarded
+     * by {@link #hibernationLock}.
+     */
+    private boolean ended = false;
+
+    /**
+     * True while we have no thread, and {@link Hibernator} watches our input
+     * stream instead.  Guarded by {@link #hibernationLock}.
+     */
+    private boolean hibernating = false;
+
+    /**
+     * What we read into, from the {@link BufferPool}.  Null while not
+     * running.  Only touched by the thread currently running us.
+     */
+    private byte[] buffer = null;
+
+    /**
+     * @param copyStream Stream to copy the contents to before piping
+     * the data to another stream. When this parameter is null, it does
+     * not copy the contents
+     * @param pi Input stream to read the data
+     * @param po Output stream to write the data
+     */
+    StreamPiper(PrintStream copyStream, InputStream pi, OutputStream po) {
+        this(copyStream, pi, po, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param copyStream Stream to copy the contents to before piping
+     * the data to another stream. When this parameter is null, it does
+     * not copy the contents
+     * @param pi Input stream to read the data
+     * @param po Output stream to write the data
+     * @param bufferSize How many bytes to try to read at a time
+     */
+    StreamPiper(PrintStream copyStream, InputStream pi, OutputStream po, int bufferSize) {
+        if (pi == null) {
+            throw new NullPointerException("Input stream must not be null");
+        }
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be >= 1, was " + bufferSize);
+        }
+        this.inputStream = pi;
+        this.outputStream = po;
+        this.copyStream = copyStream;
+        this.bufferSize = bufferSize;
+        this.minBufferSize = bufferSize;
+        this.readSize = bufferSize;
+        // So that JVM does not wait for these threads
+        this.setDaemon(true);
+        this.setName("ExpectJ Stream Piper");
+    }
+
+    /**
+     * This method is used to stop copying on to Standard out and err.
+     * This is used after interact.
+     */
+    public void stopPipingToStandardOut() {
+        pipingPaused = true;
+    }
+
+    /**
+     * This method is used to start copying on to Standard out and err.
+     * This is used after interact.
+     */
+    public void startPipingToStandardOut() {
+        pipingPaused = false;
+    }
+
+    /**
+     * This is used to stop the thread, after the process is killed
+     */
+    public void stopProcessing() {
+        continueProcessing = false;
+        synchronized (hibernationLock) {
+            if (hibernating) {
+                hibernating = false;
+                Hibernator.remove(this);
+                if (screen != null) {
+                    screen.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Release our thread and buffers after a period without input.  While
+     * hibernating, our input stream is watched by the {@link Hibernator}, and
+     * we start a new thread when input arrives or when {@link #wake()} is
+     * called.
+     * <p>
+     * To notice going idle, we poll our input stream instead of blocking on
+     * it, so input can be delayed by up to {@link #MAX_POLL_INTERVAL_MS}, or
+     * {@link Hibernator#POLL_INTERVAL_MS} while hibernating.  Should be
+     * called before this thread is started.
+     *
+     * @param idleMillis Hibernate after this many milliseconds without input.
+     * @param spawnable The spawnable we're reading from, input streams that
+     * end while the spawnable is still open aren't noticed while polling.
+     * @param outputQueue The queue we write to, trimmed when we hibernate.
+     * May be null.
+     */
+    void setHibernation(long idleMillis, Spawnable spawnable, SpscByteQueue outputQueue) {
+        this.hibernateAfterMillis = idleMillis;
+        this.owner = spawnable;
+        this.queue = outputQueue;
+    }
+
+    /**
+     * Adapt the read size to the data: grow it while reads fill it, and shrink
+     * it while reads use only a small part of it.  Should be called before
+     * this thread is started.
+     *
+     * @param min The smallest read size.  The largest is the buffer size
+     * given to the constructor.
+     */
+    void setMinBufferSize(int min) {
+        if (min < 1 || min > bufferSize) {
+            throw new IllegalArgumentException("Minimum buffer size must be 1-"
+                                               + bufferSize + ", was " + min);
+        }
+        this.minBufferSize = min;
+        this.readSize = min;
+    }
+
+    /**
+     * @return When we last got anything from our input stream, in
+     * milliseconds since the epoch.
+     */
+    long getLastRead() {
+        return lastRead;
+    }
+
+    /**
+     * @return How we have been reading so far.
+     */
+    StreamMetrics getMetrics() {
+        return new StreamMetrics(bytesRead, readCount, readSize);
+    }
+
+    /**
+     * Grow or shrink {@link #readSize} based on how much the last read got,
+     * and switch to a buffer of the new size if needed.
+     *
+     * @param lastRead How many bytes the last read got.
+     */
+    private void adaptReadSize(int lastRead) {
+        int newSize = readSize;
+        if (lastRead == readSize) {
+            smallReads = 0;
+            newSize = Math.min(readSize * 2, bufferSize);
+        } else if (lastRead <= readSize / 4) {
+            smallReads++;
+            if (smallReads >= SHRINK_AFTER_SMALL_READS) {
+                smallReads = 0;
+                newSize = Math.max(readSize / 2, minBufferSize);
+            }
+        } else {
+            smallReads = 0;
+        }
+        if (newSize == readSize) {
+            return;
+        }
+
+        readSize = newSize;
+        if (buffer.length < newSize || buffer.length / 2 >= newSize) {
+            BufferPool.release(buffer);
+            buffer = BufferPool.acquire(newSize);
+        }
+    }
+
+    /**
+     * Tell us that our spawn is being used.  Starts a new thread if we are
+     * hibernating, and postpones hibernation otherwise.
+     */
+    void wake() {
+        lastActivity = System.currentTimeMillis();
+        synchronized (hibernationLock) {
+            if (!hibernating) {
+                return;
+            }
+            LOG.debug("Waking up");
+            hibernating = false;
+            Hibernator.remove(this);
+            Thread thread = new Thread(this, getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Wake up if our input stream has something for us.  Called by the
+     * {@link Hibernator}.
+     */
+    void wakeIfReadable() {
+        boolean readable;
+        try {
+            readable = isReadable();
+        } catch (IOException e) {
+            // Let our own thread deal with this
+            readable = true;
+        }
+        if (readable) {
+            wake();
+        }
+    }
+
+    /**
+     * Wait until we won't read any more, because our input has ended or we
+     * have been stopped.  Hibernating doesn't count, since we wake up when
+     * more input arrives.
+     *
+     * @param timeoutMillis How long to wait at most.
+     * @return True if we are done, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitEnd(long timeoutMillis) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + timeoutMillis;
+        synchronized (hibernationLock) {
+            while (!ended) {
+                long msLeft = giveUp - System.currentTimeMillis();
+                if (msLeft <= 0) {
+                    return false;
+                }
+                hibernationLock.wait(msLeft);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if we are hibernating.
+     */
+    boolean isHibernating() {
+        synchronized (hibernationLock) {
+            return hibernating;
+        }
+    }
+
+    /**
+     * @return True if reading from our input stream won't block for long.
+     * @throws IOException on trouble checking the input stream.
+     */
+    private boolean isReadable() throws IOException {
+        return inputStream.available() > 0 || (owner != null && owner.isClosed());
+    }
+
+    /**
+     * Poll our input stream until there's something to read, we've been idle
+     * for too long or we're told to stop.
+     *
+     * @return False if it's time to hibernate, true otherwise.
+     * @throws IOException on trouble checking the input stream.
+     */
+    private boolean waitForInput() throws IOException {
+        long sleepMillis = 1;
+        while (continueProcessing && !isReadable()) {
+            if (System.currentTimeMillis() - lastActivity >= hibernateAfterMillis) {
+                return false;
+            }
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+            sleepMillis = Math.min(sleepMillis * 2, MAX_POLL_INTERVAL_MS);
+        }
+        return true;
+    }
+
+    /**
+     * Start hibernating unless we've been woken up meanwhile.  Called by the
+     * thread running us, which must exit if this method returns true.
+     *
+     * @return True if we are now hibernating.
+     */
+    private boolean hibernate() {
+        synchronized (hibernationLock) {
+            if (!continueProcessing
+                || System.currentTimeMillis() - lastActivity < hibernateAfterMillis)
+            {
+                return false;
+            }
+            LOG.debug("Idle for " + hibernateAfterMillis + "ms, hibernating");
+            hibernating = true;
+            BufferPool.release(buffer);
+            buffer = null;
+            readSize = minBufferSize;
+            if (queue != null) {
+                queue.trim();
+            }
+            Hibernator.add(this);
+            return true;
+        }
+    }
+
+    /**
+     * Decide whether to keep what we read for {@link #getCurrentContents()}.
+     * Should be called before this thread is started.
+     *
+     * @param capturing False to not keep anything.
+     */
+    void setCapturing(boolean capturing) {
+        this.capturing = capturing;
+    }
+
+    /**
+     * Print everything we read on a terminal screen.  Should be called before
+     * this thread is started.
+     *
+     * @param screen The screen to print on.
+     */
+    void setScreen(TerminalScreen screen) {
+        this.screen = screen;
+    }
+
+    /**
+     * Clean up everything read after this call before passing it on.  The
+     * terminal screen still gets the unfiltered data.
+     *
+     * @param filter The filter to use, null for no filtering.
+     */
+    void setFilter(OutputFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Send a copy of all piped data to an echo sink instead of the copy
+     * stream.  Should be called before this thread is started.
+     *
+     * @param sink Where to send the data.
+     * @param session Identifies our spawn to the sink.
+     * @param stream {@link Spawn#STDOUT} or {@link Spawn#STDERR}.
+     */
+    void setEchoSink(EchoSink sink, String session, int stream) {
+        this.echoSink = sink;
+        this.echoSession = session;
+        this.echoStream = stream;
+    }
+
+    /**
+     * @return the entire available contents read from the stream
+     */
+    String getCurrentContents() {
+        return capture.toString();
+    }
+
+    /**
+     * @return an immutable view of everything read from the stream so far
+     */
+    CharSequence getSnapshot() {
+        return capture.snapshot();
+    }
+
+    /**
+     * @param offset How many chars to skip
+     * @return an immutable view of what has been read from the stream since
+     * the given offset
+     */
+    CharSequence getContentsSince(int offset) {
+        return capture.since(offset);
+    }
+
+    /**
+     * Replace the auto-responders evaluated on the data we read.
+     *
+     * @param rules The auto-responders for this stream.
+     * @param replyTo Where to send replies.
+     */
+    void setAutoResponders(AutoResponder[] rules, Spawn replyTo) {
+        responders.setRules(rules, replyTo);
+    }
+
+    /**
+     * Pass data on to our output stream, and to our copy stream unless piping
+     * is paused.
+     *
+     * @param bytes The data to pass on.
+     * @param length The number of bytes to pass on.
+     * @throws IOException on trouble writing the data.
+     */
+    private void pipe(byte[] bytes, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (capturing) {
+            capture.append(bytes, 0, length);
+        }
+        outputStream.write(bytes, 0, length);
+        if (echoSink != null) {
+            if (!pipingPaused) {
+                echoSink.echo(echoSession, echoStream, bytes, 0, length);
+            }
+        } else if (copyStream != null && !pipingPaused) {
+            copyStream.write(bytes, 0, length);
+            copyStream.flush();
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Thread method that reads from the stream and writes to the other.
+     */
+    public void run() {
+        int bytes_read;
+        boolean hibernated = false;
+
+        try {
+            if (buffer == null) {
+                buffer = BufferPool.acquire(readSize);
+            }
+            while(continueProcessing) {
+                if (hibernateAfterMillis > 0) {
+                    if (!waitForInput()) {
+                        if (hibernate()) {
+                            hibernated = true;
+                            return;
+                        }
+                        continue;
+                    }
+                    if (!continueProcessing) {
+                        break;
+                    }
+                }
+                bytes_read = inputStream.read(buffer, 0, readSize);
+                lastActivity = System.currentTimeMillis();
+                lastRead = lastActivity;
+                if (bytes_read == -1) {
+                    LOG.debug("Stream ended, closing");
+                    int held = responders.flush();
+                    pipe(responders.getOutput(buffer), held);
+                    if (capturing) {
+                        capture.finish();
+                    }
+                    inputStream.close();
+                    outputStream.close();
+                    return;
+                }
+                bytesRead += bytes_read;
+                readCount++;
+                int rawLength = bytes_read;
+                if (screen != null) {
+                    screen.write(buffer, 0, bytes_read);
+                }
+                OutputFilter currentFilter = filter;
+                if (currentFilter != null) {
+                    bytes_read = currentFilter.filter(buffer, 0, bytes_read);
+                }
+                int length = responders.process(buffer, bytes_read);
+                pipe(responders.getOutput(buffer), length);
+                if (minBufferSize < bufferSize) {
+                    adaptReadSize(rawLength);
+                }
+            }
+        } catch (IOException e) {
+            if (continueProcessing) {
+                LOG.error("Trouble while pushing data between streams", e);
+            }
+        } finally {
+            if (!hibernated) {
+                BufferPool.release(buffer);
+                buffer = null;
+                if (screen != null) {
+                    screen.close();
+                }
+                synchronized (hibernationLock) {
+                    ended = true;
+                    hibernationLock.notifyAll();
+                }
+            }
+        }
+    }
+
+}
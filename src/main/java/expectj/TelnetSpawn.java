@@ -1,17 +1,73 @@
 package expectj;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 /**
  * A Spawnable for controlling a telnet session using ExpectJ.
  * @author Johan Walles
  */
 class TelnetSpawn extends AbstractSpawnable implements Spawnable {
+    /**
+     * Log messages go here.
+     */
+    private final static Log LOG = LogFactory.getLog(TelnetSpawn.class);
+
+    /**
+     * <code>Socket.setOption(SocketOption, Object)</code>, or null if TCP
+     * keepalive timing can't be set.
+     */
+    private static final Method SET_OPTION;
+
+    /**
+     * <code>jdk.net.ExtendedSocketOptions.TCP_KEEPIDLE</code>.
+     */
+    private static final Object TCP_KEEPIDLE;
+
+    /**
+     * <code>jdk.net.ExtendedSocketOptions.TCP_KEEPINTERVAL</code>.
+     */
+    private static final Object TCP_KEEPINTERVAL;
+
+    /**
+     * <code>jdk.net.ExtendedSocketOptions.TCP_KEEPCOUNT</code>.
+     */
+    private static final Object TCP_KEEPCOUNT;
+
+    static {
+        Method setOption = null;
+        Object keepIdle = null;
+        Object keepInterval = null;
+        Object keepCount = null;
+        try {
+            Class options = Class.forName("jdk.net.ExtendedSocketOptions");
+            keepIdle = options.getField("TCP_KEEPIDLE").get(null);
+            keepInterval = options.getField("TCP_KEEPINTERVAL").get(null);
+            keepCount = options.getField("TCP_KEEPCOUNT").get(null);
+            setOption = Socket.class.getMethod("setOption", new Class[] {
+                Class.forName("java.net.SocketOption"), Object.class
+            });
+        } catch (Exception e) {
+            LOG.debug("TCP keepalive timing not available,"
+                      + " telnet keepalive will use the operating system defaults", e);
+            setOption = null;
+        }
+        SET_OPTION = setOption;
+        TCP_KEEPIDLE = keepIdle;
+        TCP_KEEPINTERVAL = keepInterval;
+        TCP_KEEPCOUNT = keepCount;
+    }
+
     /**
      * A reference to the remote host.
      */
@@ -37,6 +93,11 @@ class TelnetSpawn extends AbstractSpawnable implements Spawnable {
      */
     private OutputStream m_toSocket;
 
+    /**
+     * Probe the remote host after this many quiet seconds, 0 to never probe.
+     */
+    private int m_keepAliveSeconds = 0;
+
     /**
      * Construct a new telnet spawn.
      * @param remoteHostName The remote host to connect to.
@@ -48,9 +109,70 @@ class TelnetSpawn extends AbstractSpawnable implements Spawnable {
         m_remoteHost = InetAddress.getByName(remoteHostName);
     }
 
+    /**
+     * Have the operating system probe the remote host when the connection has
+     * been quiet for a while, and close the connection if it doesn't answer.
+     * Must be called before {@link #start()}.
+     * <p>
+     * Where the VM supports it, the probes start after <code>seconds</code>
+     * quiet seconds, are repeated every <code>seconds</code> seconds, and the
+     * connection is closed after {@link SshSpawn#SERVER_ALIVE_COUNT_MAX}
+     * unanswered probes.  Otherwise the operating system decides, which
+     * usually means the first probe is sent after two hours.
+     *
+     * @param seconds How long the connection can be quiet before the remote
+     * host is probed.  0 to turn off TCP keepalive.
+     */
+    void setKeepAlive(int seconds) {
+        m_keepAliveSeconds = seconds;
+    }
+
+    /**
+     * Set the TCP keepalive timing of our socket.
+     *
+     * @throws IOException if the socket refuses the new timing.
+     */
+    private void setKeepAliveTiming() throws IOException {
+        if (SET_OPTION == null) {
+            return;
+        }
+        try {
+            Integer seconds = Integer.valueOf(m_keepAliveSeconds);
+            SET_OPTION.invoke(m_socket, new Object[] {TCP_KEEPIDLE, seconds});
+            SET_OPTION.invoke(m_socket, new Object[] {TCP_KEEPINTERVAL, seconds});
+            SET_OPTION.invoke(m_socket, new Object[] {
+                TCP_KEEPCOUNT, Integer.valueOf(SshSpawn.SERVER_ALIVE_COUNT_MAX)
+            });
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof UnsupportedOperationException) {
+                LOG.debug("TCP keepalive timing not supported,"
+                          + " using the operating system defaults", cause);
+                return;
+            }
+            throw new RuntimeException("Setting TCP keepalive timing failed", cause);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Setting TCP keepalive timing failed", e);
+        }
+    }
+
     public void start() throws IOException {
         m_socket = new Socket(m_remoteHost, m_remotePort);
-        m_fromSocket = m_socket.getInputStream();
+        if (m_keepAliveSeconds > 0) {
+            m_socket.setKeepAlive(true);
+            setKeepAliveTiming();
+        }
+        m_fromSocket = new FilterInputStream(m_socket.getInputStream()) {
+            public void close() throws IOException {
+                // Our stdout is closed when the remote host disconnects,
+                // let whoever waits for that know right away
+                super.close();
+                onClose();
+            }
+        };
         m_toSocket = m_socket.getOutputStream();
     }
 
@@ -0,0 +1,763 @@
+package expectj;
+
+import java.util.Arrays;
+
+/**
+ * A VT100 / ANSI terminal screen, kept up to date as a spawn prints.
+ * <p>
+ * Full-screen applications move the cursor around and redraw parts of the
+ * screen, so the raw bytes they print are hard to match against.  A terminal
+ * screen interprets the escape sequences as they arrive, and lets you wait for
+ * text to appear on the screen instead, see
+ * {@link Spawn#expectScreen(String, int, int, long)}.  Enable it with
+ * {@link ExpectJ#setTerminalEmulation(int, int)}.
+ * <p>
+ * The screen is updated incrementally: each printed character costs one cell
+ * update, and each row remembers when it was last changed.  Waiting for text
+ * only re-examines rows changed since the previous look.
+ * <p>
+ * Bytes are interpreted as ISO-8859-1, just like expect() does.  Supported are
+ * cursor movement, erasing, scrolling regions, inserting and deleting lines
+ * and characters, and saving and restoring the cursor.  Other sequences,
+ * including all attribute changes, are parsed and ignored.  Like on a real
+ * VT100, a line feed doesn't return the cursor to the first column unless
+ * line feed / new line mode (ESC [ 20 h) is set.
+ */
+public class TerminalScreen {
+    /**
+     * Parser state: printing text.
+     */
+    private static final int STATE_TEXT = 0;
+
+    /**
+     * Parser state: got ESC.
+     */
+    private static final int STATE_ESCAPE = 1;
+
+    /**
+     * Parser state: inside a control sequence, ESC [.
+     */
+    private static final int STATE_CSI = 2;
+
+    /**
+     * Parser state: got ESC ( or similar, one more byte to skip.
+     */
+    private static final int STATE_CHARSET = 3;
+
+    /**
+     * Parser state: inside an operating system command, ESC ].
+     */
+    private static final int STATE_OSC = 4;
+
+    /**
+     * The maximum number of control sequence parameters we keep track of.
+     */
+    private static final int MAX_PARAMETERS = 16;
+
+    /**
+     * The number of rows on the screen.
+     */
+    private final int rows;
+
+    /**
+     * The number of columns on the screen.
+     */
+    private final int columns;
+
+    /**
+     * The screen contents, one array per row.
+     */
+    private final char[][] cells;
+
+    /**
+     * When each row was last changed, compared to {@link #version}.
+     */
+    private final long[] rowVersions;
+
+    /**
+     * Increased on every change of the screen.
+     */
+    private long version = 0;
+
+    /**
+     * The cursor row, 0 based.
+     */
+    private int cursorRow = 0;
+
+    /**
+     * The cursor column, 0 based.
+     */
+    private int cursorColumn = 0;
+
+    /**
+     * True if the cursor is past the last column, and the next printed char
+     * should go on the next line.
+     */
+    private boolean wrapPending = false;
+
+    /**
+     * The saved cursor row.
+     */
+    private int savedRow = 0;
+
+    /**
+     * The saved cursor column.
+     */
+    private int savedColumn = 0;
+
+    /**
+     * The first row of the scrolling region.
+     */
+    private int scrollTop;
+
+    /**
+     * The last row of the scrolling region.
+     */
+    private int scrollBottom;
+
+    /**
+     * If true, line feeds also return the cursor to the first column.
+     */
+    private boolean newLineMode = false;
+
+    /**
+     * The parser state.
+     */
+    private int state = STATE_TEXT;
+
+    /**
+     * Control sequence parameters.
+     */
+    private final int[] parameters = new int[MAX_PARAMETERS];
+
+    /**
+     * The number of control sequence parameters seen so far.
+     */
+    private int parameterCount = 0;
+
+    /**
+     * True if the current control sequence started with a '?'.
+     */
+    private boolean privateSequence = false;
+
+    /**
+     * True when nothing more will be printed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Create a new blank screen.
+     *
+     * @param rows The number of rows.
+     * @param columns The number of columns.
+     */
+    public TerminalScreen(int rows, int columns) {
+        if (rows < 1 || columns < 1) {
+            throw new IllegalArgumentException("Screen must be at least 1x1, was "
+                                               + rows + "x" + columns);
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.cells = new char[rows][columns];
+        this.rowVersions = new long[rows];
+        for (int row = 0; row < rows; row++) {
+            Arrays.fill(cells[row], ' ');
+        }
+        this.scrollTop = 0;
+        this.scrollBottom = rows - 1;
+    }
+
+    /**
+     * @return The number of rows on the screen.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of columns on the screen.
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return The cursor row, 0 based.
+     */
+    public synchronized int getCursorRow() {
+        return cursorRow;
+    }
+
+    /**
+     * @return The cursor column, 0 based.
+     */
+    public synchronized int getCursorColumn() {
+        return cursorColumn;
+    }
+
+    /**
+     * @param row The row to get, 0 based.
+     * @return The text on that row, padded with spaces to the screen width.
+     */
+    public synchronized String getRow(int row) {
+        return new String(cells[row]);
+    }
+
+    /**
+     * Get the text in a rectangular part of the screen.
+     *
+     * @param top The first row, 0 based.
+     * @param left The first column, 0 based.
+     * @param bottom The last row, inclusive.
+     * @param right The last column, inclusive.
+     * @return The rows of the region, separated by \n.
+     */
+    public synchronized String getRegion(int top, int left, int bottom, int right) {
+        if (top < 0 || left < 0 || bottom >= rows || right >= columns
+            || top > bottom || left > right)
+        {
+            throw new IndexOutOfBoundsException("Bad region " + top + "," + left + "-"
+                                                + bottom + "," + right + " for a "
+                                                + rows + "x" + columns + " screen");
+        }
+        StringBuilder region = new StringBuilder((bottom - top + 1) * (right - left + 2));
+        for (int row = top; row <= bottom; row++) {
+            if (row > top) {
+                region.append('\n');
+            }
+            region.append(cells[row], left, right - left + 1);
+        }
+        return region.toString();
+    }
+
+    /**
+     * @return All rows on the screen, separated by \n.
+     */
+    public String getText() {
+        return getRegion(0, 0, rows - 1, columns - 1);
+    }
+
+    public String toString() {
+        return getText();
+    }
+
+    /**
+     * Wait for a case-insensitive substring to show up on any of a range of
+     * rows.  Text spanning more than one row isn't found.
+     *
+     * @param pattern The text to look for.
+     * @param firstRow The first row to look on, 0 based.
+     * @param lastRow The last row to look on, inclusive.
+     * @param timeoutMillis How long to wait, or -1 to wait forever.
+     * @return The row the pattern was found on, or -1 if it didn't show up in
+     * time.  If nothing more will be printed and the pattern isn't on the
+     * screen, -1 is returned right away.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized int waitFor(String pattern, int firstRow, int lastRow, long timeoutMillis)
+    throws InterruptedException
+    {
+        if (firstRow < 0 || lastRow >= rows || firstRow > lastRow) {
+            throw new IndexOutOfBoundsException("Bad row range " + firstRow + "-" + lastRow
+                                                + " for " + rows + " rows");
+        }
+        String upperCasePattern = pattern.toUpperCase();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long[] seen = new long[lastRow - firstRow + 1];
+        Arrays.fill(seen, -1);
+        while (true) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                if (seen[row - firstRow] == rowVersions[row]) {
+                    continue;
+                }
+                seen[row - firstRow] = rowVersions[row];
+                if (new String(cells[row]).toUpperCase().indexOf(upperCasePattern) != -1) {
+                    return row;
+                }
+            }
+            if (closed) {
+                return -1;
+            }
+            if (timeoutMillis == -1) {
+                wait();
+            } else {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return -1;
+                }
+                wait(left);
+            }
+        }
+    }
+
+    /**
+     * @return True if nothing more will be printed.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Tell waiters that nothing more will be printed.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Interpret bytes printed to the terminal.
+     *
+     * @param bytes The printed bytes.
+     * @param offset Where in bytes to start.
+     * @param length The number of bytes printed.
+     */
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        long before = version;
+        for (int i = offset; i < offset + length; i++) {
+            process((char)(bytes[i] & 0xff));
+        }
+        if (version != before) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Interpret one printed char.
+     *
+     * @param c The char.
+     */
+    private void process(char c) {
+        switch (state) {
+        case STATE_ESCAPE:
+            processEscape(c);
+            return;
+        case STATE_CSI:
+            processControlSequence(c);
+            return;
+        case STATE_CHARSET:
+            state = STATE_TEXT;
+            return;
+        case STATE_OSC:
+            if (c == 7 || c == 27) {
+                // BEL ends it, and so does ESC \ where we just skip the \
+                state = (c == 27) ? STATE_ESCAPE : STATE_TEXT;
+            }
+            return;
+        default:
+            break;
+        }
+
+        switch (c) {
+        case 27:
+            state = STATE_ESCAPE;
+            break;
+        case '\r':
+            moveCursor(cursorRow, 0);
+            break;
+        case '\n':
+        case 11:
+        case 12:
+            lineFeed();
+            if (newLineMode) {
+                moveCursor(cursorRow, 0);
+            }
+            break;
+        case '\b':
+            moveCursor(cursorRow, cursorColumn - 1);
+            break;
+        case '\t':
+            moveCursor(cursorRow, Math.min(columns - 1, (cursorColumn / 8 + 1) * 8));
+            break;
+        default:
+            if (c >= ' ' && c != 127) {
+                print(c);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Interpret the char following an ESC.
+     *
+     * @param c The char.
+     */
+    private void processEscape(char c) {
+        state = STATE_TEXT;
+        switch (c) {
+        case '[':
+            state = STATE_CSI;
+            parameterCount = 0;
+            parameters[0] = 0;
+            privateSequence = false;
+            break;
+        case ']':
+            state = STATE_OSC;
+            break;
+        case '(':
+        case ')':
+        case '*':
+        case '+':
+        case '#':
+            state = STATE_CHARSET;
+            break;
+        case '7':
+            savedRow = cursorRow;
+            savedColumn = cursorColumn;
+            break;
+        case '8':
+            moveCursor(savedRow, savedColumn);
+            break;
+        case 'D':
+            lineFeed();
+            break;
+        case 'E':
+            lineFeed();
+            moveCursor(cursorRow, 0);
+            break;
+        case 'M':
+            if (cursorRow == scrollTop) {
+                scrollDown(scrollTop, 1);
+            } else {
+                moveCursor(cursorRow - 1, cursorColumn);
+            }
+            break;
+        case 'c':
+            reset();
+            break;
+        default:
+            // Unsupported, ignore
+            break;
+        }
+    }
+
+    /**
+     * Interpret a char inside a control sequence.
+     *
+     * @param c The char.
+     */
+    private void processControlSequence(char c) {
+        if (c >= '0' && c <= '9') {
+            if (parameterCount == 0) {
+                parameterCount = 1;
+            }
+            int index = Math.min(parameterCount, MAX_PARAMETERS) - 1;
+            parameters[index] = Math.min(parameters[index] * 10 + (c - '0'), 9999);
+            return;
+        }
+        if (c == ';') {
+            if (parameterCount == 0) {
+                parameterCount = 1;
+            }
+            if (parameterCount < MAX_PARAMETERS) {
+                parameters[parameterCount] = 0;
+            }
+            parameterCount++;
+            return;
+        }
+        if (c == '?' || c == '>' || c == '=') {
+            privateSequence = true;
+            return;
+        }
+        if (c < '@' || c > '~') {
+            // Intermediate bytes, ignore
+            return;
+        }
+
+        state = STATE_TEXT;
+        int first = getParameter(0, 1);
+        switch (c) {
+        case 'A':
+            moveCursor(Math.max(cursorRow - first, cursorRow < scrollTop ? 0 : scrollTop),
+                       cursorColumn);
+            break;
+        case 'B':
+            moveCursor(Math.min(cursorRow + first, cursorRow > scrollBottom ? rows - 1 : scrollBottom),
+                       cursorColumn);
+            break;
+        case 'C':
+            moveCursor(cursorRow, cursorColumn + first);
+            break;
+        case 'D':
+            moveCursor(cursorRow, cursorColumn - first);
+            break;
+        case 'E':
+            moveCursor(cursorRow + first, 0);
+            break;
+        case 'F':
+            moveCursor(cursorRow - first, 0);
+            break;
+        case 'G':
+        case '`':
+            moveCursor(cursorRow, first - 1);
+            break;
+        case 'd':
+            moveCursor(first - 1, cursorColumn);
+            break;
+        case 'H':
+        case 'f':
+            moveCursor(first - 1, getParameter(1, 1) - 1);
+            break;
+        case 'J':
+            eraseDisplay(getParameter(0, 0));
+            break;
+        case 'K':
+            eraseLine(getParameter(0, 0));
+            break;
+        case 'L':
+            if (cursorRow >= scrollTop && cursorRow <= scrollBottom) {
+                scrollDown(cursorRow, first);
+            }
+            break;
+        case 'M':
+            if (cursorRow >= scrollTop && cursorRow <= scrollBottom) {
+                scrollUp(cursorRow, first);
+            }
+            break;
+        case '@':
+            insertChars(first);
+            break;
+        case 'P':
+            deleteChars(first);
+            break;
+        case 'X':
+            clear(cursorRow, cursorColumn, Math.min(columns, cursorColumn + first));
+            break;
+        case 'r':
+            if (!privateSequence) {
+                int top = getParameter(0, 1) - 1;
+                int bottom = getParameter(1, rows) - 1;
+                if (top < bottom && bottom < rows) {
+                    scrollTop = top;
+                    scrollBottom = bottom;
+                    moveCursor(0, 0);
+                }
+            }
+            break;
+        case 'h':
+        case 'l':
+            if (!privateSequence && getParameter(0, 0) == 20) {
+                newLineMode = (c == 'h');
+            }
+            break;
+        case 's':
+            savedRow = cursorRow;
+            savedColumn = cursorColumn;
+            break;
+        case 'u':
+            moveCursor(savedRow, savedColumn);
+            break;
+        default:
+            // Attributes and everything else, ignore
+            break;
+        }
+    }
+
+    /**
+     * Get a control sequence parameter.
+     *
+     * @param index Which parameter to get.
+     * @param defaultValue The value to use if the parameter is missing or 0.
+     * @return The parameter value.
+     */
+    private int getParameter(int index, int defaultValue) {
+        if (index >= parameterCount || index >= MAX_PARAMETERS || parameters[index] == 0) {
+            return defaultValue;
+        }
+        return parameters[index];
+    }
+
+    /**
+     * Print a char at the cursor position and move the cursor.
+     *
+     * @param c The char to print.
+     */
+    private void print(char c) {
+        if (wrapPending) {
+            wrapPending = false;
+            cursorColumn = 0;
+            lineFeed();
+        }
+        if (cells[cursorRow][cursorColumn] != c) {
+            cells[cursorRow][cursorColumn] = c;
+            changed(cursorRow);
+        }
+        if (cursorColumn == columns - 1) {
+            wrapPending = true;
+        } else {
+            cursorColumn++;
+        }
+    }
+
+    /**
+     * Move the cursor down a row, scrolling if it's at the bottom of the
+     * scrolling region.
+     */
+    private void lineFeed() {
+        wrapPending = false;
+        if (cursorRow == scrollBottom) {
+            scrollUp(scrollTop, 1);
+        } else if (cursorRow < rows - 1) {
+            cursorRow++;
+        }
+    }
+
+    /**
+     * Move the cursor, staying on the screen.
+     *
+     * @param row The new row.
+     * @param column The new column.
+     */
+    private void moveCursor(int row, int column) {
+        wrapPending = false;
+        cursorRow = Math.max(0, Math.min(rows - 1, row));
+        cursorColumn = Math.max(0, Math.min(columns - 1, column));
+    }
+
+    /**
+     * Scroll part of the scrolling region up, adding blank rows at the bottom.
+     *
+     * @param top The first row to scroll.
+     * @param count The number of rows to scroll.
+     */
+    private void scrollUp(int top, int count) {
+        count = Math.min(count, scrollBottom - top + 1);
+        for (int i = 0; i < count; i++) {
+            // Rotate the row arrays rather than copying chars
+            char[] recycled = cells[top];
+            System.arraycopy(cells, top + 1, cells, top, scrollBottom - top);
+            cells[scrollBottom] = recycled;
+            Arrays.fill(recycled, ' ');
+        }
+        for (int row = top; row <= scrollBottom; row++) {
+            changed(row);
+        }
+    }
+
+    /**
+     * Scroll part of the scrolling region down, adding blank rows at the top.
+     *
+     * @param top The first row to scroll.
+     * @param count The number of rows to scroll.
+     */
+    private void scrollDown(int top, int count) {
+        count = Math.min(count, scrollBottom - top + 1);
+        for (int i = 0; i < count; i++) {
+            char[] recycled = cells[scrollBottom];
+            System.arraycopy(cells, top, cells, top + 1, scrollBottom - top);
+            cells[top] = recycled;
+            Arrays.fill(recycled, ' ');
+        }
+        for (int row = top; row <= scrollBottom; row++) {
+            changed(row);
+        }
+    }
+
+    /**
+     * Handle ESC [ J.
+     *
+     * @param mode 0 to erase from the cursor, 1 to erase up to the cursor, 2
+     * to erase everything.
+     */
+    private void eraseDisplay(int mode) {
+        int firstFull = (mode == 0) ? cursorRow + 1 : 0;
+        int lastFull = (mode == 1) ? cursorRow - 1 : rows - 1;
+        if (mode == 0 || mode == 1) {
+            eraseLine(mode);
+        }
+        for (int row = firstFull; row <= lastFull; row++) {
+            clear(row, 0, columns);
+        }
+    }
+
+    /**
+     * Handle ESC [ K.
+     *
+     * @param mode 0 to erase from the cursor, 1 to erase up to the cursor, 2
+     * to erase the whole line.
+     */
+    private void eraseLine(int mode) {
+        switch (mode) {
+        case 0:
+            clear(cursorRow, cursorColumn, columns);
+            break;
+        case 1:
+            clear(cursorRow, 0, cursorColumn + 1);
+            break;
+        default:
+            clear(cursorRow, 0, columns);
+            break;
+        }
+    }
+
+    /**
+     * Insert blanks at the cursor, pushing the rest of the line right.
+     *
+     * @param count The number of blanks to insert.
+     */
+    private void insertChars(int count) {
+        count = Math.min(count, columns - cursorColumn);
+        char[] line = cells[cursorRow];
+        System.arraycopy(line, cursorColumn, line, cursorColumn + count,
+                         columns - cursorColumn - count);
+        Arrays.fill(line, cursorColumn, cursorColumn + count, ' ');
+        changed(cursorRow);
+    }
+
+    /**
+     * Delete chars at the cursor, pulling the rest of the line left.
+     *
+     * @param count The number of chars to delete.
+     */
+    private void deleteChars(int count) {
+        count = Math.min(count, columns - cursorColumn);
+        char[] line = cells[cursorRow];
+        System.arraycopy(line, cursorColumn + count, line, cursorColumn,
+                         columns - cursorColumn - count);
+        Arrays.fill(line, columns - count, columns, ' ');
+        changed(cursorRow);
+    }
+
+    /**
+     * Blank out part of a row.
+     *
+     * @param row The row.
+     * @param from The first column to blank.
+     * @param to The column after the last one to blank.
+     */
+    private void clear(int row, int from, int to) {
+        char[] line = cells[row];
+        for (int column = from; column < to; column++) {
+            if (line[column] != ' ') {
+                Arrays.fill(line, column, to, ' ');
+                changed(row);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Blank the screen and reset all modes.
+     */
+    private void reset() {
+        for (int row = 0; row < rows; row++) {
+            clear(row, 0, columns);
+        }
+        scrollTop = 0;
+        scrollBottom = rows - 1;
+        newLineMode = false;
+        savedRow = 0;
+        savedColumn = 0;
+        moveCursor(0, 0);
+    }
+
+    /**
+     * Record that a row has changed.
+     *
+     * @param row The row that changed.
+     */
+    private void changed(int row) {
+        version++;
+        rowVersions[row] = version;
+    }
+}
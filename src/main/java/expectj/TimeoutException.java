@@ -2,9 +2,21 @@ package expectj;
 
 /**
  * Timeout while waiting for a {@link Spawn}.
+ * <p>
+ * Scripts that use timeouts for control flow can make these exceptions cheap
+ * by setting the system property <code>expectj.stacklessTimeouts</code> to
+ * true.  Timeout exceptions will then not record any stack traces.  Another
+ * option is not to have them thrown at all, see
+ * {@link Spawn#tryExpect(ExpectPattern[], long)}.
+ *
  * @author johan.walles@gmail.com
  */
 public class TimeoutException extends Exception {
+    /**
+     * If true, we don't record any stack traces.
+     */
+    private static final boolean STACKLESS = Boolean.getBoolean("expectj.stacklessTimeouts");
+
     /**
      * Create a new exception with an explanatory message.
      * @param message An explanation of what went wrong.
@@ -22,4 +34,16 @@ public class TimeoutException extends Exception {
     TimeoutException(String message, Throwable cause) {
         super(message, cause);
     }
+
+    /**
+     * Record the stack trace, unless stack traces have been turned off.
+     *
+     * @return This exception.
+     */
+    public synchronized Throwable fillInStackTrace() {
+        if (STACKLESS) {
+            return this;
+        }
+        return super.fillInStackTrace();
+    }
 }
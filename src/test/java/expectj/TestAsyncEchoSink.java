@@ -0,0 +1,79 @@
+package expectj;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link AsyncEchoSink}.
+ */
+public class TestAsyncEchoSink extends TestCase {
+    /**
+     * Echo a string.
+     *
+     * @param sink Where to echo the string.
+     * @param session The session to echo for.
+     * @param stream The stream to echo for.
+     * @param text What to echo.
+     */
+    private static void echo(EchoSink sink, String session, int stream, String text) {
+        byte[] bytes = ("xx" + text).getBytes();
+        sink.echo(session, stream, bytes, 2, text.length());
+    }
+
+    /**
+     * Verify that lines are prefixed by session, also when sessions take
+     * turns in the middle of lines.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testPrefixes() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        AsyncEchoSink sink = new AsyncEchoSink(target);
+        echo(sink, "a", Spawn.STDOUT, "one\ntw");
+        echo(sink, "b", Spawn.STDOUT, "\n\nthree");
+        echo(sink, "a", Spawn.STDOUT, "o\n");
+        echo(sink, "a", Spawn.STDERR, "oops\n");
+        sink.close();
+        assertEquals("[a] one\n[a] tw[b] \n[b] \n[b] threeo\n[a!] oops\n",
+                     target.toString());
+
+        // Output after closing is dropped
+        echo(sink, "a", Spawn.STDOUT, "four\n");
+        assertEquals(45, target.size());
+    }
+
+    /**
+     * Verify that spawns echo to the sink.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testSpawnEcho() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        AsyncEchoSink sink = new AsyncEchoSink(target);
+        ExpectJ expectinator = new ExpectJ(5, false);
+        expectinator.setEchoSink(sink);
+        Spawn spawn = expectinator.spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) throws IOException {
+                output.print("flaska\ngris\n");
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output) {
+                // Nothing to answer
+            }
+        }));
+        spawn.expect("gris");
+
+        // The reader thread echoes after passing output on for matching
+        long deadline = System.currentTimeMillis() + 5000;
+        while (target.toString().indexOf("gris\n") == -1
+               && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        spawn.stop();
+        sink.close();
+        assertTrue(target.toString(), target.toString().matches("\\[\\d+\\] flaska\n\\[\\d+\\] gris\n"));
+    }
+}
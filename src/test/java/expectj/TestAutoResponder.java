@@ -0,0 +1,214 @@
+package expectj;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link AutoResponder}s.
+ */
+public class TestAutoResponder extends TestCase {
+    /**
+     * A peer that pages its output when told to "show", showing the next page
+     * on each other line received.
+     */
+    private static class PagingPeer implements LoopbackSpawnable.Peer {
+        /**
+         * How many pages to show.
+         */
+        private final int pageCount;
+
+        /**
+         * How many lines we have received after "show".
+         */
+        private volatile int linesReceived = 0;
+
+        /**
+         * @param pageCount How many pages to show.
+         */
+        PagingPeer(int pageCount) {
+            this.pageCount = pageCount;
+        }
+
+        public void start(LoopbackSpawnable.Output output) throws IOException {
+            output.print("> ");
+        }
+
+        public void lineReceived(String line, LoopbackSpawnable.Output output)
+        throws IOException
+        {
+            if (line.equals("show")) {
+                output.print("page 0\n--More--");
+                return;
+            }
+            linesReceived++;
+            if (linesReceived < pageCount) {
+                output.print("page " + linesReceived + "\n--More--");
+            } else if (linesReceived == pageCount) {
+                output.print("end\n");
+            }
+        }
+
+        /**
+         * @return How many lines we have received.
+         */
+        int getLinesReceived() {
+            return linesReceived;
+        }
+    }
+
+    /**
+     * Verify that a pager is fed without any expect() calls, and that the
+     * pager prompts can be stripped from the output.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testPager() throws Exception {
+        PagingPeer peer = new PagingPeer(50);
+        Spawn spawn = new ExpectJ(5, false).spawn(new LoopbackSpawnable(peer));
+        spawn.addAutoResponder(new AutoResponder(Spawn.STDOUT, "--more--", "\n", true));
+        spawn.send("show\n");
+        spawn.expect("end");
+        assertEquals(50, peer.getLinesReceived());
+
+        String output = spawn.getCurrentStandardOutContents();
+        assertEquals(-1, output.indexOf("More"));
+        for (int i = 0; i < 50; i++) {
+            assertTrue("Page " + i + " missing", output.indexOf("page " + i + "\n") != -1);
+        }
+        spawn.stop();
+    }
+
+    /**
+     * Verify that patterns are found and stripped even when they arrive one
+     * byte at a time, and that unstripped patterns are left alone.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testSplitPatterns() throws Exception {
+        PagingPeer peer = new PagingPeer(0);
+        Spawn spawn = new ExpectJ(5, false).spawn(new LoopbackSpawnable(peer));
+
+        AutoResponderMatcher matcher = new AutoResponderMatcher();
+        matcher.setRules(new AutoResponder[] {
+            new AutoResponder(Spawn.STDOUT, "--More--", "\n", true),
+            new AutoResponder("[confirm]", "\n"),
+        }, spawn);
+
+        byte[] input = "a--MORE--b-[Confirm]--more-c--Mo".getBytes();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int i = 0; i < input.length; i++) {
+            byte[] bytes = new byte[] {input[i]};
+            int length = matcher.process(bytes, 1);
+            output.write(matcher.getOutput(bytes), 0, length);
+        }
+        assertEquals("ab-[Confirm]--more-c", output.toString());
+        int length = matcher.flush();
+        output.write(matcher.getOutput(null), 0, length);
+        assertEquals("ab-[Confirm]--more-c--Mo", output.toString());
+
+        // Replies are sent in the background, sending anything flushes them
+        spawn.send("");
+        assertEquals(2, peer.getLinesReceived());
+        spawn.stop();
+    }
+
+    /**
+     * Verify that a read buffer passed through before any rules were added is
+     * never written to afterwards.  By then the reader may have grown its
+     * buffer and given the old one back to the {@link BufferPool}.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testReleasedBufferUntouched() throws Exception {
+        AutoResponderMatcher matcher = new AutoResponderMatcher();
+        byte[] released = new byte[BufferPool.MIN_SIZE];
+        System.arraycopy("abc".getBytes(), 0, released, 0, 3);
+        assertEquals(3, matcher.process(released, 3));
+        assertSame(released, matcher.getOutput(released));
+
+        // The reader resized its buffer, and somebody else owns the old one
+        Arrays.fill(released, (byte)'Q');
+        byte[] grown = new byte[2 * BufferPool.MIN_SIZE];
+        byte[] input = "x--More--y".getBytes();
+        System.arraycopy(input, 0, grown, 0, input.length);
+
+        matcher.setRules(new AutoResponder[] {
+            new AutoResponder(Spawn.STDOUT, "--More--", "\n", true),
+        }, null);
+        int length = matcher.process(grown, input.length);
+        assertEquals("xy", new String(matcher.getOutput(grown), 0, length));
+        assertEquals(0, matcher.flush());
+        for (int i = 0; i < released.length; i++) {
+            assertEquals("Released buffer written to at " + i, 'Q', released[i]);
+        }
+    }
+
+    /**
+     * Verify that removed auto-responders stop answering.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testRemove() throws Exception {
+        PagingPeer peer = new PagingPeer(3);
+        Spawn spawn = new ExpectJ(5, false).spawn(new LoopbackSpawnable(peer));
+        AutoResponder responder = spawn.addAutoResponder("--More--", "\n");
+        spawn.send("show\n");
+        spawn.expect("end");
+        assertEquals(3, peer.getLinesReceived());
+        assertTrue(spawn.getCurrentStandardOutContents().indexOf("--More--") != -1);
+
+        assertTrue(spawn.removeAutoResponder(responder));
+        assertFalse(spawn.removeAutoResponder(responder));
+        spawn.stop();
+    }
+
+    /**
+     * Verify that a prompt is answered while another thread is stuck sending
+     * a string the spawn won't read until its output has been drained.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testReplyDuringLargeSend() throws Exception {
+        final String command =
+            "sleep 1; echo --More--; head -c 300000 /dev/zero | tr '\\0' x; echo;"
+            + " head -c 300000 > /dev/null; read reply; echo \"reply:$reply\"";
+        final Spawn spawn = new ExpectJ(10, false).spawn(new Executor() {
+            public Process execute() throws IOException {
+                return Runtime.getRuntime().exec(new String[] {"/bin/sh", "-c", command});
+            }
+
+            public String toString() {
+                return command;
+            }
+        });
+        spawn.addAutoResponder("--More--", "ok\n");
+
+        char[] payload = new char[300000];
+        Arrays.fill(payload, 'y');
+        final String large = new String(payload);
+        final IOException[] failure = new IOException[1];
+        Thread sender = new Thread("Large sender") {
+            public void run() {
+                try {
+                    spawn.send(large);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        sender.start();
+
+        // Without the reply, the spawn never gets around to reading what the
+        // sender sends
+        spawn.expect("reply:ok");
+        sender.join(10000);
+        assertFalse("Sending hung", sender.isAlive());
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        spawn.expectClose();
+    }
+}
@@ -0,0 +1,75 @@
+package expectj;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link BufferPool}.
+ */
+public class TestBufferPool extends TestCase {
+    protected void setUp() {
+        BufferPool.setDebug(true);
+    }
+
+    protected void tearDown() {
+        BufferPool.setDebug(false);
+    }
+
+    /**
+     * Verify size classes and buffer reuse.
+     */
+    public void testReuse() {
+        byte[] small = BufferPool.acquire(1);
+        assertEquals(BufferPool.MIN_SIZE, small.length);
+        byte[] odd = BufferPool.acquire(5000);
+        assertEquals(8192, odd.length);
+        byte[] huge = BufferPool.acquire(BufferPool.MAX_SIZE + 1);
+        assertEquals(BufferPool.MAX_SIZE + 1, huge.length);
+        assertEquals(3, BufferPool.checkLeaks());
+
+        BufferPool.release(odd);
+        assertSame(odd, BufferPool.acquire(8000));
+        BufferPool.release(odd);
+        BufferPool.release(small);
+        BufferPool.release(huge);
+        assertEquals(0, BufferPool.checkLeaks());
+
+        // Releasing twice must not put the buffer in the pool twice
+        BufferPool.release(odd);
+        byte[] first = BufferPool.acquire(8192);
+        byte[] second = BufferPool.acquire(8192);
+        assertNotSame(first, second);
+        BufferPool.release(first);
+        BufferPool.release(second);
+    }
+
+    /**
+     * Verify that spawns give back all their buffers.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testSpawnReleases() throws Exception {
+        Spawn spawn = new ExpectJ(5, false).spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) throws IOException {
+                output.print("flaska\n");
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output)
+            throws IOException
+            {
+                output.exit(0);
+            }
+        }));
+        spawn.expect("flaska");
+        spawn.send("gris\n");
+        spawn.expectClose();
+
+        // The reader threads give their buffers back as they exit
+        long deadline = System.currentTimeMillis() + 5000;
+        while (BufferPool.checkLeaks() != 0) {
+            assertTrue("Buffers never released", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
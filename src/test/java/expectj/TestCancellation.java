@@ -0,0 +1,323 @@
+package expectj;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify that blocking spawn operations can be aborted, by interrupts and by
+ * {@link CancellationToken}s.
+ */
+public class TestCancellation extends TestCase {
+    /**
+     * A peer that never says anything.
+     */
+    private static final LoopbackSpawnable.Peer SILENT = new LoopbackSpawnable.Peer() {
+        public void start(LoopbackSpawnable.Output output) {
+            // This method intentionally left blank
+        }
+
+        public void lineReceived(String line, LoopbackSpawnable.Output output) {
+            // This method intentionally left blank
+        }
+    };
+
+    /**
+     * Runs an expect call that should never match, and remembers how it
+     * ended.
+     */
+    private static class Waiter extends Thread {
+        /**
+         * The spawn to wait on.
+         */
+        private final Spawn spawn;
+
+        /**
+         * What the expect call threw, null while it is running.
+         */
+        volatile Throwable thrown = null;
+
+        /**
+         * True if our interrupt flag was set after the expect call.
+         */
+        volatile boolean interruptedAfterwards = false;
+
+        /**
+         * @param spawn The spawn to wait on.
+         */
+        Waiter(Spawn spawn) {
+            super("Waiter");
+            this.spawn = spawn;
+        }
+
+        public void run() {
+            try {
+                spawn.expect("never", -1);
+                thrown = new AssertionError("Expect returned");
+            } catch (Throwable t) {
+                thrown = t;
+            }
+            interruptedAfterwards = isInterrupted();
+        }
+    }
+
+    /**
+     * Verify that interrupting a thread waiting in expect makes the call fail.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testInterruptExpect() throws Exception {
+        Spawn spawn = new ExpectJ(-1, false).spawn(new LoopbackSpawnable(SILENT));
+        Waiter waiter = new Waiter(spawn);
+        waiter.start();
+        Thread.sleep(200);
+        assertNull(waiter.thrown);
+
+        waiter.interrupt();
+        waiter.join(5000);
+        assertFalse("Expect should have been aborted", waiter.isAlive());
+        assertTrue(String.valueOf(waiter.thrown),
+                   waiter.thrown instanceof InterruptedIOException);
+        assertTrue("Interrupt flag should be kept", waiter.interruptedAfterwards);
+        spawn.stop();
+    }
+
+    /**
+     * Verify that cancelling a token aborts waits on all spawns using it, and
+     * makes later waits fail.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testCancelToken() throws Exception {
+        CancellationToken token = new CancellationToken();
+        ExpectJ expectinator = new ExpectJ(-1, false);
+        expectinator.setCancellationToken(token);
+
+        Spawn[] spawns = new Spawn[5];
+        Waiter[] waiters = new Waiter[spawns.length];
+        for (int i = 0; i < spawns.length; i++) {
+            spawns[i] = expectinator.spawn(new LoopbackSpawnable(SILENT));
+            waiters[i] = new Waiter(spawns[i]);
+            waiters[i].start();
+        }
+        Thread.sleep(200);
+
+        token.cancel();
+        assertTrue(token.isCancelled());
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i].join(5000);
+            assertFalse("Expect should have been aborted", waiters[i].isAlive());
+            assertTrue(String.valueOf(waiters[i].thrown),
+                       waiters[i].thrown instanceof InterruptedIOException);
+            assertFalse("Cancelling shouldn't leave threads interrupted",
+                        waiters[i].interruptedAfterwards);
+        }
+
+        try {
+            spawns[0].expect("never", -1);
+            fail("Expect on cancelled spawn should fail");
+        } catch (InterruptedIOException e) {
+            // Expected exception
+        }
+        try {
+            spawns[0].send("hello\n");
+            fail("Send on cancelled spawn should fail");
+        } catch (InterruptedIOException e) {
+            // Expected exception
+        }
+        try {
+            spawns[0].expectClose(-1);
+            fail("Expecting close of cancelled spawn should fail");
+        } catch (ExpectJException e) {
+            // Expected exception
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+
+        for (int i = 0; i < spawns.length; i++) {
+            spawns[i].stop();
+        }
+    }
+
+    /**
+     * Verify that the token clears the interrupts it caused, and only those.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testOnlyOwnInterruptsCleared() throws Exception {
+        CancellationToken token = new CancellationToken();
+        token.enter();
+        token.enter();
+        token.cancel();
+        token.exit();
+        assertTrue("Interrupt cleared before leaving the outermost operation",
+                   Thread.currentThread().isInterrupted());
+        token.exit();
+        assertFalse("Interrupt from cancel() left behind", Thread.interrupted());
+
+        // Interrupts from anybody else must be kept
+        Thread.currentThread().interrupt();
+        try {
+            token.enter();
+            fail("Entering a cancelled token should fail");
+        } catch (InterruptedIOException e) {
+            // Expected exception
+        }
+        token.exit();
+        assertTrue("Our own interrupt was cleared", Thread.interrupted());
+    }
+
+    /**
+     * Verify that cancelling a token stops spawns that are hanging while
+     * starting.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testCancelStart() throws Exception {
+        final LoopbackSpawnable[] hanging = new LoopbackSpawnable[1];
+        hanging[0] = new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) throws IOException {
+                // Like a connection attempt that hangs until closed
+                while (!hanging[0].isClosed()) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        // Keep hanging, like a blocking connect would
+                    }
+                }
+                throw new IOException("Connection closed");
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output) {
+                // This method intentionally left blank
+            }
+        });
+
+        final CancellationToken token = new CancellationToken();
+        final ExpectJ expectinator = new ExpectJ(-1, false);
+        expectinator.setCancellationToken(token);
+        final Throwable[] thrown = new Throwable[1];
+        Thread starter = new Thread("Starter") {
+            public void run() {
+                try {
+                    expectinator.spawn(hanging[0]);
+                    thrown[0] = new AssertionError("Spawn started");
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        };
+        starter.start();
+        Thread.sleep(200);
+        assertTrue(starter.isAlive());
+
+        token.cancel();
+        starter.join(5000);
+        assertFalse("Starting should have been aborted", starter.isAlive());
+        assertTrue(String.valueOf(thrown[0]), thrown[0] instanceof InterruptedIOException);
+
+        try {
+            expectinator.spawn(new LoopbackSpawnable(SILENT));
+            fail("Spawning with a cancelled token should fail");
+        } catch (InterruptedIOException e) {
+            // Expected exception
+        }
+    }
+
+    /**
+     * Verify that cancelling a token while a process is being created stops
+     * the process once it exists, and still stops the other spawns being
+     * started.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testCancelDuringExecute() throws Exception {
+        final CountDownLatch executing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Process[] process = new Process[1];
+        final Executor slow = new Executor() {
+            public Process execute() throws IOException {
+                executing.countDown();
+                while (true) {
+                    try {
+                        release.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // Like a slow fork, which can't be interrupted
+                    }
+                }
+                process[0] = Runtime.getRuntime().exec("cat");
+                return process[0];
+            }
+
+            public String toString() {
+                return "Slow cat";
+            }
+        };
+
+        final LoopbackSpawnable[] hanging = new LoopbackSpawnable[1];
+        hanging[0] = new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) throws IOException {
+                while (!hanging[0].isClosed()) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        // Keep hanging, like a blocking connect would
+                    }
+                }
+                throw new IOException("Connection closed");
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output) {
+                // This method intentionally left blank
+            }
+        });
+
+        CancellationToken token = new CancellationToken();
+        final ExpectJ expectinator = new ExpectJ(-1, false);
+        expectinator.setCancellationToken(token);
+        final Throwable[] thrown = new Throwable[2];
+        Thread processStarter = new Thread("Process starter") {
+            public void run() {
+                try {
+                    expectinator.spawn(slow);
+                    thrown[0] = new AssertionError("Process spawn started");
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        };
+        Thread loopbackStarter = new Thread("Loopback starter") {
+            public void run() {
+                try {
+                    expectinator.spawn(hanging[0]);
+                    thrown[1] = new AssertionError("Loopback spawn started");
+                } catch (Throwable t) {
+                    thrown[1] = t;
+                }
+            }
+        };
+        processStarter.start();
+        executing.await();
+        loopbackStarter.start();
+        Thread.sleep(200);
+        assertTrue(loopbackStarter.isAlive());
+
+        // The process doesn't exist yet, and the loopback is stopped after it
+        token.cancel();
+        loopbackStarter.join(5000);
+        assertFalse("Loopback start should have been aborted", loopbackStarter.isAlive());
+        assertTrue(String.valueOf(thrown[1]), thrown[1] instanceof InterruptedIOException);
+
+        release.countDown();
+        processStarter.join(5000);
+        assertFalse("Process start should have been aborted", processStarter.isAlive());
+        assertTrue(String.valueOf(thrown[0]), thrown[0] instanceof InterruptedIOException);
+        try {
+            process[0].exitValue();
+        } catch (IllegalThreadStateException e) {
+            fail("Process still running");
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package expectj;
+
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify that {@link CaptureBuffer} keeps what is appended to it.
+ */
+public class TestCaptureBuffer extends TestCase {
+    /**
+     * Verify that bytes are decoded, also across segment boundaries.
+     */
+    public void testAppendBytes() {
+        byte[] bytes = new byte[10000];
+        StringBuffer expected = new StringBuffer();
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)(i * 7);
+            expected.append((char)((i * 7) & 0xff));
+        }
+
+        CaptureBuffer capture = new CaptureBuffer(Charset.forName("ISO-8859-1"));
+        capture.append(bytes, 0, 3);
+        capture.append(bytes, 3, bytes.length - 3);
+        assertEquals(bytes.length, capture.length());
+        assertEquals(expected.toString(), capture.toString());
+        assertEquals(expected.substring(4095, 4100),
+                     capture.since(4095).subSequence(0, 5).toString());
+    }
+
+    /**
+     * Verify that multi-byte chars split between appends and segments are
+     * decoded whole.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testSplitChars() throws Exception {
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < 3000; i++) {
+            text.append("gr\u00fc\u00dfe \u20ac");
+        }
+        byte[] bytes = text.toString().getBytes("UTF-8");
+
+        CaptureBuffer capture = new CaptureBuffer(Charset.forName("UTF-8"));
+        for (int i = 0; i < bytes.length; i += 5) {
+            capture.append(bytes, i, Math.min(5, bytes.length - i));
+        }
+        capture.finish();
+        assertEquals(text.toString(), capture.toString());
+    }
+
+    /**
+     * Verify that a char cut off by the end of the stream is replaced.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testFinishPartialChar() throws Exception {
+        byte[] bytes = "a\u20ac".getBytes("UTF-8");
+        CaptureBuffer capture = new CaptureBuffer(Charset.forName("UTF-8"));
+        capture.append(bytes, 0, bytes.length - 1);
+        assertEquals("a", capture.toString());
+        capture.finish();
+        assertEquals("a\ufffd", capture.toString());
+    }
+}
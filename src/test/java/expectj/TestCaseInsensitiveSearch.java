@@ -0,0 +1,91 @@
+package expectj;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link CaseInsensitiveSearch}.
+ */
+public class TestCaseInsensitiveSearch extends TestCase {
+    /**
+     * Verify some simple searches.
+     */
+    public void testSimple() {
+        CaseInsensitiveSearch search = new CaseInsensitiveSearch("Password:");
+        assertEquals(6, search.indexOf("Login PASSWORD: ", 0, 16));
+        assertEquals(-1, search.indexOf("Login PASSWORD: ", 7, 16));
+        assertEquals(-1, search.indexOf("Login PASSWORD: ", 0, 14));
+        assertEquals(0, new CaseInsensitiveSearch("").indexOf("abc", 0, 3));
+        assertEquals(2, new CaseInsensitiveSearch("\u00e5\u00e4").indexOf("xx\u00c5\u00c4", 0, 4));
+    }
+
+    /**
+     * Compare searches in random text with searching in upper cased strings.
+     */
+    public void testRandom() {
+        Random random = new Random(4711);
+        String alphabet = "abAB c\n\u00e4\u00c4";
+        for (int round = 0; round < 2000; round++) {
+            StringBuffer text = new StringBuffer();
+            int textLength = random.nextInt(60);
+            for (int i = 0; i < textLength; i++) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            StringBuffer pattern = new StringBuffer();
+            int patternLength = 1 + random.nextInt(4);
+            for (int i = 0; i < patternLength; i++) {
+                pattern.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            String upperCaseText = text.toString().toUpperCase();
+            String upperCasePattern = pattern.toString().toUpperCase();
+            int from = random.nextInt(textLength + 1);
+            int expected = upperCaseText.indexOf(upperCasePattern, from);
+            if (expected + patternLength > textLength) {
+                expected = -1;
+            }
+            assertEquals("\"" + pattern + "\" in \"" + text + "\" from " + from,
+                         expected,
+                         new CaseInsensitiveSearch(pattern.toString()).indexOf(text, from, textLength));
+        }
+    }
+
+    /**
+     * Verify that a prompt at the end of one huge line is found quickly.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testLongLine() throws Exception {
+        Spawn spawn = new ExpectJ(30, false).spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(final LoopbackSpawnable.Output output) {
+                new Thread("Long line printer") {
+                    public void run() {
+                        StringBuffer chunk = new StringBuffer();
+                        for (int i = 0; i < 1024; i++) {
+                            chunk.append("abcd");
+                        }
+                        try {
+                            for (int i = 0; i < 1024; i++) {
+                                output.print(chunk.toString());
+                            }
+                            output.print("router# ");
+                        } catch (IOException e) {
+                            // The spawn is gone, never mind
+                        }
+                    }
+                }.start();
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output) {
+                // This method intentionally left blank
+            }
+        }));
+        long t0 = System.currentTimeMillis();
+        spawn.expect("ROUTER#");
+        long dt = System.currentTimeMillis() - t0;
+        assertTrue("Finding the prompt took " + dt + "ms", dt < 10000);
+        spawn.stop();
+    }
+}
@@ -0,0 +1,219 @@
+package expectj;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify close listeners and exit information.
+ */
+public class TestCloseListeners extends TestCase {
+    /**
+     * Records when it's called.
+     */
+    private static class RecordingListener implements Spawnable.CloseListener {
+        /**
+         * The number of times we've been called.
+         */
+        private int calls = 0;
+
+        /**
+         * The threads we've been called from.
+         */
+        final List threads = new ArrayList();
+
+        public synchronized void onClose() {
+            calls++;
+            threads.add(Thread.currentThread());
+            notifyAll();
+        }
+
+        /**
+         * Wait until we've been called.
+         *
+         * @return The number of times we've been called.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        synchronized int awaitCall() throws InterruptedException {
+            long giveUp = System.currentTimeMillis() + 10000;
+            while (calls == 0 && System.currentTimeMillis() < giveUp) {
+                wait(100);
+            }
+            return calls;
+        }
+    }
+
+    /**
+     * Create a spawnable that echoes lines, and exits with the value sent as
+     * "exit N".
+     *
+     * @return A new spawnable.
+     */
+    private static LoopbackSpawnable createSpawnable() {
+        return new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) {
+                // This method intentionally left blank
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output)
+            throws IOException
+            {
+                if (line.startsWith("exit ")) {
+                    output.exit(Integer.parseInt(line.substring(5)));
+                } else {
+                    output.print(line + "\n");
+                }
+            }
+        });
+    }
+
+    /**
+     * Verify that all close listeners are called, also ones registered with
+     * the spawnable directly, and that one failing listener doesn't stop the
+     * others.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testMultipleListeners() throws Exception {
+        LoopbackSpawnable spawnable = createSpawnable();
+        RecordingListener direct = new RecordingListener();
+        spawnable.setCloseListener(direct);
+
+        Spawn spawn = new ExpectJ(5).spawn(spawnable);
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        spawn.addCloseListener(new Spawnable.CloseListener() {
+            public void onClose() {
+                throw new RuntimeException("Failing on purpose");
+            }
+        });
+        spawn.addCloseListener(first);
+        spawn.addCloseListener(second);
+        RecordingListener removed = new RecordingListener();
+        spawn.addCloseListener(removed);
+        spawn.removeCloseListener(removed);
+
+        spawn.send("exit 0\n");
+        spawn.expectClose();
+
+        assertEquals(1, direct.awaitCall());
+        assertEquals(1, first.awaitCall());
+        assertEquals(1, second.awaitCall());
+        Thread.sleep(100);
+        assertEquals(0, removed.calls);
+
+        // Listeners registered after closing should be called as well
+        RecordingListener late = new RecordingListener();
+        spawn.addCloseListener(late);
+        assertEquals(1, late.awaitCall());
+
+        // Nothing should be called twice
+        assertTrue(spawn.isClosed());
+        spawn.stop();
+        Thread.sleep(100);
+        assertEquals(1, first.calls);
+    }
+
+    /**
+     * Verify that setting a close listener on a spawnable replaces the one
+     * set before, and that a throwing listener doesn't keep the spawn from
+     * noticing the close.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testSetCloseListenerReplaces() throws Exception {
+        LoopbackSpawnable spawnable = createSpawnable();
+        RecordingListener replaced = new RecordingListener();
+        spawnable.setCloseListener(replaced);
+        spawnable.setCloseListener(new Spawnable.CloseListener() {
+            public void onClose() {
+                throw new RuntimeException("Failing on purpose");
+            }
+        });
+        RecordingListener added = new RecordingListener();
+        spawnable.addCloseListener(added);
+
+        Spawn spawn = new ExpectJ(5).spawn(spawnable);
+        spawn.send("exit 4\n");
+
+        ExitInfo exitInfo = (ExitInfo)spawn.getExitInfo().get(10, TimeUnit.SECONDS);
+        assertEquals(4, exitInfo.getExitValue());
+        assertEquals(1, added.awaitCall());
+        assertEquals(0, replaced.calls);
+    }
+
+    /**
+     * Verify that close listeners run on the executor we asked for.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testExecutor() throws Exception {
+        final List executed = new ArrayList();
+        ExpectJ expectinator = new ExpectJ(5);
+        expectinator.setCloseListenerExecutor(new Executor() {
+            public void execute(Runnable command) {
+                synchronized (executed) {
+                    executed.add(command);
+                }
+                new Thread(command, "Test Executor").start();
+            }
+        });
+
+        Spawn spawn = expectinator.spawn(createSpawnable());
+        RecordingListener listener = new RecordingListener();
+        spawn.addCloseListener(listener);
+        spawn.stop();
+
+        assertEquals(1, listener.awaitCall());
+        assertEquals("Test Executor", ((Thread)listener.threads.get(0)).getName());
+        synchronized (executed) {
+            assertEquals(1, executed.size());
+        }
+    }
+
+    /**
+     * Verify that the exit info becomes available without anybody waiting
+     * for the spawn to close.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testExitInfo() throws Exception {
+        Spawn spawn = new ExpectJ(5).spawn(createSpawnable());
+        assertFalse(spawn.getExitInfo().isDone());
+
+        spawn.send("hello\n");
+        spawn.expect("hello");
+        spawn.send("exit 3\n");
+
+        ExitInfo exitInfo = (ExitInfo)spawn.getExitInfo().get(10, TimeUnit.SECONDS);
+        assertTrue(exitInfo.hasExitValue());
+        assertEquals(3, exitInfo.getExitValue());
+        assertEquals("hello\nexit 3\n".length(), exitInfo.getBytesSent());
+        assertEquals("hello\n".length(), exitInfo.getStdoutBytes());
+        assertEquals(0, exitInfo.getStderrBytes());
+        assertTrue(exitInfo.getDurationMillis() >= 0);
+    }
+
+    /**
+     * Verify that process spawns report their exit values.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testProcessExitInfo() throws Exception {
+        Spawn spawn = new ExpectJ(5).spawn(new expectj.Executor() {
+            public Process execute() throws IOException {
+                return Runtime.getRuntime().exec(new String[] {
+                    "/bin/sh", "-c", "echo hej; exit 7"
+                });
+            }
+        });
+        ExitInfo exitInfo = (ExitInfo)spawn.getExitInfo().get(10, TimeUnit.SECONDS);
+        assertEquals(7, exitInfo.getExitValue());
+        assertEquals("hej\n".length(), exitInfo.getStdoutBytes());
+        spawn.expectClose();
+    }
+}
@@ -0,0 +1,142 @@
+package expectj;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify that a {@link Spawn} can be used by several threads at once.
+ */
+public class TestConcurrentSpawn extends TestCase {
+    /**
+     * How many pings to send.
+     */
+    private static final int PINGS = 200;
+
+    /**
+     * Runs some work in a thread, and remembers whether it failed.
+     */
+    private abstract static class Worker extends Thread {
+        /**
+         * What the work threw, null if it didn't throw.
+         */
+        volatile Throwable thrown = null;
+
+        /**
+         * @param name The name of the thread.
+         */
+        Worker(String name) {
+            super(name);
+        }
+
+        public void run() {
+            try {
+                work();
+            } catch (Throwable t) {
+                thrown = t;
+            }
+        }
+
+        /**
+         * Do the work.
+         *
+         * @throws Exception on trouble.
+         */
+        abstract void work() throws Exception;
+
+        /**
+         * Wait for the work to be done, and fail if it failed.
+         *
+         * @throws Exception if the work failed.
+         */
+        void check() throws Exception {
+            join(60000);
+            assertFalse(getName() + " didn't finish", isAlive());
+            if (thrown != null) {
+                throw new Exception(getName() + " failed", thrown);
+            }
+        }
+    }
+
+    /**
+     * Verify that one thread can send while other threads expect on stdout
+     * and stderr, and that expectClose() timing out doesn't disturb them.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testSendAndExpectConcurrently() throws Exception {
+        final Spawn spawn = new ExpectJ(30, false).spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) {
+                // This method intentionally left blank
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output)
+            throws IOException
+            {
+                if (line.startsWith("ping ")) {
+                    String number = line.substring(5);
+                    output.print("pong " + number + ".\n");
+                    output.printErr("err " + number + ".\n");
+                } else if (!line.equals("noise")) {
+                    output.print("garbled: " + line + "\n");
+                }
+            }
+        }));
+
+        Worker pinger = new Worker("Pinger") {
+            void work() throws Exception {
+                for (int i = 0; i < PINGS; i++) {
+                    spawn.send("ping " + i + "\n");
+                }
+            }
+        };
+        Worker noiseMaker = new Worker("Noise maker") {
+            void work() throws Exception {
+                for (int i = 0; i < PINGS; i++) {
+                    spawn.send("noise\n");
+                }
+            }
+        };
+        Worker stdoutReader = new Worker("Stdout reader") {
+            void work() throws Exception {
+                for (int i = 0; i < PINGS; i++) {
+                    spawn.expect("pong " + i + ".");
+                }
+            }
+        };
+        Worker stderrReader = new Worker("Stderr reader") {
+            void work() throws Exception {
+                for (int i = 0; i < PINGS; i++) {
+                    spawn.expectErr("err " + i + ".");
+                }
+            }
+        };
+        Worker closeWaiter = new Worker("Close waiter") {
+            void work() throws Exception {
+                for (int i = 0; i < 3; i++) {
+                    try {
+                        spawn.expectClose(1);
+                        fail("Spawn shouldn't close");
+                    } catch (TimeoutException e) {
+                        // Expected exception
+                    }
+                }
+            }
+        };
+
+        stdoutReader.start();
+        stderrReader.start();
+        closeWaiter.start();
+        pinger.start();
+        noiseMaker.start();
+
+        pinger.check();
+        noiseMaker.check();
+        stdoutReader.check();
+        stderrReader.check();
+        closeWaiter.check();
+
+        assertEquals(-1, spawn.getCurrentStandardOutContents().indexOf("garbled"));
+        spawn.stop();
+    }
+}
@@ -0,0 +1,152 @@
+package expectj;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link DialogDefinition} and {@link Dialog}.
+ */
+public class TestDialog extends TestCase {
+    /**
+     * A peer asking for a user name and a password, then offering a prompt.
+     */
+    private static class LoginPeer implements LoopbackSpawnable.Peer {
+        /**
+         * How far into the login we are.
+         */
+        private int step = 0;
+
+        public void start(LoopbackSpawnable.Output output) throws IOException {
+            output.print("login: ");
+        }
+
+        public void lineReceived(String line, LoopbackSpawnable.Output output)
+        throws IOException
+        {
+            step++;
+            if (step == 1) {
+                output.print("Password: ");
+            } else if (step == 2) {
+                if (line.equals("secret")) {
+                    output.print("Welcome\n$ ");
+                } else {
+                    output.print("Login incorrect\n");
+                    output.exit(1);
+                }
+            } else if (line.equals("exit")) {
+                output.exit(0);
+            } else if (line.length() > 0) {
+                output.print(line + ": command not found\n$ ");
+            }
+        }
+    }
+
+    /**
+     * @return A dialog logging in and out.
+     */
+    private static Dialog createLoginDialog() {
+        DialogDefinition definition = new DialogDefinition("login");
+        definition.addTransition("login", "login:", "${user}\n", "password");
+        definition.addTransition("password", "password:", "${password}\n", "welcome");
+        definition.addTransition("welcome", "incorrect", null, "failed");
+        definition.addTransition("welcome", "$", "exit\n", "done");
+        return definition.compile();
+    }
+
+    /**
+     * @param password The password to log in with.
+     * @return Variables for the login dialog.
+     */
+    private static Map createVariables(String password) {
+        Map variables = new HashMap();
+        variables.put("user", "johan");
+        variables.put("password", password);
+        return variables;
+    }
+
+    /**
+     * Verify that a dialog takes different paths depending on what it sees.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testRun() throws Exception {
+        Dialog dialog = createLoginDialog();
+
+        Spawn spawn = new ExpectJ(5, false).spawn(new LoopbackSpawnable(new LoginPeer()));
+        assertEquals("done", dialog.run(spawn, createVariables("secret")));
+        spawn.expectClose();
+        assertEquals(0, spawn.getExitValue());
+
+        spawn = new ExpectJ(5, false).spawn(new LoopbackSpawnable(new LoginPeer()));
+        assertEquals("failed", dialog.run(spawn, createVariables("wrong")));
+        spawn.expectClose();
+        assertEquals(1, spawn.getExitValue());
+
+        spawn = new ExpectJ(5, false).spawn(new LoopbackSpawnable(new LoginPeer()));
+        try {
+            dialog.run(spawn);
+            fail("Running without variables should fail");
+        } catch (IllegalArgumentException expected) {
+            // Expected exception intentionally ignored
+        }
+        spawn.stop();
+    }
+
+    /**
+     * Verify per-state timeouts and timeout transitions.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testTimeout() throws Exception {
+        DialogDefinition definition = new DialogDefinition("start");
+        definition.addTransition("start", "no such thing", null, "done");
+        definition.setTimeout("start", 1);
+        Dialog failing = definition.compile();
+
+        definition.setTimeoutTransition("start", "\n", "hurried");
+        Dialog recovering = definition.compile();
+
+        Spawn spawn = new ExpectJ(5, false).spawn(new LoopbackSpawnable(new LoginPeer()));
+        try {
+            failing.run(spawn);
+            fail("Dialog should have timed out");
+        } catch (TimeoutException expected) {
+            // Expected exception intentionally ignored
+        }
+        assertEquals("hurried", recovering.run(spawn));
+        spawn.expect("Password:");
+        spawn.stop();
+    }
+
+    /**
+     * Verify that one compiled dialog can drive lots of sessions from a few
+     * threads.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testRunAsync() throws Exception {
+        Dialog dialog = createLoginDialog();
+        Map variables = createVariables("secret");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Spawn[] spawns = new Spawn[200];
+            Future[] results = new Future[spawns.length];
+            for (int i = 0; i < spawns.length; i++) {
+                spawns[i] = new ExpectJ(5, false).spawn(new LoopbackSpawnable(new LoginPeer()));
+                results[i] = dialog.runAsync(spawns[i], variables, executor);
+            }
+            for (int i = 0; i < spawns.length; i++) {
+                assertEquals("done", results[i].get());
+                spawns[i].expectClose();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
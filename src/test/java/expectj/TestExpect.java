@@ -1,10 +1,14 @@
 package expectj;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -112,6 +116,293 @@ public class TestExpect extends TestCase {
         }
     }
 
+    /**
+     * Generate a Spawn that answers lines sent to it.
+     * @param prompt Printed on stdout when starting and after each answer.
+     * @param stdoutAnswer Printed on stdout for each line received.
+     * @param stderrAnswer Printed on stderr for each line received.
+     * @return A new Spawn.
+     * @throws Exception when things go wrong.
+     */
+    private Spawn getAnsweringSpawn(final String prompt,
+                                    final String stdoutAnswer,
+                                    final String stderrAnswer)
+    throws Exception
+    {
+        return new ExpectJ(5, false).spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) throws IOException {
+                output.print(prompt);
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output)
+            throws IOException
+            {
+                if (stderrAnswer != null) {
+                    output.printErr(stderrAnswer);
+                }
+                if (stdoutAnswer != null) {
+                    output.print(stdoutAnswer);
+                }
+                output.print(prompt);
+            }
+        }));
+    }
+
+    /**
+     * Verify that we can wait for patterns on stdout and stderr at the same
+     * time.
+     * @throws Exception if things go wrong.
+     */
+    public void testExpectBothStreams() throws Exception {
+        ExpectPattern patterns[] = new ExpectPattern[] {
+            ExpectPattern.stderr("error"),
+            ExpectPattern.stdout("$")
+        };
+
+        Spawn testMe = getAnsweringSpawn("$ ", null, "Error: no such command\n");
+        ExpectMatch match = testMe.expect(patterns, 1);
+        assertEquals(1, match.getIndex());
+        assertEquals(Spawn.STDOUT, match.getStream());
+
+        // The error and the prompt arrive on different streams, so we can't
+        // know which one will be found first, but we should find both
+        testMe.send("flaska\n");
+        ExpectMatch first = testMe.expect(patterns, 1);
+        ExpectMatch second = testMe.expect(patterns, 1);
+        ExpectMatch error = (first.getIndex() == 0) ? first : second;
+        ExpectMatch prompt = (first.getIndex() == 0) ? second : first;
+        assertEquals(0, error.getIndex());
+        assertEquals(Spawn.STDERR, error.getStream());
+        assertEquals("Error", error.getText());
+        assertEquals(1, prompt.getIndex());
+        assertEquals(Spawn.STDOUT, prompt.getStream());
+
+        try {
+            testMe.expect(patterns, 1);
+            fail("expect() should have timed out");
+        } catch (TimeoutException expected) {
+            // Ignoring expected exception
+        }
+        testMe.stop();
+    }
+
+    /**
+     * Verify that data following a match is available to the next expect, even
+     * if it arrived together with the match.
+     * @throws Exception if things go wrong.
+     */
+    public void testExpectKeepsDataAfterMatch() throws Exception {
+        Spawn testMe = getAnsweringSpawn("flaska gris hink", null, null);
+        testMe.expect("flaska", 1);
+        testMe.expect("gris", 1);
+        testMe.expect("hink", 1);
+        try {
+            testMe.expect("gris", 1);
+            fail("Matched data should be consumed");
+        } catch (TimeoutException expected) {
+            // Ignoring expected exception
+        }
+        testMe.stop();
+    }
+
+    /**
+     * Verify that {@link Spawn#tryExpect(String, long)} reports matches,
+     * timeouts and closed streams without throwing.
+     *
+     * @throws Exception if things go wrong.
+     */
+    public void testTryExpect() throws Exception {
+        Spawn testMe = getSpawn(new String[] {"flaska", "gris"});
+        ExpectResult result = testMe.tryExpect("flaska", 5);
+        assertTrue(result.isMatched());
+        assertEquals("flaska", result.getMatch().getText());
+
+        result = testMe.tryExpect("hink", 5);
+        assertEquals(ExpectResult.EOF, result.getStatus());
+        assertNull(result.getMatch());
+        assertEquals("gris", result.getPartial());
+
+        testMe = getAnsweringSpawn("flaska gris", null, null);
+        result = testMe.tryExpect("hink", 1);
+        assertEquals(ExpectResult.TIMED_OUT, result.getStatus());
+        assertEquals("flaska gris", result.getPartial().trim());
+
+        // The partial data is still there for later expects
+        testMe.expect("gris", 1);
+        testMe.stop();
+    }
+
+    /**
+     * Verify that changing a pattern array between calls makes the new
+     * patterns match text that was received before.
+     *
+     * @throws Exception if things go wrong.
+     */
+    public void testReusedPatternArray() throws Exception {
+        Spawn testMe = getAnsweringSpawn("ready> ", null, null);
+        ExpectPattern[] patterns = new ExpectPattern[] {ExpectPattern.stdout("nomatch")};
+        ExpectResult result = testMe.tryExpect(patterns, 1);
+        assertEquals(ExpectResult.TIMED_OUT, result.getStatus());
+
+        patterns[0] = ExpectPattern.stdout("ready");
+        result = testMe.tryExpect(patterns, 1);
+        assertTrue(String.valueOf(result), result.isMatched());
+        assertEquals("ready", result.getMatch().getText());
+        testMe.stop();
+    }
+
+    /**
+     * Verify that {@link Spawn#expectEach(String, String, RecordHandler, long)}
+     * hands over all records and stops at the terminator.
+     *
+     * @throws Exception if things go wrong.
+     */
+    public void testExpectEach() throws Exception {
+        ExpectJ expectinator = new ExpectJ(30, false);
+        expectinator.setCaptureOutput(false);
+        Spawn testMe = expectinator.spawn(new Executor() {
+            public Process execute() throws IOException {
+                return Runtime.getRuntime().exec(new String[] {
+                    "sh", "-c",
+                    "i=0; while [ $i -lt 20000 ]; do"
+                    + " echo \"Interface $i is up\"; echo \"  counters $i\"; i=$((i+1));"
+                    + " done; printf 'router# after'; sleep 5"
+                });
+            }
+        });
+
+        final List records = new LinkedList();
+        int count = testMe.expectEach("is up", "ROUTER#", new RecordHandler() {
+            public void handleRecord(String line) {
+                records.add(line);
+            }
+        }, 30);
+        assertEquals(20000, count);
+        assertEquals(20000, records.size());
+        assertEquals("Interface 0 is up", records.get(0));
+        assertEquals("Interface 19999 is up", records.get(19999));
+
+        // Data after the terminator should be kept
+        testMe.expect("after", 5);
+        assertEquals("", testMe.getCurrentStandardOutContents());
+        testMe.stop();
+    }
+
+    /**
+     * Verify that {@link Spawn#expectEach(String, String, RecordHandler, long)}
+     * finds a terminator arriving in pieces, and ignores case.
+     *
+     * @throws Exception if things go wrong.
+     */
+    public void testExpectEachSplitTerminator() throws Exception {
+        Spawn testMe = new ExpectJ(30, false).spawn(new Executor() {
+            public Process execute() throws IOException {
+                return Runtime.getRuntime().exec(new String[] {
+                    "sh", "-c",
+                    "printf 'Interface 1 IS UP\\r\\n'; printf 'noise\\n';"
+                    + " printf 'prompt ro'; sleep 0.3; printf 'UTe'; sleep 0.3;"
+                    + " printf 'r# after'; sleep 5"
+                });
+            }
+        });
+
+        final List records = new LinkedList();
+        int count = testMe.expectEach("is up", "router#", new RecordHandler() {
+            public void handleRecord(String line) {
+                records.add(line);
+            }
+        }, 30);
+        assertEquals(1, count);
+        assertEquals("Interface 1 IS UP", records.get(0));
+        testMe.expect("after", 5);
+        testMe.stop();
+    }
+
+    /**
+     * Verify that a spawn from a {@link ProcessBuilder} with a redirected
+     * error stream gets all output, in order, on stdout.
+     *
+     * @throws Exception if things go wrong.
+     */
+    public void testMergedStderr() throws Exception {
+        ProcessBuilder builder = new ProcessBuilder(new String[] {
+            "sh", "-c", "echo flaska; echo gris >&2; echo hink"
+        });
+        builder.redirectErrorStream(true);
+        Spawn testMe = new ExpectJ(5, false).spawn(builder);
+        testMe.expect("flaska");
+        testMe.expect("gris");
+        testMe.expect("hink");
+        testMe.expectClose();
+        assertEquals("flaska\ngris\nhink\n", testMe.getCurrentStandardOutContents());
+        assertNull(testMe.getCurrentStandardErrContents());
+    }
+
+    /**
+     * Verify that a process spawned on a pseudo terminal sees a terminal of
+     * the right size, and that its output isn't block-buffered.
+     *
+     * @throws Exception if things go wrong.
+     */
+    public void testSpawnPty() throws Exception {
+        Spawn testMe = new ExpectJ(5, false).spawnPty(
+            "stty size; awk '{ print \"got \" $0 }'", 30, 100);
+        testMe.expect("30 100");
+
+        // awk block-buffers its output unless it's writing to a terminal
+        testMe.send("flaska\n");
+        testMe.expect("got flaska");
+        testMe.send("gris\n");
+        testMe.expect("got gris");
+        testMe.stop();
+    }
+
+    /**
+     * @return The number of file descriptors this process has open, or -1 if
+     * that can't be found out on this platform.
+     */
+    private static int countOpenFileDescriptors() {
+        String[] descriptors = new File("/proc/self/fd").list();
+        if (descriptors == null) {
+            return -1;
+        }
+        return descriptors.length;
+    }
+
+    /**
+     * Verify that a process spawn uses no file descriptors except those of
+     * the process itself.
+     *
+     * @throws Exception if things go wrong.
+     */
+    public void testFileDescriptorCost() throws Exception {
+        final int SPAWNS = 20;
+        ExpectJ expectinator = new ExpectJ(5, false);
+
+        // Let the JVM open whatever it opens on the first process launch
+        Spawn warmup = expectinator.spawn("cat");
+        warmup.send("flaska\n");
+        warmup.expect("flaska");
+        warmup.stop();
+
+        int before = countOpenFileDescriptors();
+        if (before == -1) {
+            // Can't count file descriptors here
+            return;
+        }
+        Spawn[] spawns = new Spawn[SPAWNS];
+        for (int i = 0; i < spawns.length; i++) {
+            spawns[i] = expectinator.spawn("cat");
+        }
+        int perSpawn = (countOpenFileDescriptors() - before) / SPAWNS;
+        for (int i = 0; i < spawns.length; i++) {
+            spawns[i].send("gris\n");
+            spawns[i].expect("gris");
+            spawns[i].stop();
+        }
+        assertTrue("Each spawn used " + perSpawn + " file descriptors", perSpawn <= 4);
+    }
+
     /**
      * Test that we get notified about closes.
      * @throws Exception if things go wrong.
@@ -135,6 +426,64 @@ public class TestExpect extends TestCase {
         assertEquals("flaskagris", testMe.getCurrentStandardOutContents());
     }
 
+    /**
+     * Verify that captured output is decoded using the platform's charset,
+     * even though expect patterns are matched byte by byte.
+     *
+     * @throws Exception if things go wrong.
+     */
+    public void testCapturedCharset() throws Exception {
+        String text = "gr\u00fc\u00dfe \u20ac";
+        Spawn testMe = getAnsweringSpawn(text + " done", null, null);
+        testMe.expect("done");
+        assertEquals(new String((text + " done").getBytes()),
+                     testMe.getCurrentStandardOutContents());
+        testMe.stop();
+    }
+
+    /**
+     * Verify {@link Spawn#getStandardOutSnapshot()} and
+     * {@link Spawn#getStandardOutContentsSince(int)}.
+     *
+     * @throws Exception if things go wrong.
+     */
+    public void testStdOutSnapshots() throws Exception {
+        // Prints "gris" and exits when told to, so nothing arrives early
+        Spawn testMe = new ExpectJ(5, false).spawn(new LoopbackSpawnable(
+            new LoopbackSpawnable.Peer() {
+                public void start(LoopbackSpawnable.Output output) throws IOException {
+                    output.print("flaska");
+                }
+
+                public void lineReceived(String line, LoopbackSpawnable.Output output)
+                throws IOException
+                {
+                    output.print("gris");
+                    output.exit(0);
+                }
+            }));
+        testMe.expect("flaska");
+        CharSequence first = testMe.getStandardOutSnapshot();
+        assertEquals("flaska", first.toString());
+        assertSame("Unchanged contents should give the same snapshot",
+                   first, testMe.getStandardOutSnapshot());
+
+        testMe.send("more\n");
+        testMe.expectClose();
+        assertEquals("Snapshots must not change", "flaska", first.toString());
+        assertEquals("gris",
+                     testMe.getStandardOutContentsSince(first.length()).toString());
+        CharSequence all = testMe.getStandardOutSnapshot();
+        assertEquals("flaskagris", all.toString());
+        assertEquals("kag", all.subSequence(4, 7).toString());
+        assertEquals('g', all.charAt(6));
+        assertEquals("", testMe.getStandardErrSnapshot().toString());
+
+        Spawn noStderr = getSpawn(new String[] {"flaska"});
+        assertNull("Spawn has no stderr", noStderr.getStandardErrSnapshot());
+        noStderr.stop();
+    }
+
     /**
      * Test that we time out properly when we don't find what we're looking for.
      * @throws Exception if things go wrong.
@@ -368,6 +717,153 @@ public class TestExpect extends TestCase {
         }
     }
 
+    /**
+     * Verify that expect calls give up on spawns that stop talking, long
+     * before their timeouts run out.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testIdleTimeout() throws Exception {
+        ExpectJ expectinator = new ExpectJ(60, false);
+        expectinator.setIdleTimeout(1);
+        Spawn spawn = expectinator.spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(final LoopbackSpawnable.Output output) {
+                // Talk for a while, then hang
+                new Thread("Ticker") {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 8; i++) {
+                                output.print("tick\n");
+                                Thread.sleep(200);
+                            }
+                        } catch (Exception e) {
+                            // The spawn is gone, never mind
+                        }
+                    }
+                }.start();
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output) {
+                // This method intentionally left blank
+            }
+        }));
+
+        long t0 = System.currentTimeMillis();
+        try {
+            spawn.expect("tock");
+            fail("Expected idle timeout");
+        } catch (TimeoutException e) {
+            // Expected exception
+        }
+        long dt = System.currentTimeMillis() - t0;
+        assertTrue("Output should have postponed the idle timeout, gave up after "
+                   + dt + "ms", dt >= 2000);
+        assertTrue("Gave up after " + dt + "ms", dt < 10000);
+
+        t0 = System.currentTimeMillis();
+        try {
+            spawn.expectClose();
+            fail("Expected idle timeout");
+        } catch (TimeoutException e) {
+            // Expected exception
+        }
+        dt = System.currentTimeMillis() - t0;
+        assertTrue("Gave up after " + dt + "ms", dt >= 900 && dt < 10000);
+        spawn.stop();
+    }
+
+    /**
+     * Verify that telnet spawns can detect dead peers.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testTelnetKeepAlive() throws Exception {
+        ServerSocket listener = new ServerSocket(0);
+        try {
+            ExpectJ expectinator = new ExpectJ(5, false);
+            expectinator.setKeepAlive(2);
+            assertEquals(2, expectinator.getKeepAlive());
+            Spawn spawn = expectinator.spawn("127.0.0.1", listener.getLocalPort());
+            Socket incoming = listener.accept();
+            try {
+                OutputStreamWriter out =
+                    new OutputStreamWriter(incoming.getOutputStream());
+                out.write("gris");
+                out.flush();
+                spawn.expect("gris");
+
+                String timer = getKeepAliveTimer(listener.getLocalPort());
+                if (timer == null) {
+                    // Not on Linux, we can't see the socket's timers
+                    return;
+                }
+                assertTrue("Keepalive timer not running: " + timer,
+                           timer.startsWith("02:"));
+
+                // The operating system default is two hours, the timer
+                // should fire after our two seconds
+                long ticks = Long.parseLong(timer.substring(3), 16);
+                assertTrue("Keepalive timer fires in " + ticks + " ticks",
+                           ticks <= 2 * 100);
+            } finally {
+                spawn.stop();
+                incoming.close();
+            }
+        } finally {
+            listener.close();
+        }
+    }
+
+    /**
+     * Find the timer of an established connection to a local port.
+     *
+     * @param remotePort The port the connection goes to.
+     * @return The "tr:tm->when" column from /proc/net/tcp or /proc/net/tcp6,
+     * or null if those files don't exist.
+     * @throws IOException if reading the connections fails.
+     */
+    private static String getKeepAliveTimer(int remotePort) throws IOException {
+        String[] tables = new String[] {"/proc/net/tcp", "/proc/net/tcp6"};
+        boolean found = false;
+        for (int i = 0; i < tables.length; i++) {
+            File table = new File(tables[i]);
+            if (!table.exists()) {
+                continue;
+            }
+            found = true;
+
+            BufferedReader reader = new BufferedReader(new FileReader(table));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.trim().split("\\s+");
+                    if (columns.length < 6) {
+                        continue;
+                    }
+                    String remote = columns[2];
+                    int colon = remote.lastIndexOf(':');
+                    if (colon < 0 || !"01".equals(columns[3])) {
+                        // Not an established connection
+                        continue;
+                    }
+                    try {
+                        if (Integer.parseInt(remote.substring(colon + 1), 16) == remotePort) {
+                            return columns[5];
+                        }
+                    } catch (NumberFormatException e) {
+                        // The header line
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        if (found) {
+            fail("No connection to port " + remotePort + " found");
+        }
+        return null;
+    }
+
     /**
      * Create a bunch of telnet spawns in the hope that we'll get an exception
      * if we leak resources somewhere.
@@ -0,0 +1,91 @@
+package expectj;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify that idle spawns hibernate and wake up again.
+ */
+public class TestHibernation extends TestCase {
+    /**
+     * Set by the thread sending late data in {@link #testHibernation()} if
+     * that fails.
+     */
+    private volatile Exception lateFailure = null;
+
+    /**
+     * Wait for a spawn to start or stop hibernating.
+     *
+     * @param spawn The spawn to watch.
+     * @param hibernating What to wait for.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static void waitForHibernation(Spawn spawn, boolean hibernating)
+    throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (spawn.isHibernating() != hibernating) {
+            assertTrue("Hibernating never turned " + hibernating,
+                       System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Verify hibernation, and waking up on sends and on incoming data.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testHibernation() throws Exception {
+        ExpectJ expectinator = new ExpectJ(5, false);
+        expectinator.setHibernateAfter(200);
+        Spawn spawn = expectinator.spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) throws IOException {
+                output.print("ready\n");
+            }
+
+            public void lineReceived(String line, final LoopbackSpawnable.Output output)
+            throws IOException
+            {
+                if (line.equals("ping")) {
+                    output.print("pong\n");
+                    return;
+                }
+
+                // Answer after we've had time to go back to sleep
+                new Thread() {
+                    public void run() {
+                        try {
+                            Thread.sleep(1000);
+                            output.print("late\n");
+                        } catch (Exception e) {
+                            lateFailure = e;
+                        }
+                    }
+                }.start();
+            }
+        }));
+        spawn.expect("ready");
+        waitForHibernation(spawn, true);
+
+        spawn.send("ping\n");
+        assertFalse(spawn.isHibernating());
+        spawn.expect("pong");
+        waitForHibernation(spawn, true);
+
+        // Incoming data should wake the spawn without any help from us
+        spawn.send("later\n");
+        waitForHibernation(spawn, true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (spawn.getCurrentStandardOutContents().indexOf("late\n") == -1) {
+            if (lateFailure != null) {
+                throw lateFailure;
+            }
+            assertTrue("Late data never arrived", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        spawn.expect("late");
+        spawn.stop();
+    }
+}
@@ -0,0 +1,131 @@
+package expectj;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link LoopbackSpawnable} and the {@link SpscByteQueue} it's built on.
+ */
+public class TestLoopbackSpawnable extends TestCase {
+    /**
+     * Set by the producer thread in {@link #testQueue()} if writing fails.
+     */
+    private volatile IOException producerFailure = null;
+
+    /**
+     * A peer that echoes lines in upper case and exits on "exit".
+     */
+    private static class ShoutingPeer implements LoopbackSpawnable.Peer {
+        public void start(LoopbackSpawnable.Output output) throws IOException {
+            output.print("Welcome\n> ");
+        }
+
+        public void lineReceived(String line, LoopbackSpawnable.Output output)
+        throws IOException
+        {
+            if (line.equals("exit")) {
+                output.exit(3);
+                return;
+            }
+            if (line.equals("oops")) {
+                output.printErr("Oops!\n");
+            }
+            output.print(line.toUpperCase() + "\n> ");
+        }
+    }
+
+    /**
+     * Verify a session with a scripted peer.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testConversation() throws Exception {
+        Spawn spawn = new ExpectJ(5, false).spawn(new LoopbackSpawnable(new ShoutingPeer()));
+        spawn.expect("Welcome");
+        spawn.send("hello\r\n");
+        spawn.expect("HELLO");
+        spawn.send("oops\n");
+        spawn.expectErr("Oops!");
+        spawn.send("exit\n");
+        spawn.expectClose();
+        assertEquals(3, spawn.getExitValue());
+        assertEquals("Welcome\n> HELLO\n> OOPS\n> ", spawn.getCurrentStandardOutContents());
+
+        try {
+            spawn.send("too late\n");
+            fail("Sending to an ended loopback session should fail");
+        } catch (IOException expected) {
+            // Expected exception intentionally ignored
+        }
+    }
+
+    /**
+     * Run a bunch of sessions in the hope that we'll get an exception if we
+     * leak resources somewhere.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testManySessions() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            Spawn spawn =
+                new ExpectJ(5, false).spawn(new LoopbackSpawnable(new ShoutingPeer(), 256));
+            spawn.send("session " + i + "\n");
+            spawn.expect("SESSION " + i);
+            spawn.send("exit\n");
+            spawn.expectClose();
+        }
+    }
+
+    /**
+     * Push a lot of data through a small queue and verify it all arrives in
+     * order.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testQueue() throws Exception {
+        final SpscByteQueue queue = new SpscByteQueue(1000);
+        assertEquals(0, queue.available());
+
+        final int total = 4 * 1024 * 1024;
+        Thread producer = new Thread("Queue producer") {
+            public void run() {
+                byte[] chunk = new byte[777];
+                int written = 0;
+                try {
+                    while (written < total) {
+                        int length = Math.min(1 + written % chunk.length, total - written);
+                        for (int i = 0; i < length; i++) {
+                            chunk[i] = (byte)(written + i);
+                        }
+                        queue.write(chunk, 0, length);
+                        written += length;
+                    }
+                } catch (IOException e) {
+                    producerFailure = e;
+                }
+                queue.close();
+            }
+        };
+        producer.start();
+
+        byte[] buffer = new byte[313];
+        int read = 0;
+        while (true) {
+            int count = queue.read(buffer, 0, buffer.length);
+            if (count == -1) {
+                break;
+            }
+            for (int i = 0; i < count; i++) {
+                assertEquals("Mismatch at byte " + (read + i), (byte)(read + i), buffer[i]);
+            }
+            read += count;
+        }
+        producer.join();
+        if (producerFailure != null) {
+            throw producerFailure;
+        }
+        assertEquals(total, read);
+        assertTrue(queue.isClosed());
+    }
+}
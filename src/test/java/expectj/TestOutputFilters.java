@@ -0,0 +1,92 @@
+package expectj;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link OutputFilters}.
+ */
+public class TestOutputFilters extends TestCase {
+    /**
+     * Run text through a filter, one chunk at a time.
+     *
+     * @param filter The filter to use.
+     * @param chunks The text to filter, split the way it would be read.
+     * @return The filtered text.
+     */
+    private static String filter(OutputFilter filter, String[] chunks) {
+        StringBuffer result = new StringBuffer();
+        for (int i = 0; i < chunks.length; i++) {
+            // Put the chunk in the middle of the buffer to verify the offset
+            // handling
+            byte[] buffer = ("xx" + chunks[i] + "yy").getBytes();
+            int length = filter.filter(buffer, 2, chunks[i].length());
+            result.append(new String(buffer, 2, length));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Verify ANSI escape stripping, including sequences split between reads.
+     */
+    public void testStripAnsi() {
+        assertEquals("red plain title",
+                     filter(OutputFilters.stripAnsi(),
+                            new String[] {"\033[1;31mred\033[0m plain \033]0;xterm\007title"}));
+        assertEquals("ab(c",
+                     filter(OutputFilters.stripAnsi(),
+                            new String[] {"a\033", "[3", "2mb\033(B", "(c\033]2;x\033", "\\"}));
+    }
+
+    /**
+     * Verify line break normalization, including \r\n split between reads.
+     */
+    public void testNormalizeNewlines() {
+        assertEquals("a\nb\nc\n\nd\n",
+                     filter(OutputFilters.normalizeNewlines(),
+                            new String[] {"a\r\nb\r\r\nc\n\nd\r"}));
+        assertEquals("a\nb\n",
+                     filter(OutputFilters.normalizeNewlines(),
+                            new String[] {"a\r", "\nb\r\r", "\n"}));
+    }
+
+    /**
+     * Verify backspace folding.
+     */
+    public void testFoldBackspaces() {
+        assertEquals("pasword\nb",
+                     filter(OutputFilters.foldBackspaces(),
+                            new String[] {"pass\bword\n\bb\b\bb"}));
+    }
+
+    /**
+     * Verify that filters are applied before matching and capturing.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testSpawnFiltering() throws Exception {
+        ExpectJ expectinator = new ExpectJ(5, false);
+        expectinator.setOutputFilters(OutputFilters.STRIP_ANSI
+                                      | OutputFilters.NORMALIZE_NEWLINES);
+        Spawn spawn = expectinator.spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) throws IOException {
+                output.print("\033[32mrouter\033[0m\r\r\n\033[1mrouter#\033[0m ");
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output)
+            throws IOException
+            {
+                output.print("\033[1mdone\033[0m\r\n");
+            }
+        }));
+        spawn.expect("router#");
+        assertEquals("router\nrouter# ", spawn.getCurrentStandardOutContents());
+
+        spawn.setOutputFilter(Spawn.STDOUT, null);
+        spawn.send("go\n");
+        spawn.expect("done");
+        assertTrue(spawn.getCurrentStandardOutContents().endsWith("\033[1mdone\033[0m\r\n"));
+        spawn.stop();
+    }
+}
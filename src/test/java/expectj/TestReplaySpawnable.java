@@ -0,0 +1,125 @@
+package expectj;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link RecordingSpawnable} and {@link ReplaySpawnable}.
+ */
+public class TestReplaySpawnable extends TestCase {
+    /**
+     * The recording under test.
+     */
+    private File recording;
+
+    protected void setUp() throws Exception {
+        recording = File.createTempFile("testExpectJ", ".rec");
+        recording.deleteOnExit();
+    }
+
+    protected void tearDown() throws Exception {
+        recording.delete();
+    }
+
+    /**
+     * Record a session with a cat process: send "gris\n", expect "gris", send
+     * "flaska\n", expect "flaska".
+     *
+     * @throws Exception if recording fails.
+     */
+    private void recordCatSession() throws Exception {
+        Spawnable cat = new ProcessSpawn(new Executor() {
+            public Process execute() throws IOException {
+                return Runtime.getRuntime().exec("cat");
+            }
+
+            public String toString() {
+                return "cat";
+            }
+        });
+        Spawn spawn = new ExpectJ(5, false).spawn(new RecordingSpawnable(cat, recording));
+        spawn.send("gris\n");
+        spawn.expect("gris");
+        spawn.send("flaska\n");
+        spawn.expect("flaska");
+        spawn.stop();
+    }
+
+    /**
+     * Verify that a recorded session plays back the same output.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testRecordAndReplay() throws Exception {
+        Spawn spawn =
+            new ExpectJ(5, false).spawn(new RecordingSpawnable(new StagedSpawnable(new String[] {
+                "flaska", "gris"
+            }), recording));
+        spawn.expect("gris");
+        spawn.expectClose();
+        assertTrue(recording.length() > 0);
+
+        Spawn replay =
+            new ExpectJ(5, false).spawn(new ReplaySpawnable(recording,
+                                                            ReplaySpawnable.AS_FAST_AS_POSSIBLE));
+        replay.expect("flaska");
+        replay.expect("gris");
+        replay.expectClose();
+        assertEquals("flaskagris", replay.getCurrentStandardOutContents());
+        assertEquals(0, replay.getExitValue());
+    }
+
+    /**
+     * Verify that the pauses in a recording are honored and can be scaled.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testReplaySpeed() throws Exception {
+        new ExpectJ(5, false).spawn(new RecordingSpawnable(new StagedSpawnable(new String[] {
+            "flaska", "gris", "hink"
+        }), recording)).expect("hink");
+
+        // The staged spawnable pauses 500ms between strings
+        Date before = new Date();
+        new ExpectJ(5, false).spawn(new ReplaySpawnable(recording)).expectClose();
+        long originalMs = new Date().getTime() - before.getTime();
+        assertTrue("Replay too fast: " + originalMs + "ms", originalMs >= 900);
+
+        before = new Date();
+        new ExpectJ(5, false).spawn(new ReplaySpawnable(recording, 4.0)).expectClose();
+        long fastMs = new Date().getTime() - before.getTime();
+        assertTrue("Replay too slow: " + fastMs + "ms", fastMs < originalMs / 2);
+    }
+
+    /**
+     * Verify that sends are validated against the recording, and that output
+     * recorded after a send isn't produced before the send.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testReplayValidatesSends() throws Exception {
+        recordCatSession();
+
+        Spawn replay =
+            new ExpectJ(5, false).spawn(new ReplaySpawnable(recording,
+                                                            ReplaySpawnable.AS_FAST_AS_POSSIBLE));
+        try {
+            replay.expect("gris", 1);
+            fail("Output produced before the send it was recorded after");
+        } catch (TimeoutException expected) {
+            // Expected exception intentionally ignored
+        }
+        replay.send("gris\n");
+        replay.expect("gris");
+        try {
+            replay.send("hink\n");
+            fail("Sending something not in the recording should fail");
+        } catch (IOException expected) {
+            // Expected exception intentionally ignored
+        }
+        replay.stop();
+    }
+}
@@ -0,0 +1,178 @@
+package expectj;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link SpawnGroup}.
+ */
+public class TestSpawnGroup extends TestCase {
+    /**
+     * A peer that says "ready" when told to "go", and exits on "exit".
+     */
+    private static class ReadyPeer implements LoopbackSpawnable.Peer {
+        public void start(LoopbackSpawnable.Output output) {
+            // This method intentionally left blank
+        }
+
+        public void lineReceived(String line, LoopbackSpawnable.Output output)
+        throws IOException
+        {
+            if (line.equals("exit")) {
+                output.exit(0);
+            } else if (line.equals("go")) {
+                output.print("ready\n");
+            }
+        }
+    }
+
+    /**
+     * Verify that a group reports the spawns that match, and only those.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testGroupExpect() throws Exception {
+        Spawn[] spawns = new Spawn[50];
+        SpawnGroup group = new SpawnGroup();
+        for (int i = 0; i < spawns.length; i++) {
+            spawns[i] = new ExpectJ(5, false).spawn(new LoopbackSpawnable(new ReadyPeer()));
+            group.add(spawns[i], "ready");
+        }
+
+        try {
+            group.expect(1);
+            fail("Nothing should be ready");
+        } catch (TimeoutException expected) {
+            // Expected exception intentionally ignored
+        }
+
+        spawns[7].send("go\n");
+        SpawnMatch[] ready = group.expect(5);
+        assertEquals(1, ready.length);
+        assertSame(spawns[7], ready[0].getSpawn());
+        assertEquals("ready", ready[0].getMatch().getText());
+
+        // Two answers in one go, the second should be kept for the next expect
+        spawns[3].send("go\ngo\n");
+        assertSame(spawns[3], group.expect(5)[0].getSpawn());
+        assertSame(spawns[3], group.expect(5)[0].getSpawn());
+
+        // The spawn's own expect should see data the group didn't consume
+        spawns[12].send("go\n");
+        assertSame(spawns[12], group.expect(5)[0].getSpawn());
+        spawns[12].send("go\n");
+        spawns[12].expect("ready", 5);
+
+        spawns[20].send("exit\n");
+        ready = group.expect(5);
+        assertEquals(1, ready.length);
+        assertSame(spawns[20], ready[0].getSpawn());
+        assertNull(ready[0].getMatch());
+        assertEquals(spawns.length - 1, group.getSpawns().length);
+
+        assertTrue(group.remove(spawns[0]));
+        assertFalse(group.remove(spawns[0]));
+        group.add(spawns[0], "ready");
+        spawns[0].send("go\n");
+        assertSame(spawns[0], group.expect(5)[0].getSpawn());
+
+        group.close();
+        for (int i = 0; i < spawns.length; i++) {
+            spawns[i].stop();
+        }
+    }
+
+    /**
+     * Verify that cancelling the members' token aborts a group wait.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testGroupCancel() throws Exception {
+        CancellationToken token = new CancellationToken();
+        ExpectJ expectinator = new ExpectJ(-1, false);
+        expectinator.setCancellationToken(token);
+        final SpawnGroup group = new SpawnGroup();
+        Spawn[] spawns = new Spawn[20];
+        for (int i = 0; i < spawns.length; i++) {
+            spawns[i] = expectinator.spawn(new LoopbackSpawnable(new ReadyPeer()));
+            group.add(spawns[i], "ready");
+        }
+
+        final Throwable[] thrown = new Throwable[1];
+        Thread waiter = new Thread("Group waiter") {
+            public void run() {
+                try {
+                    group.expect(-1);
+                    thrown[0] = new AssertionError("Group wait returned");
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(200);
+        assertTrue(waiter.isAlive());
+
+        token.cancel();
+        waiter.join(5000);
+        assertFalse("Group wait should have been aborted", waiter.isAlive());
+        assertTrue(String.valueOf(thrown[0]), thrown[0] instanceof InterruptedIOException);
+
+        for (int i = 0; i < spawns.length; i++) {
+            spawns[i].stop();
+        }
+    }
+
+    /**
+     * Verify that a group wait gives up when all spawns have been quiet for
+     * longer than their idle timeouts, and not before.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testGroupIdleTimeout() throws Exception {
+        ExpectJ expectinator = new ExpectJ(30, false);
+        expectinator.setIdleTimeout(1);
+        SpawnGroup group = new SpawnGroup();
+        Spawn quiet = expectinator.spawn(new LoopbackSpawnable(new ReadyPeer()));
+        Spawn chatty = expectinator.spawn(new LoopbackSpawnable(new ReadyPeer()));
+        group.add(quiet, "ready");
+        group.add(chatty, "never printed");
+
+        long start = System.currentTimeMillis();
+        try {
+            group.expect(30);
+            fail("Group wait should have given up");
+        } catch (TimeoutException expected) {
+            // Expected exception intentionally ignored
+        }
+        long duration = System.currentTimeMillis() - start;
+        assertTrue("Took " + duration + "ms", duration >= 900 && duration < 10000);
+
+        // Output from one spawn keeps the group waiting
+        final Spawn talker = chatty;
+        Thread talking = new Thread("Talker") {
+            public void run() {
+                try {
+                    for (int i = 0; i < 4; i++) {
+                        Thread.sleep(500);
+                        talker.send("go\n");
+                    }
+                    Thread.sleep(500);
+                    talker.send("exit\n");
+                } catch (Exception e) {
+                    // The test will fail on its own
+                }
+            }
+        };
+        talking.start();
+        SpawnMatch[] ready = group.expect(30);
+        assertSame(chatty, ready[0].getSpawn());
+        assertNull(ready[0].getMatch());
+        talking.join();
+
+        group.close();
+        quiet.stop();
+    }
+}
@@ -0,0 +1,134 @@
+package expectj;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify that stopping a process spawn stops the processes it has started.
+ */
+public class TestStopProcessTree extends TestCase {
+    /**
+     * Spawn a shell command.
+     *
+     * @param expectinator Creates the spawn.
+     * @param command The shell command to run.
+     * @return The new spawn.
+     * @throws IOException on trouble spawning.
+     */
+    private static Spawn spawnShell(ExpectJ expectinator, final String command)
+    throws IOException
+    {
+        return expectinator.spawn(new Executor() {
+            public Process execute() throws IOException {
+                return Runtime.getRuntime().exec(new String[] {"/bin/sh", "-c", command});
+            }
+
+            public String toString() {
+                return command;
+            }
+        });
+    }
+
+    /**
+     * @param pid A process ID.
+     * @return True if the process is running, zombies don't count.
+     * @throws IOException on trouble reading /proc.
+     */
+    private static boolean isRunning(String pid) throws IOException {
+        File stat = new File("/proc/" + pid + "/stat");
+        if (!stat.exists()) {
+            return false;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(stat));
+        try {
+            String line = reader.readLine();
+            if (line == null) {
+                return false;
+            }
+            // The state comes after the command name in parentheses
+            String state = line.substring(line.lastIndexOf(')') + 2);
+            return !state.startsWith("Z") && !state.startsWith("X");
+        } catch (IOException e) {
+            // The process went away while we were looking
+            return false;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return True if this test can check on processes.
+     */
+    private static boolean canCheck() {
+        return ProcessTree.isSupported() && new File("/proc/self/stat").exists();
+    }
+
+    /**
+     * Start a process in the background of a shell, and return its pid.
+     *
+     * @param spawn A shell printing the pid of its background process on a
+     * line starting with "pid ".
+     * @return The pid of the background process.
+     * @throws Exception on trouble.
+     */
+    private static String getBackgroundPid(Spawn spawn) throws Exception {
+        spawn.expect("ready");
+        String output = spawn.getCurrentStandardOutContents();
+        int start = output.indexOf("pid ") + 4;
+        return output.substring(start, output.indexOf('\n', start)).trim();
+    }
+
+    /**
+     * Verify that stopping a shell also stops what it runs in the
+     * background.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testStopKillsDescendants() throws Exception {
+        if (!canCheck()) {
+            return;
+        }
+        Spawn spawn = spawnShell(new ExpectJ(5), "sleep 1000 & echo pid $!; echo ready; wait");
+        String pid = getBackgroundPid(spawn);
+        assertTrue(isRunning(pid));
+
+        spawn.stop();
+        assertTrue(spawn.isClosed());
+        assertFalse("Background process " + pid + " survived", isRunning(pid));
+    }
+
+    /**
+     * Verify that processes ignoring requests to terminate are killed after
+     * the grace period.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testStopKillsStubbornProcesses() throws Exception {
+        if (!canCheck()) {
+            return;
+        }
+        ExpectJ expectinator = new ExpectJ(5);
+        expectinator.setStopGracePeriod(200);
+        assertEquals(200, expectinator.getStopGracePeriod());
+        Spawn spawn = spawnShell(expectinator,
+                                 "sh -c \"trap '' TERM; while true; do sleep 1; done\" & "
+                                 + "echo pid $!; echo ready; trap '' TERM; wait");
+        String pid = getBackgroundPid(spawn);
+        Thread.sleep(100);
+
+        long start = System.currentTimeMillis();
+        spawn.stop();
+        long duration = System.currentTimeMillis() - start;
+        assertTrue(spawn.isClosed());
+        assertTrue("Stopping took " + duration + "ms", duration < 5000);
+        assertFalse("Stubborn process " + pid + " survived", isRunning(pid));
+
+        ExitInfo exitInfo = (ExitInfo)spawn.getExitInfo().get(10, TimeUnit.SECONDS);
+        assertTrue(exitInfo.hasExitValue());
+    }
+}
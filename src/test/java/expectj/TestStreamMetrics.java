@@ -0,0 +1,76 @@
+package expectj;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify that spawn output is read in chunks sized to fit the output.
+ */
+public class TestStreamMetrics extends TestCase {
+    /**
+     * Verify that the read size grows during bulk output and shrinks again
+     * when the output gets chatty.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testAdaptiveReadSize() throws Exception {
+        ExpectJ expectinator = new ExpectJ(10, false);
+        expectinator.setReadBufferSize(512, 16384);
+        Spawn spawn = expectinator.spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) throws IOException {
+                output.print("ready\n");
+            }
+
+            public void lineReceived(String line, final LoopbackSpawnable.Output output)
+            throws IOException
+            {
+                if (line.equals("dump")) {
+                    // Print from another thread; send() would block until
+                    // everything has been read otherwise
+                    new Thread("Bulk printer") {
+                        public void run() {
+                            StringBuffer bulk = new StringBuffer();
+                            for (int i = 0; i < 99; i++) {
+                                bulk.append('x');
+                            }
+                            bulk.append('\n');
+                            try {
+                                for (int i = 0; i < 3000; i++) {
+                                    output.print(bulk.toString());
+                                }
+                                output.print("done\n");
+                            } catch (IOException e) {
+                                // The spawn is gone, never mind
+                            }
+                        }
+                    }.start();
+                } else {
+                    output.print("pong\n");
+                }
+            }
+        }));
+        spawn.expect("ready");
+        StreamMetrics metrics = spawn.getStreamMetrics(Spawn.STDOUT);
+        assertEquals(512, metrics.getReadBufferSize());
+
+        spawn.send("dump\n");
+        spawn.expect("done");
+        metrics = spawn.getStreamMetrics(Spawn.STDOUT);
+        assertTrue("Bulk output should have been read: " + metrics,
+                   metrics.getBytesRead() >= 300000);
+        assertEquals("Read size should grow during bulk output: " + metrics,
+                     16384, metrics.getReadBufferSize());
+
+        for (int i = 0; i < 30; i++) {
+            spawn.send("ping\n");
+            spawn.expect("pong");
+        }
+        metrics = spawn.getStreamMetrics(Spawn.STDOUT);
+        assertTrue("Read size should shrink for small reads: " + metrics,
+                   metrics.getReadBufferSize() < 16384);
+        assertTrue(metrics.getReadCount() > 30);
+
+        spawn.stop();
+    }
+}
@@ -0,0 +1,115 @@
+package expectj;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Verify {@link TerminalScreen}.
+ */
+public class TestTerminalScreen extends TestCase {
+    /**
+     * Print a string on a screen.
+     *
+     * @param screen The screen to print on.
+     * @param text What to print.
+     */
+    private static void print(TerminalScreen screen, String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)text.charAt(i);
+        }
+        screen.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Verify printing, wrapping and scrolling.
+     */
+    public void testPrinting() {
+        TerminalScreen screen = new TerminalScreen(3, 5);
+        print(screen, "ab\r\ncdefgh");
+        assertEquals("ab   \ncdefg\nh    ", screen.getText());
+        assertEquals(2, screen.getCursorRow());
+        assertEquals(1, screen.getCursorColumn());
+
+        print(screen, "\r\nscroll");
+        assertEquals("h    \nscrol\nl    ", screen.getText());
+    }
+
+    /**
+     * Verify cursor movement and erasing.
+     */
+    public void testEscapes() {
+        TerminalScreen screen = new TerminalScreen(4, 10);
+        print(screen, "\033[2J\033[1;1HTitle\033[3;4HMenu\033[1mBold\033[0m");
+        assertEquals("Title", screen.getRow(0).trim());
+        assertEquals("   MenuBol", screen.getRow(2));
+        assertEquals("d", screen.getRow(3).trim());
+
+        // Overwrite part of a row and erase to end of line
+        print(screen, "\033[3;4HX\033[K");
+        assertEquals("   X      ", screen.getRow(2));
+
+        // Relative movement, save and restore
+        print(screen, "\0337\033[2A\033[3CY\0338Z");
+        assertEquals("Title  Y  ", screen.getRow(0));
+        assertEquals("   XZ     ", screen.getRow(2));
+
+        // Insert and delete chars
+        print(screen, "\033[1;1H\033[2@");
+        assertEquals("  Title  Y", screen.getRow(0));
+        print(screen, "\033[3P");
+        assertEquals("itle  Y   ", screen.getRow(0));
+
+        assertEquals("tle  \n     \n  XZ ", screen.getRegion(0, 1, 2, 5));
+    }
+
+    /**
+     * Verify scrolling regions.
+     */
+    public void testScrollingRegion() {
+        TerminalScreen screen = new TerminalScreen(4, 3);
+        print(screen, "top\r\none\r\ntwo\r\nbot");
+        print(screen, "\033[2;3r\033[3;1H\nnew");
+        assertEquals("top\ntwo\nnew\nbot", screen.getText());
+        print(screen, "\033[2;1H\033M");
+        assertEquals("top\n   \ntwo\nbot", screen.getText());
+    }
+
+    /**
+     * Verify that we can wait for text on the screen of a spawn.
+     *
+     * @throws Exception if testing goes exceptionally wrong.
+     */
+    public void testExpectScreen() throws Exception {
+        ExpectJ expectinator = new ExpectJ(5, false);
+        expectinator.setTerminalEmulation(24, 80);
+        Spawn spawn = expectinator.spawn(new LoopbackSpawnable(new LoopbackSpawnable.Peer() {
+            public void start(LoopbackSpawnable.Output output) throws IOException {
+                output.print("\033[2J\033[10;30HLoading...");
+            }
+
+            public void lineReceived(String line, LoopbackSpawnable.Output output)
+            throws IOException
+            {
+                // Redraw the status line in place and move to the bottom row
+                output.print("\033[10;30H\033[KReady\033[24;1HChoice: ");
+            }
+        }));
+        assertEquals(9, spawn.expectScreen("loading", 5));
+        try {
+            spawn.expectScreen("ready", 0, 23, 1);
+            fail("Nothing is ready yet");
+        } catch (TimeoutException expected) {
+            // Expected exception intentionally ignored
+        }
+
+        spawn.send("\n");
+        assertEquals(23, spawn.expectScreen("choice:", 20, 23, 5));
+        assertEquals(9, spawn.expectScreen("ready", 5));
+        assertEquals("Ready", spawn.getScreen().getRow(9).trim());
+        assertEquals(23, spawn.getScreen().getCursorRow());
+        assertEquals(8, spawn.getScreen().getCursorColumn());
+        spawn.stop();
+    }
+}